@@ -0,0 +1,137 @@
+package tp1.common.services;
+
+import tp1.api.FileInfo;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * Measures the heap used by the directory's metadata per file, with the previous representation
+ * (a FileInfo with its own strings and HashSet per file, indexed by "owner/filename" keys) and
+ * with the compact one (FileReference with interned user ids).
+ *
+ * Kept out of the server's sources, in the package of the classes it measures; built with the
+ * bench profile (mvn -Pbench compile) and run with a large heap, e.g.
+ * java -Xmx8g -cp target/classes:... tp1.common.services.MetadataHeapBenchmark [files] [shares per file] [users]
+ */
+public final class MetadataHeapBenchmark {
+
+    private static final String URL_FMT = "https://files-%d:8080/rest/files/%s";
+
+    /**
+     * The file reference as it was before the compact representation
+     */
+    private static class LegacyReference {
+        String fileId;
+        FileServerMonitor[] servers;
+        FileInfo info;
+        int lastReplica = 0;
+        int size;
+        volatile long contentVersion = -1;
+
+        LegacyReference(String fileId, FileServerMonitor[] servers, FileInfo info, int size) {
+            this.fileId = fileId;
+            this.servers = servers;
+            this.info = info;
+            this.size = size;
+        }
+    }
+
+    private MetadataHeapBenchmark() {}
+
+    public static void main(String[] args) {
+        int files = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int shares = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+        int userCount = args.length > 2 ? Integer.parseInt(args[2]) : 10_000;
+
+        FileServerMonitor[] monitors = new FileServerMonitor[3];
+        for (int i = 0; i < monitors.length; i++) {
+            monitors[i] = new FileServerMonitor(null);
+        }
+        String[] fileIds = new String[files];
+        for (int i = 0; i < files; i++) {
+            fileIds[i] = UUID.randomUUID().toString();
+        }
+
+        long baseline = usedHeap();
+        Object legacy = buildLegacy(fileIds, shares, userCount, monitors);
+        long legacyBytes = usedHeap() - baseline;
+        Objects.requireNonNull(legacy);
+        legacy = null;
+
+        baseline = usedHeap();
+        Object compact = buildCompact(fileIds, shares, userCount, monitors);
+        long compactBytes = usedHeap() - baseline;
+        Objects.requireNonNull(compact);
+
+        System.out.printf("files = %d, shares per file = %d, users = %d%n", files, shares, userCount);
+        System.out.printf("before: %d bytes per file%n", legacyBytes / files);
+        System.out.printf("after:  %d bytes per file%n", compactBytes / files);
+    }
+
+    private static Object buildLegacy(String[] fileIds, int shares, int userCount, FileServerMonitor[] monitors) {
+        Map<String, Map<String, LegacyReference>> directories = new ConcurrentHashMap<>();
+        Map<String, NavigableMap<String, LegacyReference>> visibleFiles = new ConcurrentHashMap<>();
+        for (int i = 0; i < fileIds.length; i++) {
+            // ids read from the operations log are distinct string instances for every file
+            String owner = new String(user(i % userCount));
+            String filename = "file-" + i;
+            Set<String> sharedWith = new HashSet<>();
+            for (int s = 1; s <= shares; s++) {
+                sharedWith.add(new String(user((i + s) % userCount)));
+            }
+            FileInfo info = new FileInfo(owner, filename, String.format(URL_FMT, i % monitors.length, fileIds[i]),
+                    sharedWith);
+            LegacyReference reference = new LegacyReference(fileIds[i], monitors.clone(), info, 1024);
+            directories.computeIfAbsent(owner, k -> new ConcurrentHashMap<>()).put(filename, reference);
+            visibleFiles.computeIfAbsent(owner, k -> new ConcurrentSkipListMap<>())
+                    .put(owner + "/" + filename, reference);
+            for (String user : sharedWith) {
+                visibleFiles.computeIfAbsent(user, k -> new ConcurrentSkipListMap<>())
+                        .put(owner + "/" + filename, reference);
+            }
+        }
+        return List.of(directories, visibleFiles);
+    }
+
+    private static Object buildCompact(String[] fileIds, int shares, int userCount, FileServerMonitor[] monitors) {
+        IdInterner users = new IdInterner();
+        Comparator<FileReference> order = FileReference.listingOrder(users);
+        Map<String, Map<String, FileReference>> directories = new ConcurrentHashMap<>();
+        Map<String, NavigableSet<FileReference>> visibleFiles = new ConcurrentHashMap<>();
+        for (int i = 0; i < fileIds.length; i++) {
+            String owner = new String(user(i % userCount));
+            String filename = "file-" + i;
+            FileReference reference = new FileReference(fileIds[i], users.intern(owner), filename,
+                    monitors.clone(), 1024);
+            owner = users.name(reference.owner);
+            directories.computeIfAbsent(owner, k -> new ConcurrentHashMap<>()).put(filename, reference);
+            visibleFiles.computeIfAbsent(owner, k -> new ConcurrentSkipListSet<>(order)).add(reference);
+            for (int s = 1; s <= shares; s++) {
+                String user = new String(user((i + s) % userCount));
+                reference.share(users.intern(user));
+                visibleFiles.computeIfAbsent(users.name(users.idOf(user)), k -> new ConcurrentSkipListSet<>(order))
+                        .add(reference);
+            }
+        }
+        return List.of(users, directories, visibleFiles);
+    }
+
+    private static String user(int i) {
+        return "user-" + i;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException ignored) {
+            }
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
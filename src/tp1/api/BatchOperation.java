@@ -0,0 +1,68 @@
+package tp1.api;
+
+/**
+ * Represents a single mutation of a batch over a user's directory
+ */
+public class BatchOperation {
+	public enum Type {
+		WRITE, DELETE, SHARE, UNSHARE
+	}
+
+	private Type type;
+	private String filename;
+	/**
+	 * Contents of the file (only for WRITE)
+	 */
+	private byte[] data;
+	/**
+	 * User to share or unshare the file with (only for SHARE and UNSHARE)
+	 */
+	private String userIdShare;
+
+	public BatchOperation() {
+	}
+
+	public BatchOperation(Type type, String filename, byte[] data, String userIdShare) {
+		this.type = type;
+		this.filename = filename;
+		this.data = data;
+		this.userIdShare = userIdShare;
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	public void setType(Type type) {
+		this.type = type;
+	}
+
+	public String getFilename() {
+		return filename;
+	}
+
+	public void setFilename(String filename) {
+		this.filename = filename;
+	}
+
+	public byte[] getData() {
+		return data;
+	}
+
+	public void setData(byte[] data) {
+		this.data = data;
+	}
+
+	public String getUserIdShare() {
+		return userIdShare;
+	}
+
+	public void setUserIdShare(String userIdShare) {
+		this.userIdShare = userIdShare;
+	}
+
+	@Override
+	public String toString() {
+		return "BatchOperation [type=" + type + ", filename=" + filename + ", userIdShare=" + userIdShare + "]";
+	}
+}
@@ -0,0 +1,44 @@
+package tp1.api;
+
+/**
+ * Represents the outcome of a single mutation of a batch
+ */
+public class BatchResult {
+	/**
+	 * HTTP status the operation would have had if executed alone
+	 */
+	private int status;
+	/**
+	 * The written file (only for successful WRITE operations)
+	 */
+	private FileInfo file;
+
+	public BatchResult() {
+	}
+
+	public BatchResult(int status, FileInfo file) {
+		this.status = status;
+		this.file = file;
+	}
+
+	public int getStatus() {
+		return status;
+	}
+
+	public void setStatus(int status) {
+		this.status = status;
+	}
+
+	public FileInfo getFile() {
+		return file;
+	}
+
+	public void setFile(FileInfo file) {
+		this.file = file;
+	}
+
+	@Override
+	public String toString() {
+		return "BatchResult [status=" + status + ", file=" + file + "]";
+	}
+}
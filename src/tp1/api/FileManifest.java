@@ -0,0 +1,46 @@
+package tp1.api;
+
+import java.util.List;
+
+/**
+ * Represents the contents of a file as the list of chunks they're made of
+ */
+public class FileManifest {
+	/**
+	 * SHA-256 (in hex) of each chunk, in order
+	 */
+	private List<String> chunks;
+	/**
+	 * Size in bytes of each chunk
+	 */
+	private List<Integer> lengths;
+
+	public FileManifest() {
+	}
+
+	public FileManifest(List<String> chunks, List<Integer> lengths) {
+		this.chunks = chunks;
+		this.lengths = lengths;
+	}
+
+	public List<String> getChunks() {
+		return chunks;
+	}
+
+	public void setChunks(List<String> chunks) {
+		this.chunks = chunks;
+	}
+
+	public List<Integer> getLengths() {
+		return lengths;
+	}
+
+	public void setLengths(List<Integer> lengths) {
+		this.lengths = lengths;
+	}
+
+	@Override
+	public String toString() {
+		return "FileManifest [chunks=" + chunks + ", lengths=" + lengths + "]";
+	}
+}
@@ -0,0 +1,46 @@
+package tp1.api;
+
+import java.util.List;
+
+/**
+ * Represents a page of a user's file listing
+ */
+public class FilePage {
+	/**
+	 * Files in this page
+	 */
+	private List<FileInfo> files;
+	/**
+	 * Opaque cursor to request the next page (null if this is the last page)
+	 */
+	private String nextCursor;
+
+	public FilePage() {
+	}
+
+	public FilePage(List<FileInfo> files, String nextCursor) {
+		this.files = files;
+		this.nextCursor = nextCursor;
+	}
+
+	public List<FileInfo> getFiles() {
+		return files;
+	}
+
+	public void setFiles(List<FileInfo> files) {
+		this.files = files;
+	}
+
+	public String getNextCursor() {
+		return nextCursor;
+	}
+
+	public void setNextCursor(String nextCursor) {
+		this.nextCursor = nextCursor;
+	}
+
+	@Override
+	public String toString() {
+		return "FilePage [files=" + files + ", nextCursor=" + nextCursor + "]";
+	}
+}
@@ -1,10 +1,18 @@
 package tp1.api.service.rest;
 
+import java.io.InputStream;
 import java.util.*;
 
 import jakarta.ws.rs.*;
+import jakarta.ws.rs.container.AsyncResponse;
+import jakarta.ws.rs.container.Suspended;
+import jakarta.ws.rs.core.HttpHeaders;
 import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.StreamingOutput;
+import tp1.api.BatchOperation;
+import tp1.api.BatchResult;
 import tp1.api.FileInfo;
+import tp1.api.FilePage;
 import tp1.common.services.DirectoryService;
 import tp1.kafka.operations.Operation;
 
@@ -12,6 +20,11 @@ import tp1.kafka.operations.Operation;
 public interface RestDirectory {
 
 	static final String PATH="/dir";
+	static final String USER_CACHE_PATH="/auth/cache";
+	static final String LOCAL_LS_PATH="/ls/local";
+
+	// Mutations and reads are answered once they're applied by the directory, without holding
+	// a request thread meanwhile, so their result is delivered through an AsyncResponse
 
 	/**
 	 * Write a new version of a file. If the file exists, its contents are overwritten.
@@ -19,8 +32,12 @@ public interface RestDirectory {
 	 * 
 	 * A file resource will has the full path "userId/filename".
 	 * 
+	 * The contents may be sent with chunked transfer and are never held whole in memory:
+	 * large contents are spooled to disk as they arrive, and then sent to the files servers.
+	 * 
 	 * @param filename - name of the file.
 	 * @param data - contents of the file.
+	 * @param length - size of the contents, if known in advance.
 	 * @param userId - id of the user.
 	 * @param password - the password of the user.
 	 * 
@@ -33,8 +50,32 @@ public interface RestDirectory {
 	@Path("/{userId}/{filename}")
 	@Consumes(MediaType.APPLICATION_OCTET_STREAM)
 	@Produces(MediaType.APPLICATION_JSON)
-	FileInfo writeFile(@PathParam("filename") String filename, byte []data, 
-			@PathParam("userId") String userId, @QueryParam("password") String password);
+	void writeFile(@PathParam("filename") String filename, InputStream data,
+			@HeaderParam(HttpHeaders.CONTENT_LENGTH) @DefaultValue("-1") long length,
+			@PathParam("userId") String userId, @QueryParam("password") String password,
+			@Suspended AsyncResponse response);
+
+	/**
+	 * Applies a list of mutations to the directory of a user, in order. The credentials are
+	 * verified once, and the operations are reported together, so this is much faster than
+	 * issuing each mutation by itself.
+	 *
+	 * @param userId - id of the user.
+	 * @param password - the password of the user.
+	 * @param operations - the mutations to apply.
+	 *
+	 * @return 200 if success + the result of each operation, with the status it would have had
+	 * 		   if executed by itself (200 + FileInfo for writes, 204, 404 or 400);
+	 *		   404 if the userId does not exist.
+	 *         403 if the password is incorrect.
+	 * 		   400 otherwise.
+	 */
+	@POST
+	@Path("/{userId}")
+	@Consumes(MediaType.APPLICATION_JSON)
+	@Produces(MediaType.APPLICATION_JSON)
+	void batch(@PathParam("userId") String userId, @QueryParam("password") String password,
+			List<BatchOperation> operations, @Suspended AsyncResponse response);
 
 	/**
 	 * Delete an existing file ("userId/filename"). 
@@ -52,7 +93,8 @@ public interface RestDirectory {
 	@DELETE
 	@Path("/{userId}/{filename}")
 	void deleteFile(@PathParam("filename") String filename, 
-			@PathParam("userId") String userId, @QueryParam("password") String password);
+			@PathParam("userId") String userId, @QueryParam("password") String password,
+			@Suspended AsyncResponse response);
 
 	/**
 	 * Share the file "userId/filename" with another user. 
@@ -75,7 +117,8 @@ public interface RestDirectory {
 	@POST
 	@Path("/{userId}/{filename}/share/{userIdShare}")
 	void shareFile(@PathParam("filename") String filename, @PathParam("userId") String userId, 
-			@PathParam("userIdShare") String userIdShare, @QueryParam("password") String password);
+			@PathParam("userIdShare") String userIdShare, @QueryParam("password") String password,
+			@Suspended AsyncResponse response);
 
 	/**
 	 * Unshare the file "userId/filename" with another user. 
@@ -98,7 +141,8 @@ public interface RestDirectory {
 	@DELETE
 	@Path("/{userId}/{filename}/share/{userIdShare}")
 	void unshareFile(@PathParam("filename") String filename, @PathParam("userId") String userId, 
-			@PathParam("userIdShare") String userIdShare, @QueryParam("password") String password);
+			@PathParam("userIdShare") String userIdShare, @QueryParam("password") String password,
+			@Suspended AsyncResponse response);
 
 	/**
 	 * Get the contents of the file "userId/filename". 
@@ -106,12 +150,21 @@ public interface RestDirectory {
 	 * 
 	 * This operation should be implemented using HTTP redirect on success.
 	 * 
+	 * A single byte range may be requested, as in RestFiles.getFile. When the file can't be
+	 * redirected to, the directory has no ETag for it, so a request with If-Range is served whole.
+	 * 
 	 * @param filename - name of the file.
 	 * @param userId - id of the user.
 	 * @param accUserId - id of the user executing the operation.
 	 * @param password - the password of accUserId.
+	 * @param version - the version header: the versions the client has seen, one per partition,
+	 * separated by commas (as sent in the responses' version header).
+	 * @param range - the Range header ("bytes=first-last").
+	 * @param ifRange - the If-Range header.
 	 * 
 	 * @return 200 if success + contents (through redirect to the File server); 
+	 * 		   206 if a range was requested + the range's contents;
+	 * 		   416 if the range is beyond the end of the file.
 	 *		   404 if the userId or filename or accUserId does not exist.
 	 *         403 if the password is incorrect or the user cannot access the file.
 	 * 		   400 otherwise.
@@ -119,9 +172,12 @@ public interface RestDirectory {
 	@GET
 	@Path("/{userId}/{filename}")
 	@Produces(MediaType.APPLICATION_OCTET_STREAM)
-	byte[] getFile(@PathParam("filename") String filename, @PathParam("userId") String userId, 
+	void getFile(@PathParam("filename") String filename, @PathParam("userId") String userId, 
 			@QueryParam("accUserId") String accUserId, @QueryParam("password") String password,
-				   @HeaderParam(DirectoryService.VERSION_HEADER) @DefaultValue("-1") long version);
+				   @HeaderParam(DirectoryService.VERSION_HEADER) String version,
+				   @HeaderParam(RestFiles.RANGE_HEADER) String range,
+				   @HeaderParam(RestFiles.IF_RANGE_HEADER) String ifRange,
+				   @Suspended AsyncResponse response);
 
 	/**
 	 * List the files a given user ("userId") has access to - this includes both its own files
@@ -141,6 +197,65 @@ public interface RestDirectory {
 	List<FileInfo> lsFile(@PathParam("userId") String userId, 
 			@QueryParam("password") String password);
 
+	/**
+	 * List a page of the files a given user ("userId") has access to. Files are listed in a
+	 * stable order, so following the returned cursors visits every file once.
+	 *
+	 * @param userId - id of the user.
+	 * @param password - the password of the user.
+	 * @param cursor - the cursor returned by the previous page (absent for the first page).
+	 * @param limit - maximum number of files in the page (a server default if not positive).
+	 *
+	 * @return 200 if success + the page of FileInfo and the cursor for the next page
+	 * 			(null when there are no more files);
+	 *		   404 if the userId does not exist.
+	 *         403 if the password is incorrect.
+	 * 		   400 otherwise (including a malformed cursor).
+	 */
+	@GET
+	@Path("/{userId}/ls/page")
+	@Produces(MediaType.APPLICATION_JSON)
+	FilePage lsFilePage(@PathParam("userId") String userId, @QueryParam("password") String password,
+			@QueryParam("cursor") String cursor, @QueryParam("limit") @DefaultValue("-1") int limit);
+
+	/**
+	 * List the files a given user ("userId") has access to as a JSON array streamed
+	 * with chunked transfer, so the listing is never materialized in memory.
+	 *
+	 * @param userId - id of the user.
+	 * @param password - the password of the user.
+	 *
+	 * @return 200 if success + list of FileInfo;
+	 *		   404 if the userId does not exist.
+	 *         403 if the password is incorrect.
+	 * 		   400 otherwise.
+	 */
+	@GET
+	@Path("/{userId}/ls/stream")
+	@Produces(MediaType.APPLICATION_JSON)
+	StreamingOutput lsFileStream(@PathParam("userId") String userId,
+			@QueryParam("password") String password);
+
+	/**
+	 * List a page of the files a given user ("userId") has access to that are owned by users
+	 * of this directory's shard. Only invoked by the directory owning the user, which gathers
+	 * the listing from every shard.
+	 *
+	 * @param userId - id of the user.
+	 * @param token - the servers' permanent token.
+	 * @param cursor - the cursor returned by the previous page (absent for the first page).
+	 * @param limit - maximum number of files in the page (a server default if not positive).
+	 *
+	 * @return 200 if success + the page of FileInfo and the cursor for the next page;
+	 *         403 if the token is invalid.
+	 * 		   400 otherwise (including a malformed cursor).
+	 */
+	@GET
+	@Path("/{userId}" + LOCAL_LS_PATH)
+	@Produces(MediaType.APPLICATION_JSON)
+	FilePage lsLocalFiles(@PathParam("userId") String userId, @QueryParam("token") String token,
+			@QueryParam("cursor") String cursor, @QueryParam("limit") @DefaultValue("-1") int limit);
+
 	/**
 	 * Deletes all files from a given user. If the user doesn't exist, the operation is successful anyway
 	 * @param userId the user whose files are to be deleted
@@ -153,4 +268,16 @@ public interface RestDirectory {
 	@Path("/{userId}")
 	void deleteDirectory(@PathParam("userId") String userId, @QueryParam("password") String password,
 						 @QueryParam("token") String token);
+
+	/**
+	 * Discards the information the directory cached on a given user (such as verified
+	 * credentials). Only invoked by the users server when a user is updated or deleted.
+	 * @param userId the user that was updated or deleted
+	 * @param token the servers' permanent token
+	 * @return 204 if success;
+	 * 		   403 if the token is invalid
+	 */
+	@DELETE
+	@Path("/{userId}" + USER_CACHE_PATH)
+	void invalidateUser(@PathParam("userId") String userId, @QueryParam("token") String token);
 }
@@ -1,20 +1,31 @@
 package tp1.api.service.rest;
 
 import jakarta.ws.rs.*;
+import jakarta.ws.rs.container.AsyncResponse;
+import jakarta.ws.rs.container.Suspended;
+import jakarta.ws.rs.core.HttpHeaders;
 import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.StreamingOutput;
+import tp1.api.FileManifest;
 import tp1.common.services.DirectoryService;
 import tp1.kafka.operations.Operation;
 
+import java.io.InputStream;
 import java.util.List;
+import java.util.Map;
 
 @Path(RestFiles.PATH)
 public interface RestFiles {
 
 	static final String PATH="/files";
+	static final String RANGE_HEADER="Range";
+	static final String IF_RANGE_HEADER="If-Range";
 	/**
 	 * Write a file. If the file exists, overwrites the contents.
+	 * The contents are written as they arrive, so they may be sent with chunked transfer.
 	 * 
 	 * @param fileId - unique id of the file. 
+	 * @param data - contents of the file.
 	 * @param token - token for accessing the file server (in the first 
 	 * project this will not be used).
      *
@@ -26,7 +37,7 @@ public interface RestFiles {
 	@Path("/{fileId}")
 	@Consumes(MediaType.APPLICATION_OCTET_STREAM)
 	@Produces(MediaType.APPLICATION_JSON)
-	void writeFile(@PathParam("fileId") String fileId, byte[] data, 
+	void writeFile(@PathParam("fileId") String fileId, InputStream data, 
 			@QueryParam("token") @DefaultValue("") String token);
 
 	/**
@@ -47,13 +58,25 @@ public interface RestFiles {
 			@QueryParam("token") @DefaultValue("") String token);
 
 	/**
-	 * Get the contents of the file. 
+	 * Get the contents of the file. The request is answered once the server is up to date with
+	 * the given version, without holding a request thread meanwhile.
+	 * 
+	 * A single byte range may be requested, which is only served if the If-Range validator
+	 * (when present) matches the file's ETag. Files stored compressed are sent as stored,
+	 * with gzip encoding, to clients accepting it (unless they request a range).
 	 * 
 	 * @param fileId - unique id of the file. 
 	 * @param token - token for accessing the file server (in the first 
 	 * project this will not be used).
+	 * @param version - the version header: the versions the client has seen, one per partition,
+	 * separated by commas.
+	 * @param range - the Range header ("bytes=first-last").
+	 * @param ifRange - the If-Range header (the ETag of the client's copy).
+	 * @param acceptEncoding - the Accept-Encoding header.
 	 * 
 	 * @return 200 if success + contents (through redirect to the File server); 
+	 * 		   206 if a range was requested + the range's contents;
+	 * 		   416 if the range is beyond the end of the file.
 	 *		   404 if the fileId does not exist.
 	 *         403 if the token is invalid.
 	 * 		   400 otherwise.
@@ -61,8 +84,110 @@ public interface RestFiles {
 	@GET
 	@Path("/{fileId}")
 	@Produces(MediaType.APPLICATION_OCTET_STREAM)
-	byte[] getFile(@PathParam("fileId") String fileId, 
+	void getFile(@PathParam("fileId") String fileId, 
 			@QueryParam("token") @DefaultValue("") String token,
-				   @HeaderParam(DirectoryService.VERSION_HEADER) @DefaultValue("-1") long version);
+				   @HeaderParam(DirectoryService.VERSION_HEADER) String version,
+				   @HeaderParam(RANGE_HEADER) String range, @HeaderParam(IF_RANGE_HEADER) String ifRange,
+				   @HeaderParam(HttpHeaders.ACCEPT_ENCODING) String acceptEncoding,
+				   @Suspended AsyncResponse response);
+
+	/**
+	 * Get the chunks of a deduplicated file, so a replica fetches only those it doesn't store.
+	 * 
+	 * @param fileId - unique id of the file.
+	 * @param token - token for accessing the file server (must be a permanent token).
+	 * 
+	 * @return 200 if success + the file's manifest;
+	 * 		   204 if the server doesn't deduplicate files.
+	 *		   404 if the fileId does not exist.
+	 *         403 if the token is invalid.
+	 */
+	@GET
+	@Path("/{fileId}/manifest")
+	@Produces(MediaType.APPLICATION_JSON)
+	FileManifest getManifest(@PathParam("fileId") String fileId,
+			@QueryParam("token") @DefaultValue("") String token);
+
+	/**
+	 * Get the contents of a chunk of deduplicated files.
+	 * 
+	 * @param chunk - SHA-256 (in hex) of the chunk.
+	 * @param token - token for accessing the file server (must be a permanent token).
+	 * 
+	 * @return 200 if success + the chunk's contents;
+	 *		   404 if the chunk isn't stored.
+	 *         403 if the token is invalid.
+	 */
+	@GET
+	@Path("/chunks/{chunk}")
+	@Produces(MediaType.APPLICATION_OCTET_STREAM)
+	byte[] getChunk(@PathParam("chunk") String chunk,
+			@QueryParam("token") @DefaultValue("") String token);
+
+	/**
+	 * Get the differences between a file and a replica's copy of it, so the replica only
+	 * receives the blocks that changed.
+	 * 
+	 * @param fileId - unique id of the file.
+	 * @param signatures - the signatures of the blocks of the replica's copy.
+	 * @param token - token for accessing the file server (must be a permanent token).
+	 * 
+	 * @return 200 if success + the differences;
+	 * 		   204 if the server can't compute them.
+	 *		   404 if the fileId does not exist.
+	 *         403 if the token is invalid.
+	 */
+	@POST
+	@Path("/{fileId}/delta")
+	@Consumes(MediaType.APPLICATION_OCTET_STREAM)
+	@Produces(MediaType.APPLICATION_OCTET_STREAM)
+	StreamingOutput getDelta(@PathParam("fileId") String fileId, byte[] signatures,
+			@QueryParam("token") @DefaultValue("") String token);
+
+	/**
+	 * Get hashes of nodes of the Merkle tree summarizing the files this server replicates to
+	 * another, so the replica finds the files it stores differently level by level.
+	 * 
+	 * @param replica - URI of the server holding the replicas.
+	 * @param level - level of the nodes (0 for the root, 2 for the buckets).
+	 * @param nodes - indexes of the nodes in the level.
+	 * @param token - token for accessing the file server (must be a permanent token).
+	 * 
+	 * @return 200 if success + the nodes' hashes, in order;
+	 * 		   400 if a node doesn't exist.
+	 *         403 if the token is invalid.
+	 */
+	@GET
+	@Path("/merkle/nodes")
+	@Produces(MediaType.APPLICATION_JSON)
+	List<String> getMerkleNodes(@QueryParam("replica") String replica, @QueryParam("level") int level,
+			@QueryParam("node") List<Integer> nodes, @QueryParam("token") @DefaultValue("") String token);
+
+	/**
+	 * Get the content hashes of the files in buckets of that Merkle tree.
+	 * 
+	 * @param replica - URI of the server holding the replicas.
+	 * @param buckets - indexes of the buckets.
+	 * @param token - token for accessing the file server (must be a permanent token).
+	 * 
+	 * @return 200 if success + the SHA-256 of each file's contents, by file id;
+	 * 		   400 if a bucket doesn't exist.
+	 *         403 if the token is invalid.
+	 */
+	@GET
+	@Path("/merkle/entries")
+	@Produces(MediaType.APPLICATION_JSON)
+	Map<String, String> getMerkleEntries(@QueryParam("replica") String replica,
+			@QueryParam("bucket") List<Integer> buckets, @QueryParam("token") @DefaultValue("") String token);
+
+	/**
+	 * Answers without touching the storage or logging, so the directory can time this server's
+	 * response cheaply.
+	 * 
+	 * @return 204 always.
+	 */
+	@GET
+	@Path("/ping")
+	void ping();
 
 }
@@ -5,6 +5,7 @@ import java.util.List;
 import jakarta.jws.WebMethod;
 import jakarta.jws.WebService;
 import tp1.api.FileInfo;
+import tp1.api.FilePage;
 
 @WebService(serviceName=SoapDirectory.NAME, targetNamespace=SoapDirectory.NAMESPACE, endpointInterface=SoapDirectory.INTERFACE)
 public interface SoapDirectory {
@@ -23,6 +24,9 @@ public interface SoapDirectory {
 	@WebMethod
 	void deleteDirectory(String userId, String password, String token) throws DirectoryException;
 
+	@WebMethod
+	void invalidateUser(String userId, String token) throws DirectoryException;
+
 	@WebMethod
 	void shareFile(String filename, String userId, String userIdShare, String password) throws DirectoryException;
 
@@ -34,4 +38,10 @@ public interface SoapDirectory {
 
 	@WebMethod
 	List<FileInfo> lsFile(String userId, String password) throws DirectoryException;
+
+	@WebMethod
+	FilePage lsFilePage(String userId, String password, String cursor, int limit) throws DirectoryException;
+
+	@WebMethod
+	FilePage lsLocalFiles(String userId, String token, String cursor, int limit) throws DirectoryException;
 }
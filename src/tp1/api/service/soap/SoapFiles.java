@@ -18,4 +18,7 @@ public interface SoapFiles {
 	
 	@WebMethod
 	void writeFile(String fileId, byte[] data, String token) throws FilesException;	
+
+	@WebMethod
+	void ping();
 }
@@ -42,6 +42,9 @@ public final class ClientUtils {
     //Amount of milisseconds to sleep between retries of reTryAsync
     public static final int RETRY_ASYNC_SLEEP = 5000;
 
+    //Size of the chunks of streamed uploads (bounds the memory used per upload)
+    public static final int STREAM_CHUNK_SIZE = 64 * 1024;
+
     private ClientUtils(){}
     
     // client for rest connections
@@ -0,0 +1,59 @@
+package tp1.client;
+
+import tp1.client.rest.RestFilesClient;
+import tp1.client.soap.SoapFilesClient;
+import tp1.common.clients.FilesServerClient;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Clients of the files servers, shared by every caller instead of being built per request.
+ *
+ * Rest clients are thread safe and reuse the connections of the shared rest client, so each
+ * server has one. Soap stubs serialize their calls and fetch the WSDL when built, so each
+ * server has a few, built on first use and handed out in turn.
+ */
+public final class FilesClients {
+    // Number of soap stubs per server, bounding the concurrent calls to it
+    private static final int SOAP_STUBS = 4;
+
+    private static final Map<String, Peer> peers = new ConcurrentHashMap<>();
+
+    private FilesClients(){}
+
+    /**
+     * Returns a client of a files server
+     * @param uri the server's uri
+     * @return the client
+     */
+    public static FilesServerClient get(String uri){
+        return peers.computeIfAbsent(uri, Peer::new).next();
+    }
+
+    /**
+     * The clients of a files server
+     */
+    private static final class Peer {
+        private final String uri;
+        private final boolean rest;
+        private final FilesServerClient[] clients;
+        private final AtomicInteger turn = new AtomicInteger();
+
+        Peer(String uri){
+            this.uri = uri;
+            this.rest = uri.endsWith("rest");
+            this.clients = new FilesServerClient[rest ? 1 : SOAP_STUBS];
+        }
+
+        FilesServerClient next(){
+            int i = Math.floorMod(turn.getAndIncrement(), clients.length);
+            synchronized (clients) {
+                if(clients[i] == null)
+                    clients[i] = rest ? new RestFilesClient(uri) : new SoapFilesClient(uri);
+                return clients[i];
+            }
+        }
+    }
+}
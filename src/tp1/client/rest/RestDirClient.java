@@ -1,13 +1,21 @@
 package tp1.client.rest;
 
+import jakarta.ws.rs.client.Invocation;
 import jakarta.ws.rs.client.WebTarget;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
+import tp1.api.FilePage;
 import tp1.api.service.rest.RestDirectory;
 import tp1.api.service.rest.RestUsers;
 import tp1.client.ClientUtils;
 import tp1.common.clients.DirServerClient;
+import tp1.common.exceptions.RequestTimeoutException;
 import tp1.tokens.TokenManager;
 
+import java.util.function.Function;
+
 import static tp1.client.ClientUtils.reTryAsync;
+import static tp1.client.ClientUtils.reTrySafe;
 
 /**
  * Rest implementation for DirServerClient
@@ -22,10 +30,54 @@ public class RestDirClient implements DirServerClient {
 
     @Override
     public void deleteDirectoryAsync(String userId){
-        reTryAsync(()-> target.path(userId)
-                .queryParam("token", permanentToken).request()
-                .delete(),
+        reTryAsync(()-> toShardOwner(target.path(userId)
+                .queryParam("token", permanentToken), Invocation.Builder::delete),
                 (r)-> r.getStatus() != 400
         );
     }
+
+    @Override
+    public void invalidateUserAsync(String userId){
+        reTryAsync(()-> toShardOwner(target.path(userId).path(RestDirectory.USER_CACHE_PATH)
+                .queryParam("token", permanentToken), Invocation.Builder::delete),
+                (r)-> r.getStatus() != 400
+        );
+    }
+
+    @Override
+    public void invalidateUser(String userId) throws RequestTimeoutException {
+        Response r = reTrySafe(()-> toShardOwner(target.path(userId).path(RestDirectory.USER_CACHE_PATH)
+                .queryParam("token", permanentToken), Invocation.Builder::delete));
+        if(r == null || r.getStatusInfo().getFamily() != Response.Status.Family.SUCCESSFUL)
+            throw new RequestTimeoutException();
+    }
+
+    @Override
+    public FilePage lsLocalFiles(String userId, String cursor, int limit) throws RequestTimeoutException {
+        Response r = reTrySafe(()-> target.path(userId).path(RestDirectory.LOCAL_LS_PATH)
+                .queryParam("token", permanentToken)
+                .queryParam("cursor", cursor)
+                .queryParam("limit", limit).request()
+                .accept(MediaType.APPLICATION_JSON)
+                .get());
+        if(r.getStatus() != 200)
+            throw new RequestTimeoutException();
+        return r.readEntity(FilePage.class);
+    }
+
+    /**
+     * Sends a request about a user, following the redirect to the directory owning the user's
+     * shard, as redirects of deletes aren't followed by the client
+     * @param request the request's target
+     * @param method sends the request
+     * @return the owner's response
+     */
+    private static Response toShardOwner(WebTarget request, Function<Invocation.Builder, Response> method){
+        Response r = method.apply(request.request());
+        if(r.getStatus() == Response.Status.TEMPORARY_REDIRECT.getStatusCode() && r.getLocation() != null) {
+            r.close();
+            r = method.apply(ClientUtils.getRestClient().target(r.getLocation()).request());
+        }
+        return r;
+    }
 }
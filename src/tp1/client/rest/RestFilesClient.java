@@ -3,8 +3,13 @@ package tp1.client.rest;
 import jakarta.ws.rs.WebApplicationException;
 import jakarta.ws.rs.client.Entity;
 import jakarta.ws.rs.client.WebTarget;
+import jakarta.ws.rs.core.GenericType;
+import jakarta.ws.rs.core.HttpHeaders;
 import jakarta.ws.rs.core.MediaType;
 import jakarta.ws.rs.core.Response;
+import org.glassfish.jersey.client.ClientProperties;
+import org.glassfish.jersey.client.RequestEntityProcessing;
+import tp1.api.FileManifest;
 import tp1.api.service.rest.RestFiles;
 import tp1.client.ClientUtils;
 import tp1.common.clients.FilesServerClient;
@@ -14,7 +19,12 @@ import tp1.common.services.DirectoryService;
 import tp1.tokens.TemporaryToken;
 import tp1.tokens.TokenManager;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
 import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
 import static tp1.client.ClientUtils.reTrySafe;
 
 /**
@@ -23,6 +33,7 @@ import static tp1.client.ClientUtils.reTrySafe;
 public class RestFilesClient implements FilesServerClient {
     private final String permanentToken = TokenManager.serializeToken(TokenManager.createPermanentToken());
     private static Logger Log = Logger.getLogger(RestFilesClient.class.getName());
+    private static final String GZIP_ENCODING = "gzip";
 
     private WebTarget target;
     private String uri;
@@ -85,6 +96,20 @@ public class RestFilesClient implements FilesServerClient {
                 .post(Entity.entity(data, MediaType.APPLICATION_OCTET_STREAM)), maxRetries);
     }
 
+    @Override
+    public void writeFile(String fileId, InputStream data) throws RequestTimeoutException {
+        // sent with chunked transfer, so the contents are never buffered whole
+        Response r = ClientUtils.reTrySafe(()-> fileTarget(fileId, permanentToken)
+                .request()
+                .property(ClientProperties.REQUEST_ENTITY_PROCESSING, RequestEntityProcessing.CHUNKED)
+                .property(ClientProperties.CHUNKED_ENCODING_SIZE, ClientUtils.STREAM_CHUNK_SIZE)
+                .post(Entity.entity(data, MediaType.APPLICATION_OCTET_STREAM)), 1);
+        if(r == null || r.getStatusInfo().getFamily() != Response.Status.Family.SUCCESSFUL) {
+            Log.info("Streamed write of " + fileId + " rejected");
+            throw new RequestTimeoutException();
+        }
+    }
+
     @Override
     public void deleteFileAsync(String fileId) {
         ClientUtils.reTryAsync(
@@ -122,4 +147,134 @@ public class RestFilesClient implements FilesServerClient {
                 .get());
         return r.readEntity(byte[].class);
     }
+
+    @Override
+    public InputStream getFileStream(String fileId) throws RequestTimeoutException, InvalidFileLocationException {
+        Response r = reTrySafe(()-> target
+                .path(fileId)
+                .queryParam("token", permanentToken)
+                .request()
+                .accept(MediaType.APPLICATION_OCTET_STREAM)
+                .header(HttpHeaders.ACCEPT_ENCODING, GZIP_ENCODING) // compressed files are sent as stored
+                .get());
+        if(r == null)
+            throw new RequestTimeoutException();
+        if(r.getStatus() != Response.Status.OK.getStatusCode()) {
+            r.close();
+            if(r.getStatus() == Response.Status.NOT_FOUND.getStatusCode())
+                throw new InvalidFileLocationException();
+            throw new RequestTimeoutException();
+        }
+        InputStream data = r.readEntity(InputStream.class);
+        if(!GZIP_ENCODING.equalsIgnoreCase(r.getHeaderString(HttpHeaders.CONTENT_ENCODING)))
+            return data;
+        try {
+            return new GZIPInputStream(data, ClientUtils.STREAM_CHUNK_SIZE);
+        } catch (IOException e) {
+            r.close();
+            throw new RequestTimeoutException();
+        }
+    }
+
+    @Override
+    public FileManifest getManifest(String fileId) throws RequestTimeoutException, InvalidFileLocationException {
+        Response r = reTrySafe(()-> target
+                .path(fileId).path("manifest")
+                .queryParam("token", permanentToken)
+                .request()
+                .accept(MediaType.APPLICATION_JSON)
+                .get());
+        if(r == null)
+            throw new RequestTimeoutException();
+        if(r.getStatus() == Response.Status.NOT_FOUND.getStatusCode())
+            throw new InvalidFileLocationException();
+        if(r.getStatus() != Response.Status.OK.getStatusCode()) // not deduplicated
+            return null;
+        return r.readEntity(FileManifest.class);
+    }
+
+    @Override
+    public byte[] getChunk(String chunk) throws RequestTimeoutException, InvalidFileLocationException {
+        Response r = reTrySafe(()-> target
+                .path("chunks").path(chunk)
+                .queryParam("token", permanentToken)
+                .request()
+                .accept(MediaType.APPLICATION_OCTET_STREAM)
+                .get());
+        if(r == null)
+            throw new RequestTimeoutException();
+        if(r.getStatus() != Response.Status.OK.getStatusCode())
+            throw new InvalidFileLocationException();
+        return r.readEntity(byte[].class);
+    }
+
+    @Override
+    public InputStream getDelta(String fileId, byte[] signatures) throws RequestTimeoutException, InvalidFileLocationException {
+        Response r = reTrySafe(()-> target
+                .path(fileId).path("delta")
+                .queryParam("token", permanentToken)
+                .request()
+                .accept(MediaType.APPLICATION_OCTET_STREAM)
+                .post(Entity.entity(signatures, MediaType.APPLICATION_OCTET_STREAM)));
+        if(r == null)
+            throw new RequestTimeoutException();
+        if(r.getStatus() == Response.Status.NOT_FOUND.getStatusCode())
+            throw new InvalidFileLocationException();
+        if(r.getStatus() != Response.Status.OK.getStatusCode()) { // can't compute the differences
+            r.close();
+            return null;
+        }
+        return r.readEntity(InputStream.class);
+    }
+
+    @Override
+    public List<String> getMerkleNodes(String replica, int level, List<Integer> nodes) throws RequestTimeoutException {
+        Response r = reTrySafe(()-> target
+                .path("merkle").path("nodes")
+                .queryParam("replica", replica)
+                .queryParam("level", level)
+                .queryParam("node", nodes.toArray())
+                .queryParam("token", permanentToken)
+                .request()
+                .accept(MediaType.APPLICATION_JSON)
+                .get());
+        if(r == null)
+            throw new RequestTimeoutException();
+        if(r.getStatus() != Response.Status.OK.getStatusCode()) { // can't summarize its files
+            r.close();
+            return null;
+        }
+        return r.readEntity(new GenericType<List<String>>(){});
+    }
+
+    @Override
+    public Map<String, String> getMerkleEntries(String replica, List<Integer> buckets) throws RequestTimeoutException {
+        Response r = reTrySafe(()-> target
+                .path("merkle").path("entries")
+                .queryParam("replica", replica)
+                .queryParam("bucket", buckets.toArray())
+                .queryParam("token", permanentToken)
+                .request()
+                .accept(MediaType.APPLICATION_JSON)
+                .get());
+        if(r == null)
+            throw new RequestTimeoutException();
+        if(r.getStatus() != Response.Status.OK.getStatusCode()) { // can't summarize its files
+            r.close();
+            return null;
+        }
+        return r.readEntity(new GenericType<Map<String, String>>(){});
+    }
+
+    @Override
+    public void ping() throws RequestTimeoutException {
+        // a single attempt, so retries never count in the measured time
+        Response r = reTrySafe(()-> target
+                .path("ping")
+                .request()
+                .get(), 1);
+        if(r == null)
+            throw new RequestTimeoutException();
+        r.close();
+    }
 }
@@ -1,9 +1,11 @@
 package tp1.client.soap;
 
+import tp1.api.FilePage;
 import tp1.api.service.soap.DirectoryException;
 import tp1.api.service.soap.SoapDirectory;
 import tp1.client.ClientUtils;
 import tp1.common.clients.DirServerClient;
+import tp1.common.exceptions.RequestTimeoutException;
 import tp1.server.soap.SoapUtils;
 import tp1.tokens.TokenManager;
 
@@ -31,4 +33,43 @@ public class SoapDirClient implements DirServerClient {
             return true;
         }, (b) -> b);
     }
+
+    @Override
+    public synchronized void invalidateUserAsync(String userId) {
+        ClientUtils.reTryAsync(()-> {
+            try {
+                server.invalidateUser(userId, permanentToken);
+            } catch (DirectoryException e) {
+                if (e.getMessage().equals(SoapUtils.BAD_REQUEST)){
+                    return false;
+                }
+            }
+            return true;
+        }, (b) -> b);
+    }
+
+    @Override
+    public synchronized void invalidateUser(String userId) throws RequestTimeoutException {
+        try {
+            ClientUtils.reTry(()-> {
+                server.invalidateUser(userId, permanentToken);
+                return null;
+            });
+        } catch (RequestTimeoutException e){
+            throw e;
+        } catch (Exception e) {
+            throw new RequestTimeoutException();
+        }
+    }
+
+    @Override
+    public synchronized FilePage lsLocalFiles(String userId, String cursor, int limit) throws RequestTimeoutException {
+        try {
+            return ClientUtils.reTry(()->server.lsLocalFiles(userId, permanentToken, cursor, limit));
+        } catch (RequestTimeoutException e){
+            throw e;
+        } catch (Exception e) {
+            throw new RequestTimeoutException();
+        }
+    }
 }
@@ -1,5 +1,6 @@
 package tp1.client.soap;
 
+import tp1.api.FileManifest;
 import tp1.api.service.soap.FilesException;
 import tp1.api.service.soap.SoapFiles;
 import tp1.client.ClientUtils;
@@ -9,6 +10,12 @@ import tp1.common.exceptions.RequestTimeoutException;
 import tp1.server.soap.SoapUtils;
 import tp1.tokens.TokenManager;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
+
 /**
  * Soap implementation for FilesServerClient
  */
@@ -46,6 +53,18 @@ public class SoapFilesClient implements FilesServerClient {
         }
     }
 
+    @Override
+    public void writeFile(String fileId, InputStream data) throws RequestTimeoutException {
+        // soap messages carry the whole contents, so they must be read into memory
+        byte[] contents;
+        try {
+            contents = data.readAllBytes();
+        } catch (IOException e) {
+            throw new RequestTimeoutException();
+        }
+        writeFile(fileId, contents, 1);
+    }
+
     @Override
     public synchronized void deleteFileAsync(String fileId) {
         ClientUtils.reTryAsync(()->{
@@ -91,4 +110,44 @@ public class SoapFilesClient implements FilesServerClient {
             } else throw new RuntimeException(e);
         }
     }
+
+    @Override
+    public InputStream getFileStream(String fileId) throws RequestTimeoutException, InvalidFileLocationException {
+        // soap messages carry the whole contents, so they're already in memory
+        return new ByteArrayInputStream(getFile(fileId));
+    }
+
+    @Override
+    public FileManifest getManifest(String fileId) {
+        return null; //Not implemented on soap, files are copied whole
+    }
+
+    @Override
+    public byte[] getChunk(String chunk) throws InvalidFileLocationException {
+        throw new InvalidFileLocationException(); //Not implemented on soap
+    }
+
+    @Override
+    public InputStream getDelta(String fileId, byte[] signatures) {
+        return null; //Not implemented on soap, files are copied whole
+    }
+
+    @Override
+    public List<String> getMerkleNodes(String replica, int level, List<Integer> nodes) {
+        return null; //Not implemented on soap, replicas aren't reconciled
+    }
+
+    @Override
+    public Map<String, String> getMerkleEntries(String replica, List<Integer> buckets) {
+        return null; //Not implemented on soap, replicas aren't reconciled
+    }
+
+    @Override
+    public void ping() throws RequestTimeoutException {
+        // a single attempt, so retries never count in the measured time
+        ClientUtils.reTrySafe(()->{
+            server.ping();
+            return null;
+        }, 1);
+    }
 }
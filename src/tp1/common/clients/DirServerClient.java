@@ -1,5 +1,7 @@
 package tp1.common.clients;
 
+import tp1.api.FilePage;
+import tp1.common.exceptions.RequestTimeoutException;
 
 /**
  * Minimal client interface with directory operations required by some services
@@ -11,4 +13,28 @@ public interface DirServerClient {
      */
     void deleteDirectoryAsync(String userId);
 
+    /**
+     * Makes the directory forget cached information on a user, without waiting for the answer
+     * @param userId the user that was updated or deleted
+     */
+    void invalidateUserAsync(String userId);
+
+    /**
+     * Makes the directory forget cached information on a user
+     * @param userId the user that was updated or deleted
+     * @throws RequestTimeoutException if the directory doesn't respond
+     */
+    void invalidateUser(String userId) throws RequestTimeoutException;
+
+    /**
+     * Lists a page of the files stored by the directory that are visible to a user
+     * (only the files of the users in the directory's shard)
+     * @param userId the user whose files are listed
+     * @param cursor the cursor returned by the previous page (null for the first page)
+     * @param limit maximum number of files in the page
+     * @return the page
+     * @throws RequestTimeoutException if the directory doesn't respond
+     */
+    FilePage lsLocalFiles(String userId, String cursor, int limit) throws RequestTimeoutException;
+
 }
@@ -1,8 +1,13 @@
 package tp1.common.clients;
 
+import tp1.api.FileManifest;
 import tp1.common.exceptions.InvalidFileLocationException;
 import tp1.common.exceptions.RequestTimeoutException;
 
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
+
 /**
  * Minimal client interface with files operations required by some services
  */
@@ -28,6 +33,16 @@ public interface FilesServerClient {
      */
     void writeFile(String fileId, byte[] data, int maxRetries) throws RequestTimeoutException;
 
+    /**
+     * Write a file, streaming its contents as they are read. If the file exists, overwrites the contents.
+     * The stream can only be read once, so the write is never retried.
+     *
+     * @param fileId - unique id of the file.
+     * @param data - the file's contents.
+     * @throws RequestTimeoutException if the server didn't accept the file.
+     */
+    void writeFile(String fileId, InputStream data) throws RequestTimeoutException;
+
     /**
      * Tries to delete an existing file but doesn't wait for the answer.
      *
@@ -71,5 +86,74 @@ public interface FilesServerClient {
      * @throws InvalidFileLocationException if the server has no file with the given id.
      */
     byte[] getFile(String fileId, long version) throws RequestTimeoutException, InvalidFileLocationException;
-}
 
+    /**
+     * Gets the file specified by fileId as a stream, read as it arrives instead of in memory
+     *
+     * @param fileId - unique id of the file.
+     * @return the file's contents, to be read and closed by the caller
+     * @throws RequestTimeoutException      if the response takes too long to arrive.
+     * @throws InvalidFileLocationException if the server has no file with the given id.
+     */
+    InputStream getFileStream(String fileId) throws RequestTimeoutException, InvalidFileLocationException;
+
+    /**
+     * Gets the chunks a deduplicated file is made of
+     *
+     * @param fileId - unique id of the file.
+     * @return the file's manifest, or null if the server doesn't deduplicate files
+     * @throws RequestTimeoutException      if the response takes too long to arrive.
+     * @throws InvalidFileLocationException if the server has no file with the given id.
+     */
+    FileManifest getManifest(String fileId) throws RequestTimeoutException, InvalidFileLocationException;
+
+    /**
+     * Gets a chunk of deduplicated files
+     *
+     * @param chunk - SHA-256 (in hex) of the chunk.
+     * @return the chunk's contents
+     * @throws RequestTimeoutException      if the response takes too long to arrive.
+     * @throws InvalidFileLocationException if the server doesn't store the chunk.
+     */
+    byte[] getChunk(String chunk) throws RequestTimeoutException, InvalidFileLocationException;
+
+    /**
+     * Gets the differences between a file and a local copy of it
+     *
+     * @param fileId - unique id of the file.
+     * @param signatures - the signatures of the blocks of the local copy.
+     * @return the differences, to be read and closed by the caller, or null if the server can't compute them
+     * @throws RequestTimeoutException      if the response takes too long to arrive.
+     * @throws InvalidFileLocationException if the server has no file with the given id.
+     */
+    InputStream getDelta(String fileId, byte[] signatures) throws RequestTimeoutException, InvalidFileLocationException;
+
+    /**
+     * Gets hashes of nodes of the Merkle tree of the files this server replicates to another
+     *
+     * @param replica - URI of the server holding the replicas.
+     * @param level - level of the nodes in the tree (0 for the root).
+     * @param nodes - indexes of the nodes in the level.
+     * @return the nodes' hashes, in order, or null if the server can't summarize its files
+     * @throws RequestTimeoutException      if the response takes too long to arrive.
+     */
+    List<String> getMerkleNodes(String replica, int level, List<Integer> nodes) throws RequestTimeoutException;
+
+    /**
+     * Gets the content hashes of the files in buckets of the Merkle tree of the files this server
+     * replicates to another
+     *
+     * @param replica - URI of the server holding the replicas.
+     * @param buckets - indexes of the buckets.
+     * @return the content hash of each file, by id, or null if the server can't summarize its files
+     * @throws RequestTimeoutException      if the response takes too long to arrive.
+     */
+    Map<String, String> getMerkleEntries(String replica, List<Integer> buckets) throws RequestTimeoutException;
+
+    /**
+     * Sends a request answered by the server without reading any file, once, so it can be timed
+     *
+     * @throws RequestTimeoutException      if the response takes too long to arrive.
+     */
+    void ping() throws RequestTimeoutException;
+}
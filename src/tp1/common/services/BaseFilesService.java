@@ -1,9 +1,12 @@
 package tp1.common.services;
 
+import tp1.api.FileManifest;
+import tp1.client.FilesClients;
 import tp1.client.rest.RestFilesClient;
 import tp1.client.soap.SoapFilesClient;
 import tp1.common.ServerUtils;
 import tp1.common.clients.FilesServerClient;
+import tp1.common.exceptions.InvalidArgumentException;
 import tp1.common.exceptions.InvalidFileLocationException;
 import tp1.common.exceptions.InvalidTokenException;
 import tp1.common.exceptions.RequestTimeoutException;
@@ -16,7 +19,18 @@ import tp1.tokens.PermanentToken;
 import tp1.tokens.TemporaryToken;
 import tp1.tokens.Token;
 import tp1.tokens.TokenManager;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 import java.util.logging.Logger;
 
 public abstract class BaseFilesService implements FilesService{
@@ -30,59 +44,142 @@ public abstract class BaseFilesService implements FilesService{
             .createSubscriber(KafkaUtils.KAFKA_BROKERS, TOPICS, KafkaUtils.FROM_BEGINNING);
     protected final SyncPoint<String> syncPoint = SyncPoint.getInstance();
 
+    // Reads the files of asynchronous requests once their version is reached
+    private final ExecutorService readExecutor = Executors.newCachedThreadPool();
+
+    // Applies the operations of different files concurrently, so a slow replication only delays
+    // the later operations of the same file
+    private static final int REPLICATION_THREADS = 8;
+    private final ExecutorService replicationExecutor = Executors.newFixedThreadPool(REPLICATION_THREADS);
+    // last operation of each file still being applied (removed once applied)
+    private final Map<String, CompletableFuture<Void>> pendingOperations = new ConcurrentHashMap<>();
+
+    // Seconds between comparisons of this server's replicas with their sources
+    private static final int RECONCILIATION_PERIOD = 60;
+    // source and holders of each file this server holds, as of the last operation received
+    private final Map<String, ReplicaSet> replicaSets = new ConcurrentHashMap<>();
+    // tree of the files replicated to each holder, built when the holder asks for the root and
+    // reused while it descends, so a comparison hashes the files once
+    private final Map<String, ServedTree> servedTrees = new ConcurrentHashMap<>();
+
+    /**
+     * The servers holding a file
+     * @param source the server the replicas copy the file from
+     * @param holders the servers that should store it (including the source)
+     */
+    private record ReplicaSet(String source, Set<String> holders){}
+
+    /**
+     * The Merkle tree of the files replicated to a holder, as of a comparison
+     * @param tree the tree
+     * @param built when it was built (in milliseconds)
+     */
+    private record ServedTree(MerkleTree tree, long built){}
+
     protected BaseFilesService(Logger log){
         Log = log;
+        KafkaUtils.createTopic(KafkaUtils.DIR_FILES_TOPIC, KafkaUtils.DIR_FILES_PARTITIONS, 1);
+    }
+
+    /**
+     * Starts applying the operations of the directory. Must be called at the end of the
+     * subclass' constructor, since operations may need its state to be initialized.
+     */
+    protected final void startReplication(){
         subscriber.startWithOp(false, this::executeOperation);
+        ScheduledExecutorService reconciler = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "anti-entropy");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reconciler.scheduleWithFixedDelay(this::reconcile, RECONCILIATION_PERIOD, RECONCILIATION_PERIOD,
+                TimeUnit.SECONDS);
     }
 
     private void replicate(String serverUri, String fileId) {
         Log.info("Replicating file " + fileId + " from " + serverUri);
-        FilesServerClient client;
-        if(serverUri.endsWith("rest")){
-            client = new RestFilesClient(serverUri);
-        } else {
-            client = new SoapFilesClient(serverUri);
-        }
+        FilesServerClient client = FilesClients.get(serverUri);
         try{
-            byte[] data = client.getFile(fileId);
-            writeFile(fileId, data);
+            copyFrom(client, fileId);
         } catch (RequestTimeoutException | InvalidFileLocationException | UnexpectedErrorException e) {
             Log.severe("Unexpected exception of type " + e.getClass().getName() + " during replication");
         }
     }
 
+    /**
+     * Copies a file from another server. Transfers the whole file by default, streamed to the
+     * write as it arrives, so services able to transfer only what they don't store yet should
+     * override it.
+     * @param source the server storing the file
+     * @param fileId the file's id
+     * @throws RequestTimeoutException if the source didn't reply
+     * @throws InvalidFileLocationException if the source doesn't store the file
+     * @throws UnexpectedErrorException if the transfer or the write failed
+     */
+    protected void copyFrom(FilesServerClient source, String fileId)
+            throws RequestTimeoutException, InvalidFileLocationException, UnexpectedErrorException {
+        try (InputStream data = source.getFileStream(fileId)) {
+            writeFile(fileId, data);
+        } catch (IOException e) { // only thrown by close
+            Log.fine("Failed to close the stream of " + fileId + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Applies an operation. The consumer thread only decides what to do with the file, which is
+     * done by the replication workers, so the version advances without waiting for it.
+     */
     private void executeOperation(Operation operation, long offset){
         String uri = ServerUtils.getUri();
         Log.info("Operation received: " + operation.opName());
         if(operation instanceof FileOperation){
             if(operation instanceof Create op){
-                if (op.original().equals(uri)){
+                if(op.replicas().contains(uri))
+                    replicaSets.put(op.fileId(), new ReplicaSet(op.original(), op.replicas()));
+                if (op.original().equals(uri) || op.pushed().contains(uri)){
                     files.add(op.fileId());
                 } else if(op.replicas().contains(uri)) {
-                    replicate(op.original(), op.fileId());
+                    inOrder(op.fileId(), () -> replicate(op.original(), op.fileId()));
                     files.add(op.fileId());
                 }
             } else if(operation instanceof Move op){
+                if(op.replicas().contains(uri))
+                    replicaSets.put(op.fileId(), new ReplicaSet(op.original(), op.replicas()));
+                else
+                    replicaSets.remove(op.fileId());
                 if(!op.original().equals(uri)){
                     boolean isReplica = op.replicas().contains(uri);
                     if(isReplica && !files.contains(op.fileId())){
-                        replicate(op.original(), op.fileId());
+                        inOrder(op.fileId(), () -> replicate(op.original(), op.fileId()));
                     } else if(!isReplica && files.contains(op.fileId())){
-                        try {
-                            deleteFile(op.fileId());
-                        } catch (InvalidFileLocationException ignored){}
+                        inOrder(op.fileId(), () -> deleteQuietly(op.fileId()));
                     }
                 }
             } else if (operation instanceof Edit op){
-                if(!op.original().equals(uri) &&
+                invalidateCached(op.fileId());
+                replicaSets.computeIfPresent(op.fileId(), (id, set) -> new ReplicaSet(op.original(), set.holders()));
+                if(!op.original().equals(uri) && !op.pushed().contains(uri) &&
                         files.contains(op.fileId())) {
-                    replicate(op.original(), op.fileId());
+                    inOrder(op.fileId(), () -> replicate(op.original(), op.fileId()));
+                }
+            } else if (operation instanceof DeleteDirectory op){
+                List<String> stored = op.fileIds().get(uri);
+                if(stored != null){
+                    List<String> deleting = new ArrayList<>(stored.size());
+                    for(String fileId : stored){
+                        replicaSets.remove(fileId);
+                        if(!files.remove(fileId))
+                            continue;
+                        invalidateCached(fileId);
+                        deleting.add(fileId);
+                    }
+                    deleteInOrder(deleting);
                 }
             } else if (operation instanceof Delete op){
+                invalidateCached(op.fileId());
+                replicaSets.remove(op.fileId());
                 if(files.contains(op.fileId())){
-                    try {
-                        deleteFile(op.fileId());
-                    } catch (InvalidFileLocationException ignored){}
+                    inOrder(op.fileId(), () -> deleteQuietly(op.fileId()));
                     files.remove(op.fileId());
                 }
             }
@@ -91,6 +188,192 @@ public abstract class BaseFilesService implements FilesService{
         Log.info("Version set to " + offset);
     }
 
+    /**
+     * Applies an operation on a file once the file's previous operations are applied
+     * (called by the consumer thread, and by the reconciliation to repair files)
+     * @param fileId the file's id
+     * @param operation the operation
+     */
+    private void inOrder(String fileId, Runnable operation){
+        inOrder(fileId, () -> CompletableFuture.runAsync(() -> {
+            try {
+                operation.run();
+            } catch (RuntimeException e) {
+                Log.severe("Operation on " + fileId + " failed: " + e.getMessage());
+            }
+        }, replicationExecutor));
+    }
+
+    /**
+     * Starts an operation on a file once the file's previous operations are applied
+     * @param fileId the file's id
+     * @param operation starts the operation, returning a future completed (normally) once it's applied
+     */
+    private void inOrder(String fileId, Supplier<CompletableFuture<Void>> operation){
+        CompletableFuture<Void> applied = pendingOperations.compute(fileId, (id, previous) ->
+                (previous == null ? CompletableFuture.<Void>completedFuture(null) : previous)
+                        .thenCompose(ignored -> operation.get()));
+        applied.thenRun(() -> pendingOperations.remove(fileId, applied));
+    }
+
+    /**
+     * Deletes files in a single batch once the previous operations of all of them are applied,
+     * including repairs started by the reconciliation, and before any of their later ones
+     * @param fileIds the files' ids
+     */
+    private void deleteInOrder(List<String> fileIds){
+        CompletableFuture<Void> deleted = new CompletableFuture<>();
+        AtomicInteger waiting = new AtomicInteger(fileIds.size());
+        for (String fileId : fileIds) {
+            inOrder(fileId, () -> {
+                // the last file ready deletes them all, while the others wait without a thread
+                if(waiting.decrementAndGet() == 0) {
+                    deleted.completeAsync(() -> {
+                        try {
+                            deleteFiles(fileIds);
+                        } catch (RuntimeException e) {
+                            Log.severe("Deleting " + fileIds.size() + " files failed: " + e.getMessage());
+                        }
+                        return null;
+                    }, replicationExecutor);
+                }
+                return deleted;
+            });
+        }
+    }
+
+    /**
+     * Completes once the operations of a file received so far are applied, so readers wait for
+     * the replication of the file they read but not for the others'
+     * @param fileId the file's id
+     * @return the future
+     */
+    protected CompletableFuture<Void> operationsApplied(String fileId){
+        CompletableFuture<Void> pending = pendingOperations.get(fileId);
+        return pending == null ? CompletableFuture.completedFuture(null) : pending;
+    }
+
+    /**
+     * Compares the files this server holds with their sources' copies, repairing those that
+     * differ. Repairs missed or failed replications, which the operations alone never retry.
+     */
+    private void reconcile(){
+        String uri = ServerUtils.getUri();
+        Set<String> sources = new HashSet<>();
+        replicaSets.values().forEach(set -> {
+            if(!set.source().equals(uri) && set.holders().contains(uri))
+                sources.add(set.source());
+        });
+        for (String source : sources) {
+            try {
+                reconcileWith(source, uri);
+            } catch (RequestTimeoutException e) {
+                Log.info("Source " + source + " unreachable for reconciliation");
+            } catch (RuntimeException e) {
+                Log.severe("Reconciliation with " + source + " failed: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Descends the Merkle trees of this server's and a source's copies of the files the source
+     * replicates to it, from the root down to the buckets that differ, and fetches again the
+     * files of those buckets whose contents differ. Files only this server lists are left to the
+     * operations it hasn't received yet.
+     * @param source the source's uri
+     * @param uri this server's uri
+     * @throws RequestTimeoutException if the source didn't reply
+     */
+    private void reconcileWith(String source, String uri) throws RequestTimeoutException {
+        FilesServerClient client = FilesClients.get(source);
+        Map<String, String> digests = digests(source, uri);
+        MerkleTree tree = new MerkleTree(digests);
+        List<Integer> nodes = List.of(0);
+        for (int level = 0; level <= MerkleTree.DEPTH; level++) {
+            List<String> others = client.getMerkleNodes(uri, level, nodes);
+            if(others == null) // the source can't summarize its files
+                return;
+            nodes = tree.differing(level, nodes, others);
+            if(nodes.isEmpty())
+                return;
+            if(level < MerkleTree.DEPTH)
+                nodes = MerkleTree.children(nodes);
+        }
+        Map<String, String> entries = client.getMerkleEntries(uri, nodes);
+        if(entries == null)
+            return;
+        int repairs = 0;
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            String fileId = entry.getKey();
+            if(entry.getValue().equals(digests.get(fileId)) || !isSourcedBy(fileId, source, uri)
+                    || pendingOperations.containsKey(fileId))
+                continue;
+            // the file may have been moved or deleted by the time the repair runs
+            inOrder(fileId, () -> {
+                if(isSourcedBy(fileId, source, uri))
+                    replicate(source, fileId);
+            });
+            repairs++;
+        }
+        Log.info("Reconciliation with " + source + ": " + nodes.size() + " buckets differ, "
+                + repairs + " files repaired");
+    }
+
+    private boolean isSourcedBy(String fileId, String source, String holder){
+        ReplicaSet set = replicaSets.get(fileId);
+        return set != null && set.source().equals(source) && set.holders().contains(holder);
+    }
+
+    /**
+     * Hashes the files a source replicates to a holder, as far as this server stores them
+     * @param source the source's uri
+     * @param holder the holder's uri
+     * @return the content hash of each file stored
+     */
+    private Map<String, String> digests(String source, String holder){
+        Map<String, String> digests = new HashMap<>();
+        replicaSets.forEach((fileId, set) -> {
+            if(!set.source().equals(source) || !set.holders().contains(holder))
+                return;
+            try {
+                digests.put(fileId, contentHash(fileId));
+            } catch (InvalidFileLocationException ignored) { // missing, so it differs
+            } catch (UnexpectedErrorException e) {
+                Log.info("Failed to hash " + fileId + " for reconciliation");
+            }
+        });
+        return digests;
+    }
+
+    /**
+     * Hashes the contents of a file. Reads the whole file by default, so services able to
+     * remember the hashes should override it.
+     * @param fileId the file's id
+     * @return the SHA-256 (in hex) of the file's contents
+     * @throws InvalidFileLocationException if there is no such file
+     * @throws UnexpectedErrorException if the file couldn't be read
+     */
+    protected String contentHash(String fileId) throws InvalidFileLocationException, UnexpectedErrorException {
+        try {
+            return MerkleTree.digest(readFile(fileId, null, null, false));
+        } catch (IOException e) {
+            throw new UnexpectedErrorException();
+        }
+    }
+
+    /**
+     * Drops a file from the service's caches (of contents or hashes), if it has any, since its
+     * contents changed
+     * @param fileId the file's id
+     */
+    protected void invalidateCached(String fileId){}
+
+    private void deleteQuietly(String fileId){
+        try {
+            deleteFile(fileId);
+        } catch (InvalidFileLocationException ignored){}
+    }
+
     @Override
     public void writeFile(String fileId, byte[] data, String token) throws UnexpectedErrorException, InvalidTokenException {
         Log.info("writeFile : " + fileId + "\n token: " + token);
@@ -100,6 +383,29 @@ public abstract class BaseFilesService implements FilesService{
 
     protected abstract void writeFile(String fileId, byte[] data) throws UnexpectedErrorException;
 
+    @Override
+    public void writeFile(String fileId, InputStream data, String token) throws UnexpectedErrorException, InvalidTokenException {
+        Log.info("writeFile (stream) : " + fileId + "\n token: " + token);
+        validateToken(token, fileId, true);
+        writeFile(fileId, data);
+    }
+
+    /**
+     * Writes a file from a stream. Reads the whole stream by default, so services able to write
+     * the contents as they arrive should override it.
+     * @param fileId the file's id
+     * @param data the file's contents
+     * @throws UnexpectedErrorException if the stream or the write failed
+     */
+    protected void writeFile(String fileId, InputStream data) throws UnexpectedErrorException {
+        try {
+            writeFile(fileId, data.readAllBytes());
+        } catch (IOException e) {
+            Log.info(String.format("throw UnexpectedError: IO Exception (%s)", e.getMessage()));
+            throw new UnexpectedErrorException();
+        }
+    }
+
     @Override
     public void deleteFile(String fileId, String token) throws InvalidFileLocationException, InvalidTokenException {
         Log.info("deleteFile : " + fileId + "\n token: " + token);
@@ -108,6 +414,115 @@ public abstract class BaseFilesService implements FilesService{
     }
     protected abstract void deleteFile(String fileId) throws InvalidFileLocationException;
 
+    /**
+     * Deletes many files at once, ignoring those that don't exist
+     * @param fileIds the files' ids
+     */
+    protected void deleteFiles(List<String> fileIds){
+        for(String fileId : fileIds){
+            try {
+                deleteFile(fileId);
+            } catch (InvalidFileLocationException ignored){}
+        }
+    }
+
+    @Override
+    public CompletableFuture<byte[]> getFileAsync(String fileId, String token, long version) throws InvalidTokenException {
+        validateToken(token, fileId);
+        return syncPoint.versionFuture(version).thenCompose(reached -> operationsApplied(fileId))
+                .thenApplyAsync(applied -> {
+                    try {
+                        return getFile(fileId, token, -1);
+                    } catch (UnexpectedErrorException | InvalidFileLocationException | InvalidTokenException e) {
+                        throw new CompletionException(e);
+                    }
+                }, readExecutor);
+    }
+
+    @Override
+    public CompletableFuture<FileSlice> getFileRangeAsync(String fileId, String token, Map<Integer, Long> versions,
+                                                          ByteRange range, String ifRange, boolean gzip) throws InvalidTokenException {
+        validateToken(token, fileId);
+        return syncPoint.versionsFuture(versions).thenCompose(reached -> operationsApplied(fileId))
+                .thenApplyAsync(applied -> {
+                    try {
+                        return readFile(fileId, range, ifRange, gzip);
+                    } catch (UnexpectedErrorException | InvalidFileLocationException e) {
+                        throw new CompletionException(e);
+                    }
+                }, readExecutor);
+    }
+
+    /**
+     * Reads a file or the range of it requested by a client
+     * @param fileId the file's id
+     * @param range the requested range (null for the whole file)
+     * @param ifRange the If-Range header's value (null if absent)
+     * @param gzip whether the client accepts gzip encoded contents
+     * @return the contents read
+     * @throws UnexpectedErrorException if the read failed
+     * @throws InvalidFileLocationException if there is no such file
+     */
+    protected abstract FileSlice readFile(String fileId, ByteRange range, String ifRange, boolean gzip)
+            throws UnexpectedErrorException, InvalidFileLocationException;
+
+    @Override
+    public FileManifest getManifest(String fileId, String token)
+            throws InvalidTokenException, InvalidFileLocationException, UnexpectedErrorException {
+        validateToken(token, fileId, true);
+        return null;
+    }
+
+    @Override
+    public byte[] getChunk(String chunk, String token)
+            throws InvalidTokenException, InvalidFileLocationException, UnexpectedErrorException {
+        validateToken(token, chunk, true);
+        throw new InvalidFileLocationException();
+    }
+
+    @Override
+    public FileDelta getDelta(String fileId, byte[] signatures, String token)
+            throws InvalidTokenException, InvalidFileLocationException, UnexpectedErrorException {
+        validateToken(token, fileId, true);
+        return null;
+    }
+
+    @Override
+    public List<String> getMerkleNodes(String replica, int level, List<Integer> nodes, String token)
+            throws InvalidTokenException, InvalidArgumentException {
+        validateToken(token, replica, true);
+        if(!MerkleTree.exists(level, nodes))
+            throw new InvalidArgumentException();
+        // the holder starts each comparison from the root
+        return servedTree(replica, level == 0).hashes(level, nodes);
+    }
+
+    @Override
+    public Map<String, String> getMerkleEntries(String replica, List<Integer> buckets, String token)
+            throws InvalidTokenException, InvalidArgumentException {
+        validateToken(token, replica, true);
+        if(!MerkleTree.exists(MerkleTree.DEPTH, buckets))
+            throw new InvalidArgumentException();
+        return servedTree(replica, false).entries(buckets);
+    }
+
+    /**
+     * The Merkle tree of the files this server replicates to a holder, reused during a comparison
+     * @param holder the holder's uri
+     * @param rebuild whether a new comparison started
+     * @return the tree
+     */
+    private MerkleTree servedTree(String holder, boolean rebuild){
+        long now = System.currentTimeMillis();
+        ServedTree served = servedTrees.get(holder);
+        // a comparison never outlasts the holder's period, even if its root request was lost
+        if(rebuild || served == null || now - served.built() > TimeUnit.SECONDS.toMillis(RECONCILIATION_PERIOD)) {
+            served = new ServedTree(new MerkleTree(digests(ServerUtils.getUri(), holder)), now);
+            servedTrees.put(holder, served);
+        }
+        return served.tree();
+    }
+
     protected void validateToken(String serialized, String fileId)throws InvalidTokenException{
         validateToken(serialized, fileId, false);
     }
@@ -1,11 +1,16 @@
 package tp1.common.services;
 
+import tp1.api.BatchOperation;
+import tp1.api.BatchResult;
 import tp1.api.FileInfo;
+import tp1.api.FilePage;
 import tp1.client.ClientUtils;
-import tp1.client.rest.RestFilesClient;
+import tp1.client.rest.RestDirClient;
 import tp1.client.rest.RestUsersClient;
-import tp1.client.soap.SoapFilesClient;
+import tp1.client.soap.SoapDirClient;
 import tp1.client.soap.SoapUsersClient;
+import tp1.common.ServerUtils;
+import tp1.common.clients.DirServerClient;
 import tp1.common.clients.FilesServerClient;
 import tp1.common.clients.UsersServerClient;
 import tp1.common.exceptions.*;
@@ -18,10 +23,21 @@ import tp1.server.MulticastServiceDiscovery;
 import tp1.tokens.PermanentToken;
 import tp1.tokens.TokenManager;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 import java.util.logging.Logger;
 
@@ -33,92 +49,277 @@ public class BasicDirectoryService implements DirectoryService {
     private static final Logger Log = Logger.getLogger(BasicDirectoryService.class.getName());
 
     private final SyncPoint<String> syncPoint = SyncPoint.getInstance();
-    private static final List<String> TOPICS = Arrays.asList(KafkaUtils.DIR_FILES_TOPIC);
     private final KafkaPublisher publisher;
 
+    // Operations are partitioned by owner, and each directory only consumes (and stores the users of)
+    // the partitions of its shard: the partitions p such that p % shardCount == shardIndex
+    private final int shardIndex;
+    private final int shardCount;
+
+    // URIs of and clients for the directories owning the other shards, indexed by shard
+    private final Map<Integer, String> shardUris = new ConcurrentHashMap<>();
+    private final Map<Integer, DirServerClient> shardClients = new ConcurrentHashMap<>();
+
+    // Partition of all the operations of an unsharded directory
+    private static final int UNSHARDED_PARTITION = 0;
+
+    // Separates the shard from the shard's own cursor in listing cursors
+    private static final char SHARD_CURSOR_SEPARATOR = '.';
+
     private UsersServerClient usersServer = null;
 
-    // Priority queue with file servers prioritizing the ones with less occupied space
-    private final PriorityQueue<FileServerMonitor> filesServers = new PriorityQueue<>();
+    // Milliseconds verified credentials are trusted without asking the users server
+    private static final long CREDENTIALS_TTL = 30000;
+
+    // Maximum number of users with cached credentials
+    private static final int CREDENTIALS_CACHE_SIZE = 100000;
+
+    // Only the credentials of the users of this shard are cached, as the users server invalidates
+    // them on the directory owning the user's shard
+    private final CredentialsCache credentials = new CredentialsCache(CREDENTIALS_TTL, CREDENTIALS_CACHE_SIZE);
+
+    // Known file servers and the policy to place files on them
+    private final FilesServerPlacement placement = new FilesServerPlacement();
+
+    // Interned ids of the users, so files don't keep their own copies of the owner's and sharers' ids
+    private final IdInterner users = new IdInterner();
 
     // Maps the userId to the respective (concurrent safe) directory
-    private final Map<String, Map<String, FileReference>> directories = new HashMap<>();
+    private final Map<String, Map<String, FileReference>> directories = new ConcurrentHashMap<>();
+
+    // Maps the userId to the (concurrent safe) files it owns or that were shared with it,
+    // sorted by owner and filename so listings can be paginated
+    private final Map<String, NavigableSet<FileReference>> visibleFiles = new ConcurrentHashMap<>();
+
+    private final Comparator<FileReference> listingOrder = FileReference.listingOrder(users);
+
+    // Number of files in a page when the client doesn't specify a valid limit
+    private static final int DEFAULT_PAGE_SIZE = 500;
+
+    // Maximum number of files in a single page
+    private static final int MAX_PAGE_SIZE = 5000;
 
     private KafkaSubscriber subscriber;
 
+    // Where the state is periodically saved, so a restart doesn't replay the whole log
+    private final Path checkpointPath;
+
+    // Operations applied before a checkpoint is worth writing, however small the state
+    private static final int CHECKPOINT_MIN_OPERATIONS = 1000;
+
+    // Minutes after which the operations applied since the last checkpoint are saved, however few
+    private static final int CHECKPOINT_PERIOD = 10;
+
+    // Operations applied since the last checkpoint started (by the consumer thread)
+    private int operationsSinceCheckpoint = 0;
+
+    // When the last checkpoint started (System.nanoTime)
+    private long lastCheckpoint = System.nanoTime();
+
+    // Files in the last checkpoint. Once as many operations were applied since, replaying them
+    // costs about as much as loading a new checkpoint, so one is written.
+    private volatile long checkpointedFiles = 0;
+
+    // Whether a checkpoint is being written
+    private final AtomicBoolean checkpointing = new AtomicBoolean();
+
+    // Writes checkpoints to disk without blocking the consumer thread
+    private final ExecutorService checkpointWriter = Executors.newSingleThreadExecutor();
+
     /**
-     * Associates a file server to the respective amount of used storage
+     * How the contents of a written file reach its replicas
      */
-    private static class FileServerMonitor implements Comparable<FileServerMonitor> {
-        FilesServerClient server;
+    public enum ReplicationMode {
+        // the file is sent to one server and the other replicas fetch it after reading the operation
+        PULL,
+        // the file is sent to every replica in parallel, the write returns after the first one acknowledges
+        PUSH_ACK_FIRST,
+        // the file is sent to every replica in parallel, the write returns after all of them acknowledge
+        PUSH_ACK_ALL
+    }
 
-        // used storage in bytes
-        int usedStorage;
+    private final ReplicationMode replicationMode;
 
-        FileServerMonitor(FilesServerClient server){
-            this.server = server;
-            this.usedStorage = 0;
-        }
+    // Executes the parallel uploads of push replication
+    private final ExecutorService uploadExecutor = Executors.newCachedThreadPool();
 
-        @Override
-        public int compareTo(FileServerMonitor other) {
-            return Integer.compare(this.usedStorage, other.usedStorage);
+    // Fetches file contents from the files servers for asynchronous reads
+    private final ExecutorService fetchExecutor = Executors.newCachedThreadPool();
+
+    // Seconds between checks for files servers whose response time is stale
+    private static final int PROBE_PERIOD = 5;
+    // Seconds after which a files server's response time is measured again, unless a request did
+    private static final int PROBE_STALE_AFTER = 30;
+    // servers whose probe hasn't been answered yet, which aren't probed again meanwhile
+    private final Set<FileServerMonitor> probing = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Outcome of pushing a file to its replicas
+     * @param original a replica that acknowledged the write
+     * @param pushed URIs of the replicas that acknowledged or are still receiving the file
+     * @param pending uploads that hadn't finished when the write was acknowledged
+     */
+    private record PushResult(FileServerMonitor original, Set<String> pushed,
+                              List<CompletableFuture<Boolean>> pending){
+        /**
+         * Runs an action once for the first pending upload that fails
+         * @param action the action to run
+         */
+        void whenAnyFails(Runnable action){
+            AtomicBoolean ran = new AtomicBoolean(false);
+            for(CompletableFuture<Boolean> upload : pending){
+                upload.thenAccept(success -> {
+                    if(!success && ran.compareAndSet(false, true))
+                        action.run();
+                });
+            }
         }
     }
 
     /**
-     * Contains the information and location of a certain file
+     * Contents of a write, which may be sent to several files servers
      */
-    private static class FileReference{
-        // file id on the server
-        String fileId;
-
-        // server where it is stored
-        FileServerMonitor[] servers;
+    private interface Contents {
+        int size();
 
-        // meta information about the file
-        FileInfo info;
+        /**
+         * Sends the contents to a files server
+         * @param target the files server
+         * @param fileId the file's id
+         * @param maxRetries the maximum number of attempts
+         * @throws RequestTimeoutException if the server didn't accept the file
+         */
+        void sendTo(FileServerMonitor target, String fileId, int maxRetries) throws RequestTimeoutException;
 
-        // the last replica where an operation was performed
-        int lastReplica = 0;
+        /**
+         * Frees the contents, once no more uploads of them will start
+         */
+        default void release(){}
+    }
 
-        // size in bytes of the file
-        int size;
+    private record BufferedContents(byte[] data) implements Contents {
+        @Override
+        public int size() {
+            return data.length;
+        }
 
-        public FileReference(String fileId, FileServerMonitor[] servers, FileInfo info, int size) {
-            this.fileId = fileId;
-            this.servers = servers;
-            this.info = info;
-            this.size = size;
+        @Override
+        public void sendTo(FileServerMonitor target, String fileId, int maxRetries) throws RequestTimeoutException {
+            target.server.writeFile(fileId, data, maxRetries);
         }
+    }
 
+    /**
+     * Contents streamed by a client, spooled to a temporary file so they can be read many times
+     */
+    private record SpooledContents(Path file, int size) implements Contents {
         /**
-         * Picks the replica next to lastReplica
-         *
-         * This is used to distribute packet load amongst the replicas and to move to the next
-         * replica when one fails.
-         * @return the next replica
+         * Copies a stream to a temporary file
+         * @param data the stream
+         * @return the spooled contents
+         * @throws UnexpectedErrorException if the stream or the file failed
          */
-        int shitfReplica(){
-            lastReplica = (lastReplica + 1) % servers.length;
-            return lastReplica;
+        static SpooledContents spool(InputStream data) throws UnexpectedErrorException {
+            Path file = null;
+            try {
+                file = Files.createTempFile("upload-", null);
+                long size = Files.copy(data, file, StandardCopyOption.REPLACE_EXISTING);
+                if(size > Integer.MAX_VALUE)
+                    throw new IOException("File too large: " + size + " bytes");
+                return new SpooledContents(file, (int) size);
+            } catch (IOException e) {
+                Log.severe("Couldn't spool streamed contents: " + e.getMessage());
+                if(file != null)
+                    file.toFile().delete();
+                throw new UnexpectedErrorException();
+            }
         }
 
-        /**
-         * Returns a Set with the URI of each replica
-         * @return the set of URIs
-         */
-        private Set<String> URIs(){
-            Set<String> uris = new HashSet<>(servers.length);
-            for(FileServerMonitor monitor : servers){
-                uris.add(monitor.server.getURI());
+        @Override
+        public void sendTo(FileServerMonitor target, String fileId, int maxRetries) throws RequestTimeoutException {
+            for (int attempt = 1; ; attempt++) {
+                try (InputStream in = Files.newInputStream(file)) {
+                    target.server.writeFile(fileId, in);
+                    return;
+                } catch (IOException e) {
+                    Log.severe("Couldn't read spooled contents of " + fileId + ": " + e.getMessage());
+                    throw new RequestTimeoutException();
+                } catch (RequestTimeoutException e) {
+                    if(attempt >= maxRetries)
+                        throw e;
+                }
             }
-            return uris;
         }
 
+        @Override
+        public void release() {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                Log.warning("Couldn't delete spooled contents " + file + ": " + e.getMessage());
+            }
+        }
     }
 
+    // Contents streamed by clients up to this size are buffered in memory, larger ones are spooled
+    private static final int STREAM_THRESHOLD = 4 * 1024 * 1024;
+
+    // Bytes of file contents cached for reads that can't be redirected
+    private static final long CONTENT_CACHE_SIZE = 64L * 1024 * 1024;
+
+    // Files larger than this are never cached
+    private static final int MAX_CACHED_FILE_SIZE = 4 * 1024 * 1024;
+
+    private final FileContentCache contents = new FileContentCache(CONTENT_CACHE_SIZE, MAX_CACHED_FILE_SIZE);
+
+    // Maximum number of files in a DeleteDirectory record
+    private static final int DELETE_DIRECTORY_CHUNK = 5000;
+
+    // Per operation statuses of a batch
+    private static final int BATCH_OK = 200;
+    private static final int BATCH_NO_CONTENT = 204;
+    private static final int BATCH_BAD_REQUEST = 400;
+    private static final int BATCH_NOT_FOUND = 404;
+
+    /**
+     * A write whose contents were already sent to the files servers but wasn't reported yet
+     * @param operation the operation reporting the write
+     * @param info the written file's information
+     * @param onPublished must run after the operation is published (or fails to be)
+     * @param written the file as it will be once the write is applied
+     */
+    private record PendingWrite(Operation operation, FileInfo info, Runnable onPublished, FileReference written){}
+
+    /**
+     * An operation of a batch that was published
+     * @param result index of the operation's result
+     * @param filename the file it changes
+     * @param version the future returned by publishAsync
+     */
+    private record BatchPublish(int result, String filename, CompletableFuture<Long> version){}
+
     public BasicDirectoryService(){
+        this(ReplicationMode.PULL);
+    }
+
+    public BasicDirectoryService(ReplicationMode replicationMode){
+        this(replicationMode, 0, 1);
+    }
+
+    /**
+     * Creates one of the shards of a directory
+     * @param replicationMode how written files reach their replicas
+     * @param shardIndex the shard this directory owns
+     * @param shardCount the number of shards (at most the number of DirFiles partitions)
+     */
+    public BasicDirectoryService(ReplicationMode replicationMode, int shardIndex, int shardCount){
+        if(shardCount < 1 || shardCount > KafkaUtils.DIR_FILES_PARTITIONS || shardIndex < 0 || shardIndex >= shardCount)
+            throw new IllegalArgumentException("Invalid shard " + shardIndex + " of " + shardCount);
+        this.replicationMode = replicationMode;
+        this.shardIndex = shardIndex;
+        this.shardCount = shardCount;
+        this.checkpointPath = shardCount == 1 ? Paths.get("./directory.checkpoint")
+                : Paths.get("./directory-" + shardIndex + "-of-" + shardCount + ".checkpoint");
         MulticastServiceDiscovery discovery = MulticastServiceDiscovery.getInstance();
         // listener for file servers
         Consumer<String> filesListener = (String uri) ->{
@@ -148,60 +349,315 @@ public class BasicDirectoryService implements DirectoryService {
         } else {
             userListener.accept(users.iterator().next());
         }
-        publisher = KafkaPublisher.createPublisher(KafkaUtils.KAFKA_BROKERS);
-        subscriber = KafkaSubscriber
-                .createSubscriber(KafkaUtils.KAFKA_BROKERS, TOPICS, KafkaUtils.FROM_BEGINNING);
+        if(shardCount > 1) {
+            discovery.announcementThread(shardServiceName(shardIndex), ServerUtils.getUri()).start();
+            for (int shard = 0; shard < shardCount; shard++) {
+                if(shard == shardIndex)
+                    continue;
+                int discoveredShard = shard;
+                Consumer<String> shardListener = (String uri) -> {
+                    if(shardUris.putIfAbsent(discoveredShard, uri) == null) {
+                        shardClients.put(discoveredShard,
+                                uri.endsWith("rest") ? new RestDirClient(uri) : new SoapDirClient(uri));
+                    }
+                };
+                for(String uri : discovery.discoveredServices(shardServiceName(shard))){
+                    shardListener.accept(uri);
+                }
+                discovery.listenForServices(shardServiceName(shard), shardListener);
+            }
+        }
+        publisher = KafkaPublisher.createPublisher(KafkaUtils.KAFKA_BROKERS, shardCount == 1 ? UNSHARDED_PARTITION : null);
+        if(shardCount == 1) // only partition 0 is used, whatever the topic has
+            KafkaUtils.createTopic(KafkaUtils.DIR_FILES_TOPIC, KafkaUtils.DIR_FILES_PARTITIONS, 1);
+        else // shards own partitions of DIR_FILES_PARTITIONS, which the producers must also use
+            KafkaUtils.createTopicWithPartitions(KafkaUtils.DIR_FILES_TOPIC, KafkaUtils.DIR_FILES_PARTITIONS, 1);
+        Map<Integer, Long> restored = restoreCheckpoint();
+        Map<Integer, Long> startOffsets = new HashMap<>();
+        restored.forEach((partition, offset) -> startOffsets.put(partition, offset + 1));
+        syncPoint.setPartitions(ownedPartitions());
+        subscriber = KafkaSubscriber.createSubscriber(KafkaUtils.KAFKA_BROKERS, KafkaUtils.DIR_FILES_TOPIC,
+                ownedPartitions(), startOffsets);
         subscriber.startWithOp(false, this::executeOperation);
+        ScheduledExecutorService prober = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "files-probe");
+            thread.setDaemon(true);
+            return thread;
+        });
+        prober.scheduleWithFixedDelay(this::probeFilesServers, PROBE_PERIOD, PROBE_PERIOD, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Pings the files servers no request measured recently, so the replicas of reads are picked
+     * by how fast each server answers now. Redirected reads are answered by the files server
+     * itself, so they never measure it.
+     */
+    private void probeFilesServers(){
+        long staleAfter = TimeUnit.SECONDS.toNanos(PROBE_STALE_AFTER);
+        for(FileServerMonitor monitor : placement.servers()){
+            if(!monitor.isStale(staleAfter) || !probing.add(monitor))
+                continue;
+            fetchExecutor.execute(() -> {
+                long start = monitor.begin();
+                boolean answered = true;
+                try {
+                    monitor.server.ping();
+                } catch (RequestTimeoutException | RuntimeException e) {
+                    answered = false;
+                } finally {
+                    monitor.end(start, answered);
+                    probing.remove(monitor);
+                }
+            });
+        }
+    }
+
+    /**
+     * Name under which the directory owning a shard announces itself
+     * @param shard the shard
+     * @return the service name
+     */
+    private static String shardServiceName(int shard){
+        return DirectoryService.NAME + "-shard-" + shard;
+    }
+
+    /**
+     * The shard storing the files of a user, i.e. the shard of the partition of its operations
+     * @param userId the user
+     * @return the shard
+     */
+    private int shardOf(String userId){
+        return partitionOf(userId) % shardCount;
+    }
+
+    /**
+     * The partition of a user's operations. An unsharded directory publishes all of them to the
+     * same partition, so a single version orders every operation.
+     * @param userId the user
+     * @return the partition
+     */
+    private int partitionOf(String userId){
+        if(shardCount == 1)
+            return UNSHARDED_PARTITION;
+        return KafkaUtils.partitionFor(userId, KafkaUtils.DIR_FILES_PARTITIONS);
+    }
+
+    private List<Integer> ownedPartitions(){
+        if(shardCount == 1)
+            return List.of(UNSHARDED_PARTITION);
+        List<Integer> partitions = new ArrayList<>();
+        for (int partition = shardIndex; partition < KafkaUtils.DIR_FILES_PARTITIONS; partition += shardCount) {
+            partitions.add(partition);
+        }
+        return partitions;
     }
 
     @Override
     public FileInfo writeFile(String filename, byte[] data, String userId, String password)
             throws UnexpectedErrorException, RequestTimeoutException,
             IncorrectPasswordException, InvalidUserIdException {
+        return writeFileAsync(filename, data, userId, password).join();
+    }
+
+    @Override
+    public CompletableFuture<FileInfo> writeFileAsync(String filename, byte[] data, String userId, String password)
+            throws UnexpectedErrorException, RequestTimeoutException,
+            IncorrectPasswordException, InvalidUserIdException {
         Log.info("writeFile : filename = " + filename + "; userId = " + userId + "; password = " + password);
         validatePassword(userId, password);
-        Map<String, FileReference> directory = getDirectory(userId);
-        FileReference reference = directory.get(filename);
+        return report(uploadFile(filename, new BufferedContents(data), userId));
+    }
+
+    @Override
+    public CompletableFuture<FileInfo> writeFileAsync(String filename, InputStream data, long size, String userId,
+                                                      String password)
+            throws UnexpectedErrorException, RequestTimeoutException,
+            IncorrectPasswordException, InvalidUserIdException {
+        Log.info("writeFile (stream) : filename = " + filename + "; size = " + size
+                + "; userId = " + userId + "; password = " + password);
+        validatePassword(userId, password);
+        // small contents are buffered, so they're written as byte[] contents are
+        if(size <= STREAM_THRESHOLD) {
+            byte[] buffered;
+            try {
+                buffered = data.readNBytes(STREAM_THRESHOLD + 1);
+            } catch (IOException e) {
+                Log.info("throw UnexpectedErrorException: couldn't read the contents");
+                throw new UnexpectedErrorException();
+            }
+            if(buffered.length <= STREAM_THRESHOLD)
+                return report(uploadFile(filename, new BufferedContents(buffered), userId));
+            data = new SequenceInputStream(new ByteArrayInputStream(buffered), data);
+        }
+        return report(uploadStream(filename, data, userId));
+    }
+
+    /**
+     * Reports a write whose contents were already sent to the files servers
+     * @param write the write
+     * @return a future completed with the written file's information once the write is applied
+     */
+    private CompletableFuture<FileInfo> report(PendingWrite write){
+        return applied(publisher.publishAsync(KafkaUtils.DIR_FILES_TOPIC, write.operation()))
+                .whenComplete((version, error) -> write.onPublished().run())
+                .thenApply(version -> write.info());
+    }
+
+    /**
+     * Waits for a published operation to be applied to this directory, without holding a thread
+     * @param published the future returned by publishAsync
+     * @return a future completed with the operation's version once it's applied
+     * (or with -1 if publishing failed)
+     */
+    private CompletableFuture<Long> applied(CompletableFuture<Long> published){
+        return published.exceptionally(error -> -1L).thenCompose(syncPoint::versionFuture);
+    }
+
+    /**
+     * Sends the contents of a file to the files servers, without reporting the write
+     * @param filename the file's name
+     * @param contents the file's contents
+     * @param userId the file's owner
+     * @return the write to report
+     * @throws RequestTimeoutException if no files server accepted the file
+     */
+    private PendingWrite uploadFile(String filename, Contents contents, String userId) throws RequestTimeoutException {
+        return uploadFile(filename, contents, userId, getDirectory(userId).get(filename));
+    }
+
+    /**
+     * Sends the contents of a file to the files servers, without reporting the write
+     * @param filename the file's name
+     * @param contents the file's contents
+     * @param userId the file's owner
+     * @param reference the file being overwritten (null if it's a new file)
+     * @return the write to report
+     * @throws RequestTimeoutException if no files server accepted the file
+     */
+    private PendingWrite uploadFile(String filename, Contents contents, String userId, FileReference reference)
+            throws RequestTimeoutException {
 
         if (reference == null) { // case new file on the directory
             FileInfo info = new FileInfo(userId, filename, null, new HashSet<>());
             String fileId = UUID.randomUUID().toString();
             Log.info(String.format("mapped %s/%s to file id %s", userId, filename, fileId));
 
-            // attempt to send file to a file server
-            FileServerMonitor counter = sendFile(data, fileId);
-            if(counter == null) {
-                Log.info("throw RequestTimeout: out of files servers");
-                throw new RequestTimeoutException();
+            FileServerMonitor[] replicas = new FileServerMonitor[0];
+            PushResult push = null;
+            if(replicationMode != ReplicationMode.PULL) {
+                FileServerMonitor first = placement.pick(contents.size(), Collections.emptyList());
+                if(first != null) {
+                    replicas = placement.pickReplicas(first, contents.size());
+                    push = pushToReplicas(contents, fileId, replicas);
+                    if(push == null) {
+                        Log.severe("Push to every replica failed; falling back to pull replication");
+                        for (FileServerMonitor replica : replicas) {
+                            placement.release(replica, contents.size());
+                        }
+                    }
+                }
             }
-            Log.info("File sent");
-            FileServerMonitor[] replicas = pickReplicas(counter, data.length);
-            Log.info("Replicas picked");
 
-            reference = new FileReference(fileId, replicas, info, data.length);
-            reference.info.setFileURL(reference.servers[0].server.getFileDirectUrl(fileId));
+            if(push == null) {
+                // attempt to send file to a file server
+                FileServerMonitor counter = sendFile(contents, fileId, replicas);
+                if (counter == null) {
+                    Log.info("throw RequestTimeout: out of files servers");
+                    throw new RequestTimeoutException();
+                }
+                Log.info("File sent");
+                replicas = placement.pickReplicas(counter, contents.size());
+                Log.info("Replicas picked");
+            }
+            FileServerMonitor original = push == null ? replicas[0] : push.original();
+            Set<String> pushed = push == null ? Collections.emptySet() : push.pushed();
+            replicas = originalFirst(replicas, original);
 
-            long version = publisher.publish(KafkaUtils.DIR_FILES_TOPIC, new Create(userId, filename, fileId, reference.size,
-                    reference.servers[0].server.getURI(), reference.URIs(), info));
-            syncPoint.waitForVersion(version);
+            FileReference created = new FileReference(fileId, users.intern(userId), filename, replicas, contents.size());
+            info.setFileURL(original.server.getFileDirectUrl(fileId));
+            Create create = new Create(userId, filename, fileId, created.size,
+                    original.server.getURI(), created.URIs(), info, pushed);
+            FileServerMonitor[] reserved = replicas;
+            PushResult pushResult = push;
+            releaseWhenSent(contents, push);
+            return new PendingWrite(create, info, () -> {
+                // the usage is now accounted by the Create operation
+                for (FileServerMonitor replica : reserved) {
+                    placement.release(replica, contents.size());
+                }
+                if(pushResult != null)
+                    repairOnLateFailure(pushResult, created);
+            }, created);
         } else { // case file already on the directory (overwrite)
-            FileServerMonitor sentTo = sendFileBack(data, reference);
+            PushResult push = null;
+            if(replicationMode != ReplicationMode.PULL) {
+                push = pushToReplicas(contents, reference.fileId, reference.servers);
+            }
+            FileServerMonitor sentTo = push == null ? sendFileBack(contents, reference) : push.original();
+            Set<String> pushed = push == null ? Collections.emptySet() : push.pushed();
             // sizeDifference = newSize - oldSize (=) newSize = oldSize + sizeDifference
-            int sizeDifference = data.length - reference.size;
-            // Report edit
-            long version = publisher.publish(KafkaUtils.DIR_FILES_TOPIC, new Edit(reference.info.getOwner(),
-                    reference.info.getFilename(), reference.fileId,
-                    sizeDifference, sentTo.server.getURI()));
-            syncPoint.waitForVersion(version);
+            int sizeDifference = contents.size() - reference.size;
+            Edit edit = new Edit(userId, filename, reference.fileId,
+                    sizeDifference, sentTo.server.getURI(), pushed);
+            FileReference edited = reference;
+            PushResult pushResult = push;
+            releaseWhenSent(contents, push);
+            return new PendingWrite(edit, reference.toInfo(users), () -> {
+                if(pushResult != null)
+                    repairOnLateFailure(pushResult, edited);
+            }, reference.resized(contents.size()));
         }
+    }
+
+    /**
+     * Sends the contents of a file streamed by a client to the files servers, without reporting
+     * the write.
+     *
+     * The contents are spooled to a temporary file as they're read, holding only a fixed buffer in
+     * memory, so they can be pushed to every replica and sent again when a files server fails.
+     * @param filename the file's name
+     * @param data the file's contents
+     * @param userId the file's owner
+     * @return the write to report
+     * @throws RequestTimeoutException if no files server accepted the file
+     * @throws UnexpectedErrorException if the contents couldn't be spooled
+     */
+    private PendingWrite uploadStream(String filename, InputStream data, String userId)
+            throws RequestTimeoutException, UnexpectedErrorException {
+        SpooledContents contents = SpooledContents.spool(data);
+        try {
+            return uploadFile(filename, contents, userId);
+        } catch (RequestTimeoutException | RuntimeException e) {
+            contents.release();
+            throw e;
+        }
+    }
 
-        return reference.info;
+    /**
+     * Releases the contents of a write once they're no longer sent to any files server
+     * @param contents the contents
+     * @param push the outcome of pushing them (null if they weren't pushed)
+     */
+    private static void releaseWhenSent(Contents contents, PushResult push){
+        if(push == null) {
+            contents.release();
+            return;
+        }
+        CompletableFuture.allOf(push.pending().toArray(new CompletableFuture<?>[0]))
+                .whenComplete((sent, error) -> contents.release());
     }
 
     @Override
     public void deleteFile(String filename, String userId, String password)
             throws InvalidFileLocationException, RequestTimeoutException,
             IncorrectPasswordException, InvalidUserIdException {
+        deleteFileAsync(filename, userId, password).join();
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteFileAsync(String filename, String userId, String password)
+            throws InvalidFileLocationException, RequestTimeoutException,
+            IncorrectPasswordException, InvalidUserIdException {
         Log.info("deleteFile : filename = " + filename + "; userId = " + userId + "; password = " + password);
         validatePassword(userId, password);
 
@@ -213,14 +669,21 @@ public class BasicDirectoryService implements DirectoryService {
         }
 
         // delete the file on the file server (asynchronously)
-        long version = publisher.publish(KafkaUtils.DIR_FILES_TOPIC, new Delete(userId, filename, removing.fileId));
-        syncPoint.waitForVersion(version);
+        return applied(publisher.publishAsync(KafkaUtils.DIR_FILES_TOPIC, new Delete(userId, filename, removing.fileId)))
+                .thenApply(version -> null);
     }
 
     @Override
     public void shareFile(String filename, String userId, String userIdShare, String password)
             throws InvalidFileLocationException, RequestTimeoutException,
             IncorrectPasswordException, InvalidUserIdException {
+        shareFileAsync(filename, userId, userIdShare, password).join();
+    }
+
+    @Override
+    public CompletableFuture<Void> shareFileAsync(String filename, String userId, String userIdShare, String password)
+            throws InvalidFileLocationException, RequestTimeoutException,
+            IncorrectPasswordException, InvalidUserIdException {
         Log.info("shareFile : filename = " + filename + "; userId = " + userId + "; userIdShare = "
                 + userIdShare + "; password = " + password);
         validateUser(userIdShare);
@@ -231,20 +694,23 @@ public class BasicDirectoryService implements DirectoryService {
         }
 
         validatePassword(userId, password);
-        if(!userId.equals(userIdShare)) {
-            Log.info("Publishing share");
-            long version = publisher.publish(KafkaUtils.DIR_FILES_TOPIC,
-                    new Share(userId, filename, userIdShare));
-            Log.info("Published share");
-            syncPoint.waitForVersion(version);
-            Log.info("Executed share");
-        }
+        if(userId.equals(userIdShare))
+            return CompletableFuture.completedFuture(null);
+        return applied(publisher.publishAsync(KafkaUtils.DIR_FILES_TOPIC, new Share(userId, filename, userIdShare)))
+                .thenApply(version -> null);
     }
 
     @Override
     public void unshareFile(String filename, String userId, String userIdShare, String password)
             throws InvalidFileLocationException, RequestTimeoutException,
             IncorrectPasswordException, InvalidUserIdException {
+        unshareFileAsync(filename, userId, userIdShare, password).join();
+    }
+
+    @Override
+    public CompletableFuture<Void> unshareFileAsync(String filename, String userId, String userIdShare, String password)
+            throws InvalidFileLocationException, RequestTimeoutException,
+            IncorrectPasswordException, InvalidUserIdException {
         Log.info("unshareFile : filename = " + filename + "; userId = " + userId + "; userIdShare = "
                 + userIdShare + "; password = " + password);
         validateUser(userIdShare);
@@ -255,16 +721,30 @@ public class BasicDirectoryService implements DirectoryService {
         }
 
         validatePassword(userId, password);
-        if(!userId.equals(userIdShare)) {
-            long version = publisher.publish(KafkaUtils.DIR_FILES_TOPIC,
-                    new Unshare(userId, filename, userIdShare));
-            syncPoint.waitForVersion(version);
-        }
+        if(userId.equals(userIdShare))
+            return CompletableFuture.completedFuture(null);
+        return applied(publisher.publishAsync(KafkaUtils.DIR_FILES_TOPIC, new Unshare(userId, filename, userIdShare)))
+                .thenApply(version -> null);
     }
 
     @Override
     public byte[] getFile(String filename, String userId, String accUserId, String password,
-                          boolean tryRedirect, long version) throws InvalidFileLocationException,
+                          boolean tryRedirect, Map<Integer, Long> versions) throws InvalidFileLocationException,
+            NoAccessException, RequestTimeoutException, IncorrectPasswordException, InvalidUserIdException {
+        try {
+            return getFileAsync(filename, userId, accUserId, password, tryRedirect, versions).join();
+        } catch (CompletionException e) {
+            if(e.getCause() instanceof RequestTimeoutException timeout)
+                throw timeout;
+            if(e.getCause() instanceof InvalidFileLocationException notFound)
+                throw notFound;
+            throw e;
+        }
+    }
+
+    @Override
+    public CompletableFuture<byte[]> getFileAsync(String filename, String userId, String accUserId, String password,
+                          boolean tryRedirect, Map<Integer, Long> versions) throws InvalidFileLocationException,
             NoAccessException, RequestTimeoutException, IncorrectPasswordException, InvalidUserIdException {
         Log.info("getFile : filename = " + filename + "; userId = " + userId + "; accUserId = "
                 + accUserId + "; password = " + password);
@@ -279,11 +759,14 @@ public class BasicDirectoryService implements DirectoryService {
             Log.info("throw InvalidFilenameException: user doesn't have such file");
             throw new InvalidFileLocationException();
         }
-        if(!reference.info.getSharedWith().contains(accUserId) && !isOwner) {
+        if(!isOwner && !reference.isSharedWith(users.idOf(accUserId))) {
             Log.info("throw NoAccessException: user doesn't have access to file");
             throw new NoAccessException();
         }
-        FilesServerClient files = reference.servers[reference.shitfReplica()].server;
+        // only the version of the partition of the user's files matters, the only one applied here
+        long version = versions.getOrDefault(partitionOf(userId), -1L);
+        FileServerMonitor replica = reference.servers[reference.fastestReplica()];
+        FilesServerClient files = replica.server;
 
         // redirecting to the files server, if possible, is faster than transferring the file
         if(tryRedirect) {
@@ -293,25 +776,212 @@ public class BasicDirectoryService implements DirectoryService {
             Log.info("Failed to redirect");
         }
 
-        return files.getFile(reference.fileId, version);
+        // the cached contents must be at least as recent as the version the client has seen
+        return syncPoint.versionFuture(version).thenApplyAsync(reached -> {
+            long contentVersion = reference.contentVersion;
+            byte[] cached = contents.get(reference.fileId, contentVersion);
+            if(cached != null) {
+                Log.info("Serving " + reference.fileId + " from the content cache");
+                return cached;
+            }
+
+            long start = replica.begin();
+            boolean timedOut = false;
+            try {
+                byte[] data = files.getFile(reference.fileId, version);
+                if(data != null)
+                    contents.put(reference.fileId, contentVersion, data);
+                return data;
+            } catch (RequestTimeoutException e) {
+                timedOut = true;
+                throw new CompletionException(e);
+            } catch (InvalidFileLocationException e) {
+                throw new CompletionException(e);
+            } finally {
+                replica.end(start, !timedOut);
+            }
+        }, fetchExecutor);
     }
 
     @Override
     public List<FileInfo> lsFile(String userId, String password) throws RequestTimeoutException, IncorrectPasswordException, InvalidUserIdException {
         Log.info("lsFile : userId = " + userId + "; password = " + password);
         validatePassword(userId, password);
-        List<FileInfo> returning = new ArrayList<>();
-        synchronized (directories) {
-            for (Map<String, FileReference> directory : directories.values()) {
-                for (FileReference reference : directory.values()) {
-                    FileInfo info = reference.info;
-                    if (info.getOwner().equals(userId) || info.getSharedWith().contains(userId)) {
-                        returning.add(info);
+        Collection<FileReference> visible = visibleFiles.getOrDefault(userId, Collections.emptyNavigableSet());
+        List<FileInfo> returning = new ArrayList<>(visible.size());
+        for (FileReference reference : visible) {
+            returning.add(reference.toInfo(users));
+        }
+        // files of the users in other shards that were shared with this user
+        for (int shard = 0; shard < shardCount; shard++) {
+            if(shard == shardIndex)
+                continue;
+            String cursor = null;
+            do {
+                FilePage page = remotePage(shard, userId, cursor, MAX_PAGE_SIZE);
+                returning.addAll(page.getFiles());
+                cursor = page.getNextCursor();
+            } while (cursor != null);
+        }
+        return returning;
+    }
+
+    @Override
+    public FilePage lsFile(String userId, String password, String cursor, int limit)
+            throws RequestTimeoutException, IncorrectPasswordException, InvalidUserIdException, InvalidArgumentException {
+        Log.info("lsFile : userId = " + userId + "; password = " + password + "; cursor = " + cursor
+                + "; limit = " + limit);
+        validatePassword(userId, password);
+        limit = pageLimit(limit);
+
+        // pages go through the shards in order, the cursor being the shard and the shard's own cursor
+        int shard = 0;
+        String shardCursor = null;
+        if(cursor != null && !cursor.isEmpty()) {
+            int separator = cursor.indexOf(SHARD_CURSOR_SEPARATOR);
+            try {
+                shard = Integer.parseInt(cursor.substring(0, Math.max(separator, 0)));
+            } catch (NumberFormatException e) {
+                shard = -1;
+            }
+            if(shard < 0 || shard >= shardCount) {
+                Log.info("throw InvalidArgumentException: malformed cursor");
+                throw new InvalidArgumentException();
+            }
+            shardCursor = cursor.substring(separator + 1);
+            if(shardCursor.isEmpty())
+                shardCursor = null;
+        }
+        List<FileInfo> files = new ArrayList<>();
+        for (; shard < shardCount && files.size() < limit; shard++, shardCursor = null) {
+            FilePage page = shard == shardIndex ? localPage(userId, shardCursor, limit - files.size())
+                    : remotePage(shard, userId, shardCursor, limit - files.size());
+            files.addAll(page.getFiles());
+            if(page.getNextCursor() != null)
+                return new FilePage(files, shard + "" + SHARD_CURSOR_SEPARATOR + page.getNextCursor());
+        }
+        // the next page starts at the beginning of the next shard
+        return new FilePage(files, shard < shardCount ? shard + "" + SHARD_CURSOR_SEPARATOR : null);
+    }
+
+    @Override
+    public Iterator<FileInfo> lsFileIterator(String userId, String password)
+            throws RequestTimeoutException, IncorrectPasswordException, InvalidUserIdException {
+        Log.info("lsFileIterator : userId = " + userId + "; password = " + password);
+        validatePassword(userId, password);
+        Iterator<FileReference> references = visibleFiles
+                .getOrDefault(userId, Collections.emptyNavigableSet()).iterator();
+        return new Iterator<>() {
+            // the other shards, fetched a page at a time once the local files are exhausted
+            private int shard = nextRemoteShard(-1);
+            private String cursor = null;
+            private Iterator<FileInfo> page = Collections.emptyIterator();
+
+            @Override
+            public boolean hasNext() {
+                if(references.hasNext())
+                    return true;
+                while (!page.hasNext()) {
+                    if(shard >= shardCount)
+                        return false;
+                    try {
+                        FilePage next = remotePage(shard, userId, cursor, DEFAULT_PAGE_SIZE);
+                        page = next.getFiles().iterator();
+                        cursor = next.getNextCursor();
+                    } catch (RequestTimeoutException e) {
+                        throw new UncheckedIOException(new IOException("Directory of shard " + shard + " didn't respond"));
                     }
+                    if(cursor == null)
+                        shard = nextRemoteShard(shard);
                 }
+                return true;
+            }
+
+            @Override
+            public FileInfo next() {
+                if(!hasNext())
+                    throw new NoSuchElementException();
+                return references.hasNext() ? references.next().toInfo(users) : page.next();
             }
+        };
+    }
+
+    @Override
+    public FilePage lsLocalFiles(String userId, String token, String cursor, int limit)
+            throws InvalidTokenException, InvalidArgumentException {
+        Log.info("lsLocalFiles : userId = " + userId + "; cursor = " + cursor + "; limit = " + limit);
+        if(!(TokenManager.checkToken(token) instanceof PermanentToken)){
+            throw new InvalidTokenException();
         }
-        return returning;
+        return localPage(userId, cursor, pageLimit(limit));
+    }
+
+    @Override
+    public String shardOwner(String userId) throws RequestTimeoutException {
+        int shard = shardOf(userId);
+        if(shard == shardIndex)
+            return null;
+        String uri = shardUris.get(shard);
+        if(uri == null) {
+            Log.info("throw RequestTimeoutException: directory of shard " + shard + " not discovered yet");
+            throw new RequestTimeoutException();
+        }
+        return uri;
+    }
+
+    /**
+     * Lists a page of the files of this shard that are visible to a user
+     * @param userId the user
+     * @param cursor the cursor returned by the previous page of this shard (null for the first page)
+     * @param limit maximum number of files in the page
+     * @return the page
+     * @throws InvalidArgumentException if the cursor is malformed
+     */
+    private FilePage localPage(String userId, String cursor, int limit) throws InvalidArgumentException {
+        NavigableSet<FileReference> visible = visibleFiles.getOrDefault(userId, Collections.emptyNavigableSet());
+        if(cursor != null && !cursor.isEmpty()) {
+            visible = visible.tailSet(decodeCursor(cursor), false);
+        }
+        List<FileInfo> files = new ArrayList<>(limit);
+        FileReference last = null;
+        for (FileReference reference : visible) {
+            if(files.size() == limit) {
+                return new FilePage(files, encodeCursor(last));
+            }
+            files.add(reference.toInfo(users));
+            last = reference;
+        }
+        return new FilePage(files, null);
+    }
+
+    /**
+     * Lists a page of the files of another shard that are visible to a user
+     * @param shard the shard
+     * @param userId the user
+     * @param cursor the cursor returned by the previous page of the shard (null for the first page)
+     * @param limit maximum number of files in the page
+     * @return the page
+     * @throws RequestTimeoutException if the shard's directory is unknown or doesn't respond
+     */
+    private FilePage remotePage(int shard, String userId, String cursor, int limit) throws RequestTimeoutException {
+        DirServerClient client = shardClients.get(shard);
+        if(client == null) {
+            Log.info("throw RequestTimeoutException: directory of shard " + shard + " not discovered yet");
+            throw new RequestTimeoutException();
+        }
+        return client.lsLocalFiles(userId, cursor, limit);
+    }
+
+    private int nextRemoteShard(int shard){
+        shard++;
+        return shard == shardIndex ? shard + 1 : shard;
+    }
+
+    private static int pageLimit(int limit){
+        if(limit <= 0) {
+            return DEFAULT_PAGE_SIZE;
+        }
+        return Math.min(limit, MAX_PAGE_SIZE);
     }
 
     @Override
@@ -328,10 +998,25 @@ public class BasicDirectoryService implements DirectoryService {
                 Log.info("User does not exist; deleting anyway");
             }
         }
-        Map<String, FileReference> directory = getDirectory(userId);
-        for (FileReference reference : directory.values()) {
-            publisher.publish(KafkaUtils.DIR_FILES_TOPIC,
-                    new Delete(reference.info.getOwner(), reference.info.getFilename(), reference.fileId));
+        credentials.invalidate(userId);
+        // the files are deleted in bulk, split in records small enough for the broker
+        List<CompletableFuture<Long>> deletes = new ArrayList<>();
+        Map<String, List<String>> fileIds = new HashMap<>();
+        int files = 0;
+        for (FileReference reference : getDirectory(userId).values()) {
+            for (FileServerMonitor monitor : reference.servers) {
+                fileIds.computeIfAbsent(monitor.server.getURI(), k -> new ArrayList<>()).add(reference.fileId);
+            }
+            if(++files == DELETE_DIRECTORY_CHUNK) {
+                deletes.add(publisher.publishAsync(KafkaUtils.DIR_FILES_TOPIC, new DeleteDirectory(userId, fileIds)));
+                fileIds = new HashMap<>();
+                files = 0;
+            }
+        }
+        if(files > 0)
+            deletes.add(publisher.publishAsync(KafkaUtils.DIR_FILES_TOPIC, new DeleteDirectory(userId, fileIds)));
+        for (CompletableFuture<Long> delete : deletes) {
+            KafkaPublisher.await(delete);
         }
     }
 
@@ -344,10 +1029,120 @@ public class BasicDirectoryService implements DirectoryService {
      * @throws InvalidUserIdException if there is no user with that id
      */
     private void validatePassword(String userId, String password) throws RequestTimeoutException, IncorrectPasswordException, InvalidUserIdException {
+        if(credentials.isVerified(userId, password))
+            return;
+        long generation = credentials.generation();
         usersServer.getUser(userId, password);
+        if(shardOf(userId) == shardIndex)
+            credentials.putVerified(userId, password, generation);
+    }
+
+    @Override
+    public List<BatchResult> batch(String userId, String password, List<BatchOperation> operations)
+            throws RequestTimeoutException, IncorrectPasswordException, InvalidUserIdException {
+        return batchAsync(userId, password, operations).join();
+    }
+
+    @Override
+    public CompletableFuture<List<BatchResult>> batchAsync(String userId, String password, List<BatchOperation> operations)
+            throws RequestTimeoutException, IncorrectPasswordException, InvalidUserIdException {
+        Log.info("batch : userId = " + userId + "; password = " + password + "; operations = " + operations.size());
+        validatePassword(userId, password);
+
+        List<BatchResult> results = new ArrayList<>(operations.size());
+        List<BatchPublish> published = new ArrayList<>(operations.size());
+        List<Runnable> onPublished = new ArrayList<>();
+        // files written or deleted earlier in the batch, as they will be once it's applied (null if deleted)
+        Map<String, FileReference> changed = new HashMap<>();
+        for (BatchOperation operation : operations) {
+            String filename = operation.getFilename();
+            BatchOperation.Type type = operation.getType();
+            if(type == null || filename == null){
+                results.add(new BatchResult(BATCH_BAD_REQUEST, null));
+                continue;
+            }
+            FileReference reference = changed.containsKey(filename) ? changed.get(filename)
+                    : getDirectory(userId).get(filename);
+            if(type == BatchOperation.Type.WRITE){
+                if(operation.getData() == null){
+                    results.add(new BatchResult(BATCH_BAD_REQUEST, null));
+                    continue;
+                }
+                try {
+                    PendingWrite write = uploadFile(filename, new BufferedContents(operation.getData()), userId, reference);
+                    published.add(new BatchPublish(results.size(), filename,
+                            publisher.publishAsync(KafkaUtils.DIR_FILES_TOPIC, write.operation())));
+                    onPublished.add(write.onPublished());
+                    changed.put(filename, write.written());
+                    results.add(new BatchResult(BATCH_OK, write.info()));
+                } catch (RequestTimeoutException e) {
+                    results.add(new BatchResult(BATCH_BAD_REQUEST, null));
+                }
+                continue;
+            }
+
+            if(reference == null){
+                results.add(new BatchResult(BATCH_NOT_FOUND, null));
+                continue;
+            }
+            Operation toPublish = null;
+            if(type == BatchOperation.Type.DELETE){
+                toPublish = new Delete(userId, filename, reference.fileId);
+                changed.put(filename, null);
+            } else {
+                String userIdShare = operation.getUserIdShare();
+                try {
+                    validateUser(userIdShare);
+                } catch (InvalidUserIdException e) {
+                    results.add(new BatchResult(BATCH_NOT_FOUND, null));
+                    continue;
+                } catch (RequestTimeoutException e) {
+                    results.add(new BatchResult(BATCH_BAD_REQUEST, null));
+                    continue;
+                }
+                if(!userId.equals(userIdShare)) {
+                    toPublish = type == BatchOperation.Type.SHARE ? new Share(userId, filename, userIdShare)
+                            : new Unshare(userId, filename, userIdShare);
+                }
+            }
+            if(toPublish != null)
+                published.add(new BatchPublish(results.size(), filename,
+                        publisher.publishAsync(KafkaUtils.DIR_FILES_TOPIC, toPublish)));
+            results.add(new BatchResult(BATCH_NO_CONTENT, null));
+        }
+
+        // every operation was committed together, so only the last one must be waited for
+        return CompletableFuture.allOf(published.stream().map(BatchPublish::version)
+                        .toArray(CompletableFuture<?>[]::new))
+                .handle((ignored, error) -> {
+                    long version = -1;
+                    // operations that weren't published fail, as do the later ones on the same file
+                    Set<String> failed = new HashSet<>();
+                    for (BatchPublish operation : published) {
+                        long applied = KafkaPublisher.await(operation.version());
+                        if(applied < 0 || failed.contains(operation.filename())) {
+                            failed.add(operation.filename());
+                            results.set(operation.result(), new BatchResult(BATCH_BAD_REQUEST, null));
+                        }
+                        version = Math.max(version, applied);
+                    }
+                    return version;
+                })
+                .thenCompose(syncPoint::versionFuture)
+                .whenComplete((version, error) -> onPublished.forEach(Runnable::run))
+                .thenApply(version -> results);
+    }
+
+    @Override
+    public void invalidateUser(String userId, String token) throws InvalidTokenException {
+        Log.info("invalidateUser : userId = " + userId);
+        if(!(TokenManager.checkToken(token) instanceof PermanentToken)){
+            throw new InvalidTokenException();
+        }
+        credentials.invalidate(userId);
     }
     
-    private FileServerMonitor sendFileBack(byte[] data, FileReference reference) throws RequestTimeoutException {
+    private FileServerMonitor sendFileBack(Contents contents, FileReference reference) throws RequestTimeoutException {
         FileServerMonitor[] originalCounters = reference.servers;
 
         int firstServer = -1;
@@ -355,135 +1150,195 @@ public class BasicDirectoryService implements DirectoryService {
         for(int i = reference.shitfReplica(); i != firstServer; i = reference.shitfReplica()){
             if(firstServer == -1)
                 firstServer = i;
-            int maxRetries = filesServers.size() - i == 1 ? ClientUtils.MAX_RETRIES : 1;
+            int maxRetries = placement.size() - i == 1 ? ClientUtils.MAX_RETRIES : 1;
+            Log.info("Attempting to send file to one of its replicas");
+            long start = originalCounters[i].begin();
             try {
-                Log.info("Attempting to send file to one of its replicas");
-                originalCounters[i].server.writeFile(reference.fileId, data, maxRetries);
+                contents.sendTo(originalCounters[i], reference.fileId, maxRetries);
+                originalCounters[i].end(start, true);
                 return originalCounters[i];
-            } catch (RequestTimeoutException ignored){}
+            } catch (RequestTimeoutException ignored){
+                originalCounters[i].end(start, false);
+            }
         }
 
         Log.severe("timed out");
         // attempt writing to another file server (ignoring the one we've
         //already tried)
-        FileServerMonitor sentTo = sendFile(data, reference.fileId, reference.servers);
+        FileServerMonitor sentTo = sendFile(contents, reference.fileId, reference.servers);
         if(sentTo == null) {
             Log.info("throw RequestTimeout: out of files servers");
             throw new RequestTimeoutException();
         }
         originalCounters[firstServer] = sentTo;
 
-        //Report that the file was moved from a server to another
-        long version = publisher.publish(KafkaUtils.DIR_FILES_TOPIC, new Move(reference.info.getOwner(),
-                reference.info.getFilename(), reference.fileId,
-                sentTo.server.getURI(), reference.URIs()));
-        syncPoint.waitForVersion(version);
+        try {
+            //Report that the file was moved from a server to another
+            long version = publisher.publish(KafkaUtils.DIR_FILES_TOPIC, new Move(users.name(reference.owner),
+                    reference.filename, reference.fileId,
+                    sentTo.server.getURI(), reference.URIs()));
+            syncPoint.waitForVersion(version);
+        } finally {
+            placement.release(sentTo, contents.size());
+        }
         return sentTo;
     }
 
     /**
-     * Attempts to send a file to a file server,
-     * prioritizing file server with less used storage
-     * and moving to another file server on timeout
-     * @param data the contents of the file to send
+     * Sends a file to all its replicas in parallel, waiting for the acknowledgements
+     * required by the replication mode
+     * @param contents the contents of the file to send
      * @param fileId the file's id
-     * @param toIgnore file servers that will be ignored
-     * @return the file server that it was sent to or null if they all failed
+     * @param targets the replicas to send the file to
+     * @return the outcome of the push or null if every replica failed
      */
-    private synchronized FileServerMonitor sendFile(byte[] data, String fileId, FileServerMonitor[] toIgnore){
-        for (FileServerMonitor monitor : toIgnore){
-            filesServers.remove(monitor);
+    private PushResult pushToReplicas(Contents contents, String fileId, FileServerMonitor[] targets){
+        CompletableFuture<FileServerMonitor> firstAck = new CompletableFuture<>();
+        AtomicInteger failures = new AtomicInteger(0);
+        List<CompletableFuture<Boolean>> uploads = new ArrayList<>(targets.length);
+        for(FileServerMonitor target : targets){
+            uploads.add(CompletableFuture.supplyAsync(() -> {
+                long start = target.begin();
+                try {
+                    contents.sendTo(target, fileId, ClientUtils.MAX_RETRIES);
+                    target.end(start, true);
+                    firstAck.complete(target);
+                    return true;
+                } catch (RequestTimeoutException e) {
+                    target.end(start, false);
+                    Log.severe("Push of " + fileId + " to " + target.server.getURI() + " timed out");
+                    if(failures.incrementAndGet() == targets.length)
+                        firstAck.complete(null);
+                    return false;
+                }
+            }, uploadExecutor));
         }
-        FileServerMonitor result = sendFile(data, fileId);
-        filesServers.addAll(Arrays.asList(toIgnore));
-        return result;
+        FileServerMonitor original = firstAck.join();
+        if(original == null)
+            return null;
+        if(replicationMode == ReplicationMode.PUSH_ACK_ALL)
+            CompletableFuture.allOf(uploads.toArray(new CompletableFuture<?>[0])).join();
+
+        Set<String> pushed = new HashSet<>(targets.length);
+        List<CompletableFuture<Boolean>> pending = new ArrayList<>();
+        for (int i = 0; i < targets.length; i++) {
+            CompletableFuture<Boolean> upload = uploads.get(i);
+            if(!upload.isDone()) {
+                pending.add(upload);
+                pushed.add(targets[i].server.getURI());
+            } else if(upload.join()) {
+                pushed.add(targets[i].server.getURI());
+            }
+        }
+        Log.info("File pushed to " + pushed.size() + " replicas (" + pending.size() + " pending)");
+        return new PushResult(original, pushed, pending);
+    }
+
+    /**
+     * Makes the replicas fetch the file from the acknowledged one if a pending upload fails.
+     * Must be called after the write is reported, so the repair is ordered after it.
+     * @param push the outcome of the push
+     * @param reference the file that was pushed
+     */
+    private void repairOnLateFailure(PushResult push, FileReference reference){
+        push.whenAnyFails(() -> {
+            Log.severe("Late push failure for " + reference.fileId + "; replicas will fetch it");
+            publisher.publish(KafkaUtils.DIR_FILES_TOPIC, new Edit(users.name(reference.owner),
+                    reference.filename, reference.fileId, 0, push.original().server.getURI()));
+        });
     }
 
     /**
      * Attempts to send a file to a file server,
-     * prioritizing file server with less used storage
-     * and moving to another file server on timeout
-     * @param data the contents of the file to send
+     * prioritizing file servers with less used storage
+     * and moving to another file server on timeout.
+     *
+     * On success, the file's size remains reserved on the returned server until
+     * the caller releases it through the placement.
+     * @param contents the contents of the file to send
      * @param fileId the file's id
+     * @param toIgnore file servers that will be ignored
      * @return the file server that it was sent to or null if they all failed
      */
-    private synchronized FileServerMonitor sendFile(byte[] data, String fileId) {
-        FileServerMonitor counter;
-        FileServerMonitor polled = filesServers.poll();
-        if(polled == null){
-            Log.severe("No file servers or all file servers timed out");
-            return null;
-        }
-
-        try {
+    private FileServerMonitor sendFile(Contents contents, String fileId, FileServerMonitor[] toIgnore){
+        List<FileServerMonitor> tried = new ArrayList<>(Arrays.asList(toIgnore));
+        for(;;) {
+            FileServerMonitor picked = placement.pick(contents.size(), tried);
+            if (picked == null) {
+                Log.severe("No file servers or all file servers timed out");
+                return null;
+            }
             int maxRetries = 1;
-            if(filesServers.size() == 0 ||
-                    (filesServers.size() == 1)){
+            if (placement.size() - tried.size() <= 2) {
                 maxRetries = ClientUtils.MAX_RETRIES;
                 Log.info("Attempting to send file to last files server");
             }
-            polled.server.writeFile(fileId, data, maxRetries);
-            polled.usedStorage += data.length;
-            counter = polled;
-        } catch (RequestTimeoutException e) {
-            Log.severe("timed out");
-            counter = sendFile(data, fileId);
+            long start = picked.begin();
+            try {
+                contents.sendTo(picked, fileId, maxRetries);
+                picked.end(start, true);
+                return picked;
+            } catch (RequestTimeoutException e) {
+                picked.end(start, false);
+                Log.severe("timed out");
+                placement.release(picked, contents.size());
+                tried.add(picked);
+            }
         }
-        filesServers.add(polled);
-        return counter;
+    }
+
+    private Map<String, FileReference> getDirectory(String userId){
+        return directories.computeIfAbsent(userId, k -> new ConcurrentHashMap<>());
     }
 
     /**
-     * Selects the first FilesService.NUMBER_OF_REPLICAS with the least occupied space
-     * @param original the file server that already contains the file (so it won't be selected again)
-     * @param size the size of the file
-     * @return
+     * Returns the files a user owns or has been shared with
+     * @param userId the user's id
+     * @return the (concurrent safe) file references, in listing order
      */
-    private synchronized FileServerMonitor[] pickReplicas(FileServerMonitor original, int size){
-        int count = Math.min(filesServers.size(), FilesService.NUMBER_OF_REPLICAS);
-        FileServerMonitor[] replicas = new FileServerMonitor[count];
-        replicas[0] = original;
-        boolean originalPolled = false;
-        for (int i = 1; i < count; i++) {
-            FileServerMonitor server = filesServers.poll();
-            if(server == original) {
-                originalPolled = true;
-                server = filesServers.poll();
-            }
-            replicas[i] = server;
-            assert replicas[i] != null; //count is at most the number of files
-            replicas[i].usedStorage += size;
-        }
-        if(originalPolled)
-            filesServers.add(original);
-        for (int i = 1; i < count; i++) {
-            filesServers.add(replicas[i]);
-        }
-        return replicas;
+    private NavigableSet<FileReference> getVisibleFiles(String userId){
+        return visibleFiles.computeIfAbsent(userId, k -> new ConcurrentSkipListSet<>(listingOrder));
     }
 
-    private synchronized Map<String, FileReference> getDirectory(String userId){
-        return directories.computeIfAbsent(userId, k -> new ConcurrentHashMap<>());
+    /**
+     * Encodes the position of a file in a listing into an opaque cursor
+     * @param last the last file of a page
+     * @return the cursor
+     */
+    private String encodeCursor(FileReference last){
+        String key = users.name(last.owner) + "/" + last.filename;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(key.getBytes(StandardCharsets.UTF_8));
     }
 
-    private synchronized FileServerMonitor getOrCreateFileServerMonitor(String uri){
-        for(FileServerMonitor monitor : filesServers){
-            if(monitor.server.getURI().equals(uri)){
-                return monitor;
-            }
-        }
-        FilesServerClient proxy = null;
-        if(uri.endsWith("rest")) {
-            proxy = new RestFilesClient(uri);
+    /**
+     * Decodes a cursor returned by a previous page
+     * @param cursor the cursor
+     * @return a reference with the position in the listing of the last file of the previous page
+     * @throws InvalidArgumentException if the cursor is malformed
+     */
+    private FileReference decodeCursor(String cursor) throws InvalidArgumentException {
+        String key;
+        try {
+            key = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e){
+            key = "";
         }
-        else if(uri.endsWith("soap")){
-            proxy = new SoapFilesClient(uri);
+        int separator = key.indexOf('/');
+        if(separator < 0){
+            Log.info("throw InvalidArgumentException: malformed cursor");
+            throw new InvalidArgumentException();
         }
-        FileServerMonitor monitor = new FileServerMonitor(proxy);
-        synchronized (filesServers) {
-            filesServers.add(monitor);
+        // users that were never interned own no files, so they can't be in a cursor
+        int owner = users.idOf(key.substring(0, separator));
+        if(owner < 0){
+            Log.info("throw InvalidArgumentException: cursor of an unknown user");
+            throw new InvalidArgumentException();
         }
-        return monitor;
+        return new FileReference(null, owner, key.substring(separator + 1), null, 0);
+    }
+
+    private FileServerMonitor getOrCreateFileServerMonitor(String uri){
+        return placement.getOrCreate(uri);
     }
 
     /**
@@ -493,17 +1348,40 @@ public class BasicDirectoryService implements DirectoryService {
      * @throws InvalidUserIdException if the user id is invalid
      */
     private void validateUser(String userId) throws RequestTimeoutException, InvalidUserIdException {
+            if(credentials.exists(userId))
+                return;
             try {
+                long generation = credentials.generation();
                 if(!usersServer.hasUser(userId)){
                     Log.info("throw InvalidUserIdException: userId doesn't exist");
                     throw new InvalidUserIdException();
                 }
+                if(shardOf(userId) == shardIndex)
+                    credentials.putExists(userId, generation);
             } catch (RequestTimeoutException e){
                 Log.info("throw RequestTimeoutException: hasUser request timed out");
                 throw new RequestTimeoutException();
             }
     }
 
+    /**
+     * Orders the replicas of a file as its reference keeps them, the original first
+     * @param replicas the replicas
+     * @param original the replica whose URL is given to clients
+     * @return the ordered replicas
+     */
+    private static FileServerMonitor[] originalFirst(FileServerMonitor[] replicas, FileServerMonitor original){
+        FileServerMonitor[] ordered = replicas.clone();
+        for (int i = 0; i < ordered.length; i++) {
+            if(ordered[i] == original) {
+                ordered[i] = ordered[0];
+                ordered[0] = original;
+                break;
+            }
+        }
+        return ordered;
+    }
+
     private FileServerMonitor[] getReplicaArray(Set<String> uris, String original){
         FileServerMonitor[] servers = new FileServerMonitor[uris.size()];
         int i = 0;
@@ -526,39 +1404,232 @@ public class BasicDirectoryService implements DirectoryService {
         int sizeDifference = operation.sizeDifference();
         FileReference reference;
         if(operation instanceof Create op){
-            reference = new FileReference(op.fileId(), getReplicaArray(op.replicas(), op.original()),
-                    op.fileInfo(), sizeDifference);
+            if(reflects(getDirectory(userId).get(filename), offset)){
+                applied(offset);
+                return;
+            }
+            reference = new FileReference(op.fileId(), users.intern(userId), filename,
+                    getReplicaArray(op.replicas(), op.original()), sizeDifference);
             if(sizeDifference != 0){
                 for(FileServerMonitor monitor : reference.servers){
-                    monitor.usedStorage += sizeDifference;
+                    monitor.usedStorage.addAndGet(sizeDifference);
+                }
+            }
+            reference.contentVersion = offset;
+            reference.applied = offset;
+            FileReference replaced = getDirectory(userId).put(filename, reference);
+            NavigableSet<FileReference> owned = getVisibleFiles(userId);
+            if(replaced != null){
+                for(int sharedWith : replaced.sharedWith()){
+                    getVisibleFiles(users.name(sharedWith)).remove(replaced);
                 }
+                // equal in listing order, so it must be removed for the new one to be added
+                owned.remove(replaced);
             }
-            getDirectory(userId).put(filename, reference);
+            owned.add(reference);
 
+        } else if(operation instanceof DeleteDirectory op){
+            Set<String> deleted = new HashSet<>();
+            op.fileIds().values().forEach(deleted::addAll);
+            // files created after the directory was deleted aren't in the operation, and are kept
+            for(FileReference owned : new ArrayList<>(getDirectory(userId).values())){
+                if(deleted.contains(owned.fileId) && !reflects(owned, offset))
+                    removeFile(userId, owned);
+            }
         } else{
             reference = getDirectory(userId).get(filename);
-            if(operation instanceof Delete){
-                sizeDifference = reference.size;
+            if(reference == null){
+                // e.g. a repair for a file that was deleted meanwhile
+                Log.info("Operation on unknown file " + userId + "/" + filename + " ignored");
+                applied(offset);
+                return;
             }
-            reference.size += operation.sizeDifference();
-            if(sizeDifference != 0){
-                for(FileServerMonitor monitor : reference.servers){
-                    monitor.usedStorage += sizeDifference;
-                }
+            if(reflects(reference, offset)){
+                applied(offset);
+                return;
             }
-            if(operation instanceof Move op){
-                reference.servers = getReplicaArray(op.replicas(), op.original());
-                reference.info.setFileURL(reference.servers[0].server.getFileDirectUrl(op.fileId()));
-            } else if (operation instanceof Delete){
-                getDirectory(userId).remove(filename);
-            } else if(operation instanceof Share op){
-                reference.info.getSharedWith().add(op.sharingWith());
-            } else if(operation instanceof Unshare op){
-                reference.info.getSharedWith().remove(op.sharedWith());
+            // a checkpoint being written reads the file whole
+            synchronized (reference){
+                reference.applied = offset;
+                reference.size += operation.sizeDifference();
+                if(sizeDifference != 0){
+                    for(FileServerMonitor monitor : reference.servers){
+                        monitor.usedStorage.addAndGet(sizeDifference);
+                    }
+                }
+                if(operation instanceof Edit || operation instanceof Move){
+                    contents.invalidate(reference.fileId);
+                }
+                if(operation instanceof Edit){
+                    reference.contentVersion = offset;
+                } else if(operation instanceof Move op){
+                    reference.servers = getReplicaArray(op.replicas(), op.original());
+                } else if (operation instanceof Delete){
+                    removeFile(userId, reference);
+                } else if(operation instanceof Share op){
+                    if(reference.share(users.intern(op.sharingWith())))
+                        getVisibleFiles(op.sharingWith()).add(reference);
+                } else if(operation instanceof Unshare op){
+                    int sharedWith = users.idOf(op.sharedWith());
+                    if(sharedWith >= 0 && reference.unshare(sharedWith))
+                        getVisibleFiles(op.sharedWith()).remove(reference);
+                }
             }
         }
+        applied(offset);
+    }
+
+    /**
+     * Checks whether a file restored from a checkpoint already reflects an operation, which the
+     * checkpoint read from the live state after the operation was applied. Operations on a file
+     * share its owner's partition, so their versions are ordered.
+     * @param reference the file (null if there's none)
+     * @param offset the operation's version
+     * @return true if the operation must be skipped
+     */
+    private static boolean reflects(FileReference reference, long offset){
+        return reference != null && reference.applied >= offset;
+    }
+
+    /**
+     * Marks an operation as applied, starting a checkpoint if replaying the log since the last
+     * one would take about as long as loading a new one, or if the last one is old
+     * @param offset the operation's version
+     */
+    private void applied(long offset){
         syncPoint.setVersion(offset);
         Log.info("Version set to " + offset);
+        operationsSinceCheckpoint++;
+        boolean grown = operationsSinceCheckpoint >= Math.max(CHECKPOINT_MIN_OPERATIONS, checkpointedFiles);
+        boolean old = System.nanoTime() - lastCheckpoint >= TimeUnit.MINUTES.toNanos(CHECKPOINT_PERIOD);
+        if((grown || old) && checkpointing.compareAndSet(false, true)){
+            operationsSinceCheckpoint = 0;
+            lastCheckpoint = System.nanoTime();
+            checkpointWriter.execute(this::checkpoint);
+        }
+    }
+
+    /**
+     * Removes a deleted file from the directory and releases its storage on its replicas
+     * @param userId the file's owner
+     * @param reference the file
+     */
+    private void removeFile(String userId, FileReference reference){
+        for(FileServerMonitor monitor : reference.servers){
+            monitor.usedStorage.addAndGet(-reference.size);
+        }
+        getDirectory(userId).remove(reference.filename, reference);
+        getVisibleFiles(userId).remove(reference);
+        for(int sharedWith : reference.sharedWith()){
+            getVisibleFiles(users.name(sharedWith)).remove(reference);
+        }
+        contents.invalidate(reference.fileId);
+    }
+
+    /**
+     * Saves the current state, tagged with the offset of the last operation applied to every file
+     * of each partition. Runs on the checkpoint writer while operations keep being applied, so
+     * files may also reflect later operations, which they record (see reflects).
+     */
+    private void checkpoint(){
+        try {
+            // every operation up to these is applied, since versions are set after applying them
+            Map<Integer, Long> offsets = new HashMap<>();
+            for(Map.Entry<Integer, Long> version : syncPoint.getVersions().entrySet()){
+                offsets.put(version.getKey(), KafkaUtils.offsetOf(version.getValue()));
+            }
+            checkpointedFiles = DirectoryCheckpoint.save(checkpointPath, offsets, directories.values(), users);
+            Log.info("Checkpoint saved at offsets " + offsets + " with " + checkpointedFiles + " files");
+        } catch (IOException | RuntimeException e) {
+            Log.severe("Failed to save checkpoint: " + e.getMessage());
+        } finally {
+            checkpointing.set(false);
+        }
+    }
+
+    /**
+     * Loads the state from the last checkpoint, if there's one. The storage used on each files
+     * server is recomputed from the files restored.
+     * @return the offset of the last operation in the checkpoint of each partition
+     * (empty if there's no checkpoint)
+     */
+    private Map<Integer, Long> restoreCheckpoint(){
+        DirectoryCheckpoint checkpoint = DirectoryCheckpoint.open(checkpointPath);
+        if(checkpoint == null || checkpoint.offsets.isEmpty()){
+            Log.info("No checkpoint found; replaying the log from the beginning");
+            return Collections.emptyMap();
+        }
+        if(!matchesLog(checkpoint)){
+            Log.warning("Checkpoint doesn't match the log; replaying the log from the beginning");
+            return Collections.emptyMap();
+        }
+        FileServerMonitor[] servers = new FileServerMonitor[checkpoint.servers.size()];
+        for (int i = 0; i < servers.length; i++) {
+            servers[i] = getOrCreateFileServerMonitor(checkpoint.servers.get(i));
+        }
+        int[] userIds = new int[checkpoint.users.size()];
+        for (int i = 0; i < userIds.length; i++) {
+            userIds[i] = users.intern(checkpoint.users.get(i));
+        }
+        long[] restored = new long[1];
+        try {
+            checkpoint.forEachFile(entry -> {
+                FileServerMonitor[] replicas = new FileServerMonitor[entry.replicas().length];
+                for (int i = 0; i < replicas.length; i++) {
+                    replicas[i] = servers[entry.replicas()[i]];
+                    replicas[i].usedStorage.addAndGet(entry.size());
+                }
+                String owner = checkpoint.users.get(entry.owner());
+                FileReference reference = new FileReference(entry.fileId(), userIds[entry.owner()],
+                        entry.filename(), replicas, entry.size());
+                reference.contentVersion = entry.contentVersion();
+                reference.applied = entry.applied();
+                getDirectory(owner).put(reference.filename, reference);
+                getVisibleFiles(owner).add(reference);
+                for(int sharedWith : entry.sharedWith()){
+                    reference.share(userIds[sharedWith]);
+                    getVisibleFiles(checkpoint.users.get(sharedWith)).add(reference);
+                }
+                restored[0]++;
+            });
+        } catch (IOException e) {
+            Log.warning("Checkpoint unreadable (" + e.getMessage() + "); replaying the log from the beginning");
+            directories.clear();
+            visibleFiles.clear();
+            for(FileServerMonitor monitor : placement.servers()){
+                monitor.usedStorage.set(0);
+            }
+            return Collections.emptyMap();
+        }
+        checkpointedFiles = restored[0];
+        checkpoint.offsets.forEach((partition, offset) ->
+                syncPoint.setVersion(KafkaUtils.position(partition, offset)));
+        Log.info("Restored checkpoint at offsets " + checkpoint.offsets + " with " + restored[0] + " files");
+        return checkpoint.offsets;
+    }
+
+    /**
+     * Checks that a checkpoint can be resumed from the log: it must only have partitions this
+     * directory consumes, and the operations after it must still be in them. A checkpoint ahead
+     * of the log (e.g. after the log was reset) or behind its retention is never restored.
+     * @param checkpoint the checkpoint
+     * @return true if the checkpoint matches the log
+     */
+    private boolean matchesLog(DirectoryCheckpoint checkpoint){
+        List<Integer> owned = ownedPartitions();
+        if(!owned.containsAll(checkpoint.offsets.keySet()))
+            return false;
+        Map<Integer, Long> beginning = KafkaUtils.beginningOffsets(KafkaUtils.DIR_FILES_TOPIC, owned);
+        Map<Integer, Long> end = KafkaUtils.endOffsets(KafkaUtils.DIR_FILES_TOPIC, owned);
+        if(beginning == null || end == null)
+            return false;
+        for(Map.Entry<Integer, Long> applied : checkpoint.offsets.entrySet()){
+            long offset = applied.getValue(); // of the last operation applied
+            if(offset >= end.getOrDefault(applied.getKey(), 0L)
+                    || offset + 1 < beginning.getOrDefault(applied.getKey(), 0L))
+                return false;
+        }
+        return true;
     }
 
 }
@@ -8,6 +8,7 @@ import tp1.common.exceptions.ConflicitingUsersException;
 import tp1.common.exceptions.IncorrectPasswordException;
 import tp1.common.exceptions.InvalidArgumentException;
 import tp1.common.exceptions.InvalidUserIdException;
+import tp1.common.exceptions.RequestTimeoutException;
 import tp1.server.MulticastServiceDiscovery;
 
 import java.util.*;
@@ -88,6 +89,7 @@ public class BasicUsersService implements UsersService {
 		if(user.getPassword() != null)
 			oldUser.setPassword(user.getPassword());
 
+		invalidateCached(userId);
 		return oldUser;
 	}
 
@@ -99,6 +101,7 @@ public class BasicUsersService implements UsersService {
 			user = validateUser(userId, password);
 			users.remove(userId);
 		}
+		invalidateCached(userId);
 		directoryServer.deleteDirectoryAsync(userId);
 		return user;
 	}
@@ -117,6 +120,22 @@ public class BasicUsersService implements UsersService {
 		return returning;
 	}
 
+	/**
+	 * Makes the directory forget the old credentials and existence of a user before the update
+	 * or delete is answered, retrying in the background if the directory doesn't respond
+	 * @param userId the user that was updated or deleted
+	 */
+	private void invalidateCached(String userId){
+		if(directoryServer == null)
+			return;
+		try {
+			directoryServer.invalidateUser(userId);
+		} catch (RequestTimeoutException e) {
+			Log.info("Directory unreachable; invalidating " + userId + " in the background");
+			directoryServer.invalidateUserAsync(userId);
+		}
+	}
+
 	/**
 	 * Validates that the user exists and the password is correct
 	 * @param userId the user id to validate
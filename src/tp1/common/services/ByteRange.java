@@ -0,0 +1,87 @@
+package tp1.common.services;
+
+/**
+ * A single range of bytes of a file, as requested by an HTTP Range header ("bytes=first-last").
+ *
+ * Either bound may be open: first is -1 for a suffix of the file with the last bytes,
+ * and last is -1 to read until the end of the file.
+ */
+public record ByteRange(long first, long last) {
+    private static final String UNIT = "bytes=";
+
+    /**
+     * Parses a Range header
+     * @param header the header's value (may be null)
+     * @return the range or null if the header is absent, malformed or has several ranges
+     * (in which case the whole file is served)
+     */
+    public static ByteRange parse(String header){
+        if(header == null || !header.startsWith(UNIT))
+            return null;
+        String spec = header.substring(UNIT.length()).trim();
+        int dash = spec.indexOf('-');
+        if(dash < 0 || spec.indexOf(',') >= 0)
+            return null;
+        String from = spec.substring(0, dash).trim();
+        String to = spec.substring(dash + 1).trim();
+        try {
+            if(from.isEmpty()) {
+                long suffix = Long.parseLong(to);
+                return suffix < 0 ? null : new ByteRange(-1, suffix);
+            }
+            long first = Long.parseLong(from);
+            long last = to.isEmpty() ? -1 : Long.parseLong(to);
+            if(first < 0 || (last != -1 && last < first))
+                return null;
+            return new ByteRange(first, last);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Drops a range whose If-Range validator doesn't match the file's current entity tag,
+     * so a client holding an outdated copy gets the whole file instead of mixing versions
+     * @param range the requested range (may be null)
+     * @param ifRange the If-Range header's value (may be null)
+     * @param tag the file's entity tag (null if unknown)
+     * @return the range to serve or null to serve the whole file
+     */
+    public static ByteRange ifRange(ByteRange range, String ifRange, String tag){
+        if(range == null || ifRange == null)
+            return range;
+        return ifRange.equals(tag) ? range : null;
+    }
+
+    /**
+     * Resolves the open bounds of the range against the size of a file
+     * @param size the file's size
+     * @return the range with both bounds set or null if no byte of the file is in the range
+     */
+    public ByteRange resolve(long size){
+        if(first == -1) {
+            if(last == 0 || size == 0)
+                return null;
+            return new ByteRange(Math.max(0, size - last), size - 1);
+        }
+        if(first >= size)
+            return null;
+        return new ByteRange(first, last == -1 || last >= size ? size - 1 : last);
+    }
+
+    /**
+     * Number of bytes of a resolved range
+     * @return the length
+     */
+    public long length(){
+        return last - first + 1;
+    }
+
+    /**
+     * Formats the range as the value of a Range header
+     * @return the header's value
+     */
+    public String toHeader(){
+        return UNIT + (first == -1 ? "" : first) + "-" + (last == -1 ? "" : last);
+    }
+}
@@ -0,0 +1,358 @@
+package tp1.common.services;
+
+import tp1.api.FileManifest;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Stores the contents of files as content-defined chunks addressed by their SHA-256, so
+ * identical and near-identical files share the chunks they have in common.
+ *
+ * Chunk boundaries are picked by a rolling (gear) hash of the contents, so an edit only changes
+ * the chunks around it. Each chunk counts the manifests referencing it and is deleted when the
+ * last one is released. The counts aren't persisted, they're rebuilt from the manifests on startup.
+ */
+class ChunkStore {
+    private static final Logger Log = Logger.getLogger(ChunkStore.class.getName());
+
+    // Chunks are cut between these sizes, and are 8 KiB long on average
+    private static final int MIN_CHUNK = 2 * 1024;
+    private static final int MAX_CHUNK = 64 * 1024;
+    // a boundary is cut when the top 13 bits of the rolling hash are zero
+    private static final long BOUNDARY_MASK = 0xFFF8000000000000L;
+
+    // Must be the same on every server, so they cut identical contents into identical chunks
+    private static final long GEAR_SEED = 0x5D2122L;
+    private static final long[] GEAR = new long[256];
+    static {
+        Random random = new Random(GEAR_SEED);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    /**
+     * Writes a file so it's either fully written or not written at all
+     */
+    interface AtomicWriter {
+        long write(Path target, InputStream data) throws IOException;
+    }
+
+    private final Path root;
+    private final AtomicWriter writer;
+
+    // number of manifests referencing each chunk
+    private final Map<String, Integer> references = new HashMap<>();
+
+    // chunks being written, which can't be read yet
+    private final Map<String, CompletableFuture<Void>> writing = new HashMap<>();
+
+    /**
+     * @param root the directory where chunks are stored
+     * @param writer writes the chunks' files
+     */
+    ChunkStore(Path root, AtomicWriter writer){
+        this.root = root;
+        this.writer = writer;
+    }
+
+    /**
+     * Counts the references of the stored manifests and deletes the chunks none references
+     * (left by writes interrupted by a crash)
+     * @param manifests every stored manifest
+     * @throws IOException if the chunks couldn't be listed
+     */
+    synchronized void load(Collection<FileManifest> manifests) throws IOException {
+        for (FileManifest manifest : manifests) {
+            for (String chunk : manifest.getChunks()) {
+                references.merge(chunk, 1, Integer::sum);
+            }
+        }
+        if(!Files.isDirectory(root))
+            return;
+        int orphans = 0;
+        try (Stream<Path> stored = Files.walk(root)) {
+            for (Path chunk : (Iterable<Path>) stored.filter(Files::isRegularFile)::iterator) {
+                if(!references.containsKey(chunk.getFileName().toString())) {
+                    Files.deleteIfExists(chunk);
+                    orphans++;
+                }
+            }
+        }
+        Log.info("Loaded " + references.size() + " chunks (" + orphans + " unreferenced chunks deleted)");
+    }
+
+    /**
+     * Splits contents into chunks, storing the ones not stored yet and referencing all of them
+     * @param data the contents
+     * @return the manifest of the contents
+     * @throws IOException if the contents couldn't be read or a chunk couldn't be written
+     */
+    FileManifest put(InputStream data) throws IOException {
+        List<String> chunks = new ArrayList<>();
+        List<Integer> lengths = new ArrayList<>();
+        byte[] buffer = new byte[MAX_CHUNK];
+        int filled = 0;
+        boolean eof = false;
+        try {
+            for(;;) {
+                if(!eof) {
+                    int requested = MAX_CHUNK - filled;
+                    int read = data.readNBytes(buffer, filled, requested);
+                    filled += read;
+                    eof = read < requested;
+                }
+                if(filled == 0)
+                    break;
+                int cut = cutPoint(buffer, filled);
+                String chunk = hash(buffer, 0, cut);
+                store(chunk, buffer, cut);
+                chunks.add(chunk);
+                lengths.add(cut);
+                System.arraycopy(buffer, cut, buffer, 0, filled - cut);
+                filled -= cut;
+            }
+        } catch (IOException e) {
+            release(chunks);
+            throw e;
+        }
+        return new FileManifest(chunks, lengths);
+    }
+
+    /**
+     * Stores a chunk received from another server, referencing it
+     * @param chunk the chunk's hash
+     * @param data the chunk's contents
+     * @throws IOException if the contents don't match the hash or the chunk couldn't be written
+     */
+    void put(String chunk, byte[] data) throws IOException {
+        if(!chunk.equals(hash(data, 0, data.length)))
+            throw new IOException("Contents of chunk " + chunk + " don't match its hash");
+        store(chunk, data, data.length);
+    }
+
+    /**
+     * References a chunk, if it's stored
+     * @param chunk the chunk's hash
+     * @return false if the chunk isn't stored (and wasn't referenced)
+     * @throws IOException if the chunk was being written and the write failed
+     */
+    boolean retain(String chunk) throws IOException {
+        CompletableFuture<Void> pending;
+        synchronized (this) {
+            Integer count = references.get(chunk);
+            if(count == null)
+                return false;
+            references.put(chunk, count + 1);
+            pending = writing.get(chunk);
+        }
+        awaitWrite(chunk, pending);
+        return true;
+    }
+
+    /**
+     * Releases the references of a manifest, deleting the chunks no longer referenced
+     * @param chunks the chunks' hashes
+     */
+    void release(List<String> chunks){
+        for (String chunk : chunks) {
+            release(chunk);
+        }
+    }
+
+    private synchronized void release(String chunk){
+        Integer count = references.get(chunk);
+        if(count == null)
+            return;
+        if(count > 1) {
+            references.put(chunk, count - 1);
+            return;
+        }
+        references.remove(chunk);
+        try {
+            Files.deleteIfExists(pathTo(chunk));
+        } catch (IOException e) {
+            Log.severe("Failed to delete chunk " + chunk + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * References a chunk, writing it if it isn't stored yet
+     * @param chunk the chunk's hash
+     * @param data a buffer starting with the chunk's contents
+     * @param length the chunk's size
+     * @throws IOException if the chunk couldn't be written
+     */
+    private void store(String chunk, byte[] data, int length) throws IOException {
+        CompletableFuture<Void> pending;
+        boolean stored;
+        synchronized (this) {
+            Integer count = references.get(chunk);
+            references.put(chunk, count == null ? 1 : count + 1);
+            stored = count != null;
+            pending = stored ? writing.get(chunk) : new CompletableFuture<>();
+            if(!stored)
+                writing.put(chunk, pending);
+        }
+        if(stored) { // deduplicated
+            awaitWrite(chunk, pending);
+            return;
+        }
+        try {
+            writer.write(pathTo(chunk), new ByteArrayInputStream(data, 0, length));
+            pending.complete(null);
+        } catch (IOException e) {
+            pending.completeExceptionally(e);
+            release(chunk);
+            throw e;
+        } finally {
+            synchronized (this) {
+                writing.remove(chunk);
+            }
+        }
+    }
+
+    /**
+     * Waits for another thread to finish writing a chunk that was just referenced
+     * @param chunk the chunk's hash
+     * @param pending the write (null if the chunk is already written)
+     * @throws IOException if the write failed, in which case the reference is released
+     */
+    private void awaitWrite(String chunk, CompletableFuture<Void> pending) throws IOException {
+        if(pending == null)
+            return;
+        try {
+            pending.get();
+        } catch (InterruptedException | ExecutionException e) {
+            release(chunk);
+            throw new IOException("Write of chunk " + chunk + " failed", e);
+        }
+    }
+
+    /**
+     * Reads a chunk
+     * @param chunk the chunk's hash
+     * @return the chunk's contents
+     * @throws IOException if the chunk isn't stored
+     */
+    byte[] read(String chunk) throws IOException {
+        return Files.readAllBytes(pathTo(chunk));
+    }
+
+    /**
+     * Builds the path to a chunk, spread over two levels of directories by its hash
+     * @param chunk the chunk's hash
+     * @return the chunk's path
+     */
+    Path pathTo(String chunk){
+        return root.resolve(chunk.substring(0, 2)).resolve(chunk.substring(2, 4)).resolve(chunk);
+    }
+
+    /**
+     * Picks where the chunk at the start of a buffer ends
+     * @param buffer the buffer
+     * @param length number of bytes in the buffer
+     * @return the chunk's size
+     */
+    private static int cutPoint(byte[] buffer, int length){
+        if(length <= MIN_CHUNK)
+            return length;
+        long hash = 0;
+        for (int i = MIN_CHUNK; i < length; i++) {
+            hash = (hash << 1) + GEAR[buffer[i] & 0xff];
+            if((hash & BOUNDARY_MASK) == 0)
+                return i + 1;
+        }
+        // no boundary found: the chunk is either as large as possible or the rest of the contents
+        return length;
+    }
+
+    /**
+     * Computes the SHA-256 of some bytes
+     * @param data the buffer
+     * @param offset offset of the first byte
+     * @param length number of bytes
+     * @return the hash in hex
+     */
+    static String hash(byte[] data, int offset, int length){
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(data, offset, length);
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Checks whether a string is a chunk's hash, so it can be safely resolved to a path
+     * @param chunk the string
+     * @return true if it's a SHA-256 in (lowercase) hex
+     */
+    static boolean isHash(String chunk){
+        return chunk.length() == 64 && chunk.chars().allMatch(c -> (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f'));
+    }
+
+    /**
+     * Total size of the contents of a manifest
+     * @param manifest the manifest
+     * @return the size in bytes
+     */
+    static long size(FileManifest manifest){
+        long size = 0;
+        for (int length : manifest.getLengths()) {
+            size += length;
+        }
+        return size;
+    }
+
+    /**
+     * Serializes a manifest, one "hash length" line per chunk
+     * @param manifest the manifest
+     * @return the serialized manifest
+     */
+    static byte[] encode(FileManifest manifest){
+        StringBuilder encoded = new StringBuilder(manifest.getChunks().size() * 72);
+        for (int i = 0; i < manifest.getChunks().size(); i++) {
+            encoded.append(manifest.getChunks().get(i)).append(' ').append(manifest.getLengths().get(i)).append('\n');
+        }
+        return encoded.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Parses a manifest serialized by encode
+     * @param encoded the serialized manifest
+     * @return the manifest
+     * @throws IOException if it isn't a valid manifest
+     */
+    static FileManifest decode(byte[] encoded) throws IOException {
+        List<String> chunks = new ArrayList<>();
+        List<Integer> lengths = new ArrayList<>();
+        for (String line : new String(encoded, StandardCharsets.US_ASCII).split("\n")) {
+            if(line.isEmpty())
+                continue;
+            int space = line.indexOf(' ');
+            if(space <= 0)
+                throw new IOException("Malformed manifest line: " + line);
+            try {
+                lengths.add(Integer.parseInt(line.substring(space + 1)));
+            } catch (NumberFormatException e) {
+                throw new IOException("Malformed manifest line: " + line);
+            }
+            chunks.add(line.substring(0, space));
+        }
+        return new FileManifest(chunks, lengths);
+    }
+}
@@ -0,0 +1,108 @@
+package tp1.common.services;
+
+import tp1.tokens.Hash;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of verified credentials and existing users, with a time to live.
+ *
+ * Only the digest of the credentials is kept. Entries are evicted in least recently used order
+ * when the cache is full, and can be invalidated when a user is updated or deleted. Entries are
+ * only added if no user was invalidated since their check with the users server started, so a
+ * check racing with an update never caches the credentials it replaced.
+ */
+class CredentialsCache {
+    private final long ttl;
+    private final int capacity;
+
+    private record Entry(String digest, long expiresAt){}
+
+    // Maps the userId to the digest of its last verified credentials (null if only existence is known)
+    private final Map<String, Entry> entries;
+    // Number of invalidations so far
+    private long generation = 0;
+
+    /**
+     * @param ttl milliseconds an entry remains valid
+     * @param capacity maximum number of users in the cache
+     */
+    CredentialsCache(long ttl, int capacity){
+        this.ttl = ttl;
+        this.capacity = capacity;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > CredentialsCache.this.capacity;
+            }
+        };
+    }
+
+    /**
+     * Checks if the credentials were recently verified
+     * @param userId the user's id
+     * @param password the user's password
+     * @return true if the credentials are known to be valid
+     */
+    synchronized boolean isVerified(String userId, String password){
+        Entry entry = valid(userId);
+        return entry != null && entry.digest() != null && entry.digest().equals(digest(userId, password));
+    }
+
+    /**
+     * Checks if the user was recently known to exist
+     * @param userId the user's id
+     * @return true if the user is known to exist
+     */
+    synchronized boolean exists(String userId){
+        return valid(userId) != null;
+    }
+
+    /**
+     * Must be taken before checking a user with the users server, to cache the outcome
+     * @return the number of invalidations so far
+     */
+    synchronized long generation(){
+        return generation;
+    }
+
+    /**
+     * Caches verified credentials
+     * @param userId the user's id
+     * @param password the user's password
+     * @param generation the generation taken before verifying them
+     */
+    synchronized void putVerified(String userId, String password, long generation){
+        if(generation == this.generation)
+            entries.put(userId, new Entry(digest(userId, password), System.currentTimeMillis() + ttl));
+    }
+
+    /**
+     * Caches the existence of a user
+     * @param userId the user's id
+     * @param generation the generation taken before checking the user
+     */
+    synchronized void putExists(String userId, long generation){
+        if(generation == this.generation && valid(userId) == null)
+            entries.put(userId, new Entry(null, System.currentTimeMillis() + ttl));
+    }
+
+    synchronized void invalidate(String userId){
+        generation++;
+        entries.remove(userId);
+    }
+
+    private Entry valid(String userId){
+        Entry entry = entries.get(userId);
+        if(entry != null && entry.expiresAt() < System.currentTimeMillis()){
+            entries.remove(userId);
+            return null;
+        }
+        return entry;
+    }
+
+    private static String digest(String userId, String password){
+        return Hash.of(userId, password == null ? "" : password);
+    }
+}
@@ -0,0 +1,244 @@
+package tp1.common.services;
+
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Snapshot of the directory's files after applying at least the operations up to given offsets.
+ *
+ * The files are written as the directory holds them, users and servers by their index in tables
+ * written after the files, and streamed from the live state while operations keep being applied.
+ * Each file records the version of the last operation applied to it, so operations it already
+ * reflects are skipped when the log is replayed from the offsets.
+ */
+class DirectoryCheckpoint {
+    private static final int MAGIC = 0x44434b50; // "DCKP"
+    private static final int FORMAT = 1;
+    private static final int BUFFER = 64 * 1024;
+
+    /**
+     * A file of the directory
+     * @param fileId the file's id
+     * @param owner index of the owner in the users table
+     * @param filename the file's name
+     * @param replicas indexes of the replicas in the servers table, the original first
+     * @param sharedWith indexes of the users the file is shared with in the users table
+     * @param size size in bytes of the file
+     * @param contentVersion version of the operation that wrote the contents
+     * @param applied version of the last operation applied to the file
+     */
+    record FileEntry(String fileId, int owner, String filename, int[] replicas, int[] sharedWith, int size,
+                     long contentVersion, long applied){}
+
+    // offset of the last operation applied to every file, for each partition
+    final Map<Integer, Long> offsets;
+
+    // interned user ids, by index
+    final List<String> users;
+
+    // URIs of the file servers, by index
+    final List<String> servers;
+
+    private final Path path;
+    // where the files start in the checkpoint
+    private final long filesStart;
+
+    private DirectoryCheckpoint(Map<Integer, Long> offsets, List<String> users, List<String> servers, Path path,
+                                long filesStart) {
+        this.offsets = offsets;
+        this.users = users;
+        this.servers = servers;
+        this.path = path;
+        this.filesStart = filesStart;
+    }
+
+    /**
+     * Writes a checkpoint atomically, so a crash never leaves a partial checkpoint behind. The
+     * files are read while they're written, each as a whole (the thread applying the operations
+     * changes a file while holding its lock).
+     * @param path where to write the checkpoint
+     * @param offsets offset of the last operation applied to every file, for each partition
+     * @param directories the files of each user
+     * @param users the interner of the user ids
+     * @return the number of files written
+     * @throws IOException if writing fails
+     */
+    static long save(Path path, Map<Integer, Long> offsets, Collection<Map<String, FileReference>> directories,
+                     IdInterner users) throws IOException {
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        Map<FileServerMonitor, Integer> servers = new LinkedHashMap<>();
+        long files = 0;
+        try (CountingOutputStream counted = new CountingOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(temp), BUFFER));
+             DataOutputStream out = new DataOutputStream(counted)) {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT);
+            out.writeInt(offsets.size());
+            for (Map.Entry<Integer, Long> offset : offsets.entrySet()) {
+                out.writeInt(offset.getKey());
+                out.writeLong(offset.getValue());
+            }
+            for (Map<String, FileReference> directory : directories) {
+                for (FileReference reference : directory.values()) {
+                    synchronized (reference) {
+                        writeFile(out, reference, servers);
+                    }
+                    files++;
+                }
+            }
+            out.writeBoolean(false);
+            // written last, since they must include everything the files refer to
+            long tables = counted.count;
+            int userCount = users.size();
+            out.writeInt(userCount);
+            for (int user = 0; user < userCount; user++) {
+                out.writeUTF(users.name(user));
+            }
+            out.writeInt(servers.size());
+            for (FileServerMonitor server : servers.keySet()) {
+                out.writeUTF(server.server.getURI());
+            }
+            out.writeLong(tables);
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return files;
+    }
+
+    private static void writeFile(DataOutputStream out, FileReference reference,
+                                  Map<FileServerMonitor, Integer> servers) throws IOException {
+        out.writeBoolean(true);
+        out.writeUTF(reference.fileId);
+        out.writeInt(reference.owner);
+        out.writeUTF(reference.filename);
+        FileServerMonitor[] replicas = reference.servers;
+        out.writeInt(replicas.length);
+        for (FileServerMonitor replica : replicas) {
+            out.writeInt(servers.computeIfAbsent(replica, k -> servers.size()));
+        }
+        int[] sharedWith = reference.sharedWith();
+        out.writeInt(sharedWith.length);
+        for (int user : sharedWith) {
+            out.writeInt(user);
+        }
+        out.writeInt(reference.size);
+        out.writeLong(reference.contentVersion);
+        out.writeLong(reference.applied);
+    }
+
+    /**
+     * Opens a checkpoint, reading its offsets and tables (its files are read by forEachFile)
+     * @param path where the checkpoint was written
+     * @return the checkpoint or null if there's no valid checkpoint
+     */
+    static DirectoryCheckpoint open(Path path) {
+        if (!Files.exists(path))
+            return null;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+            if (size < 20 || in.readInt() != MAGIC || in.readInt() != FORMAT)
+                return null;
+            int partitions = in.readInt();
+            if (partitions < 0)
+                return null;
+            Map<Integer, Long> offsets = new HashMap<>();
+            for (int i = 0; i < partitions; i++) {
+                offsets.put(in.readInt(), in.readLong());
+            }
+            long filesStart = 12 + partitions * 12L;
+
+            DataInputStream trailer = new DataInputStream(Channels.newInputStream(channel.position(size - 8)));
+            long tables = trailer.readLong();
+            if (tables < filesStart + 1 || tables > size - 8)
+                return null;
+            in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel.position(tables))));
+            List<String> users = readNames(in);
+            List<String> servers = readNames(in);
+            return new DirectoryCheckpoint(offsets, users, servers, path, filesStart);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static List<String> readNames(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if (count < 0)
+            throw new IOException("Malformed checkpoint");
+        List<String> names = new ArrayList<>(Math.min(count, BUFFER));
+        for (int i = 0; i < count; i++) {
+            names.add(in.readUTF());
+        }
+        return names;
+    }
+
+    /**
+     * Reads the files of the checkpoint, one at a time
+     * @param visitor called with each file
+     * @throws IOException if the checkpoint is malformed or couldn't be read
+     */
+    void forEachFile(FileVisitor visitor) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    Channels.newInputStream(channel.position(filesStart)), BUFFER));
+            while (in.readBoolean()) {
+                String fileId = in.readUTF();
+                int owner = checkIndex(in.readInt(), users.size());
+                String filename = in.readUTF();
+                int[] replicas = readIndexes(in, servers.size());
+                int[] sharedWith = readIndexes(in, users.size());
+                visitor.visit(new FileEntry(fileId, owner, filename, replicas, sharedWith, in.readInt(),
+                        in.readLong(), in.readLong()));
+            }
+        }
+    }
+
+    private static int[] readIndexes(DataInputStream in, int tableSize) throws IOException {
+        int count = in.readInt();
+        if (count < 0 || count > tableSize)
+            throw new IOException("Malformed checkpoint");
+        int[] indexes = new int[count];
+        for (int i = 0; i < count; i++) {
+            indexes[i] = checkIndex(in.readInt(), tableSize);
+        }
+        return indexes;
+    }
+
+    private static int checkIndex(int index, int tableSize) throws IOException {
+        if (index < 0 || index >= tableSize)
+            throw new IOException("Malformed checkpoint");
+        return index;
+    }
+
+    /**
+     * Receives the files of a checkpoint
+     */
+    interface FileVisitor {
+        void visit(FileEntry file) throws IOException;
+    }
+
+    /**
+     * Counts the bytes written, so the position of the tables is known
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+        long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
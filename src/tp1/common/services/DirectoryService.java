@@ -1,9 +1,16 @@
 package tp1.common.services;
 
+import tp1.api.BatchOperation;
+import tp1.api.BatchResult;
 import tp1.api.FileInfo;
+import tp1.api.FilePage;
 import tp1.common.exceptions.*;
 
+import java.io.InputStream;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 public interface DirectoryService {
     String VERSION_HEADER = "X-DFS-Version";
@@ -17,9 +24,39 @@ public interface DirectoryService {
 
     void unshareFile(String filename, String userId, String userIdShare, String password) throws InvalidFileLocationException, RequestTimeoutException, IncorrectPasswordException, InvalidUserIdException;
 
-    byte[] getFile(String filename, String userId, String accUserId, String password, boolean tryRedirect, long version) throws InvalidFileLocationException, NoAccessException, RequestTimeoutException, IncorrectPasswordException, InvalidUserIdException;
+    // versions has the version of each partition the client has seen (see SyncPoint.parseVersions)
+    byte[] getFile(String filename, String userId, String accUserId, String password, boolean tryRedirect, Map<Integer, Long> versions) throws InvalidFileLocationException, NoAccessException, RequestTimeoutException, IncorrectPasswordException, InvalidUserIdException;
 
     List<FileInfo> lsFile(String userId, String password) throws RequestTimeoutException, IncorrectPasswordException, InvalidUserIdException;
 
+    FilePage lsFile(String userId, String password, String cursor, int limit) throws RequestTimeoutException, IncorrectPasswordException, InvalidUserIdException, InvalidArgumentException;
+
+    Iterator<FileInfo> lsFileIterator(String userId, String password) throws RequestTimeoutException, IncorrectPasswordException, InvalidUserIdException;
+
     void deleteDirectory(String userId, String password, String token) throws RequestTimeoutException, IncorrectPasswordException, InvalidTokenException;
+
+    List<BatchResult> batch(String userId, String password, List<BatchOperation> operations) throws RequestTimeoutException, IncorrectPasswordException, InvalidUserIdException;
+
+    void invalidateUser(String userId, String token) throws InvalidTokenException;
+
+    // Variants completed once the operation is applied, instead of blocking the caller until then
+
+    CompletableFuture<FileInfo> writeFileAsync(String filename, byte[] data, String userId, String password) throws UnexpectedErrorException, RequestTimeoutException, IncorrectPasswordException, InvalidUserIdException;
+
+    // Reads the contents as a stream, holding at most a bounded amount of them in memory; size is -1 if unknown
+    CompletableFuture<FileInfo> writeFileAsync(String filename, InputStream data, long size, String userId, String password) throws UnexpectedErrorException, RequestTimeoutException, IncorrectPasswordException, InvalidUserIdException;
+
+    CompletableFuture<Void> deleteFileAsync(String filename, String userId, String password) throws InvalidFileLocationException, RequestTimeoutException, IncorrectPasswordException, InvalidUserIdException;
+
+    CompletableFuture<Void> shareFileAsync(String filename, String userId, String userIdShare, String password) throws InvalidFileLocationException, RequestTimeoutException, IncorrectPasswordException, InvalidUserIdException;
+
+    CompletableFuture<Void> unshareFileAsync(String filename, String userId, String userIdShare, String password) throws InvalidFileLocationException, RequestTimeoutException, IncorrectPasswordException, InvalidUserIdException;
+
+    CompletableFuture<byte[]> getFileAsync(String filename, String userId, String accUserId, String password, boolean tryRedirect, Map<Integer, Long> versions) throws InvalidFileLocationException, NoAccessException, RequestTimeoutException, IncorrectPasswordException, InvalidUserIdException;
+
+    CompletableFuture<List<BatchResult>> batchAsync(String userId, String password, List<BatchOperation> operations) throws RequestTimeoutException, IncorrectPasswordException, InvalidUserIdException;
+
+    FilePage lsLocalFiles(String userId, String token, String cursor, int limit) throws InvalidTokenException, InvalidArgumentException;
+
+    String shardOwner(String userId) throws RequestTimeoutException;
 }
@@ -13,6 +13,10 @@ import tp1.common.exceptions.InvalidTokenException;
 import tp1.common.exceptions.UnexpectedErrorException;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Logger;
 
 public class DropboxFilesService extends BaseFilesService{
@@ -27,6 +31,9 @@ public class DropboxFilesService extends BaseFilesService{
     private static final String DROPBOX_API_RESULT_HDR = "Dropbox-API-Result";
 
     private static final int SUCCESS_CODE = 200;
+    private static final int PARTIAL_CONTENT_CODE = 206;
+    private static final int RANGE_NOT_SATISFIABLE_CODE = 416;
+    private static final String RANGE_HDR = "Range";
     private static final int ENDPOINT_ERROR_CODE = 409;
     private static final String ERROR_SUMMARY = "error_summary";
     private static final String NOT_FOUND = "path/not_found";
@@ -53,15 +60,26 @@ public class DropboxFilesService extends BaseFilesService{
         static final String URL = "https://api.dropboxapi.com/2/files/delete_v2";
     }
 
+    private record DeleteBatchArgs(List<DeleteV2Args> entries){
+        static final String URL = "https://api.dropboxapi.com/2/files/delete_batch";
+        static final int MAX_ENTRIES = 1000;
+    }
+
     private record DownloadV1Args(String path){
         static final String URL = "https://content.dropboxapi.com/2/files/download";
     }
 
+    private record GetMetadataArgs(String path){
+        static final String URL = "https://api.dropboxapi.com/2/files/get_metadata";
+    }
+
     private record CreateFolderV2Args(String path){
         static final String URL = "https://api.dropboxapi.com/2/files/create_folder_v2";
     }
 
     private Gson json = new Gson();
+    // content hash of the files compared with other servers, valid while their revision is the same
+    private final Map<String, ContentHash> contentHashes = new ConcurrentHashMap<>();
     private OAuth2AccessToken accessToken;
     private OAuth20Service service;
     public DropboxFilesService(boolean cleanState, String apiKey, String apiSecret, String accessTokenStr){
@@ -71,7 +89,7 @@ public class DropboxFilesService extends BaseFilesService{
         this.accessToken = new OAuth2AccessToken(accessTokenStr);
         this.service = new ServiceBuilder(apiKey).apiSecret(apiSecret).build(DropboxApi20.INSTANCE);
         initDropbox(cleanState);
-
+        startReplication();
     }
 
     @Override
@@ -102,6 +120,23 @@ public class DropboxFilesService extends BaseFilesService{
         }
     }
 
+    @Override
+    protected void deleteFiles(List<String> fileIds) {
+        // dropbox deletes the entries of a batch in a single (asynchronous) job
+        for (int start = 0; start < fileIds.size(); start += DeleteBatchArgs.MAX_ENTRIES) {
+            List<String> batch = fileIds.subList(start, Math.min(start + DeleteBatchArgs.MAX_ENTRIES, fileIds.size()));
+            List<DeleteV2Args> entries = new ArrayList<>(batch.size());
+            for (String fileId : batch) {
+                entries.add(new DeleteV2Args(pathToFile(fileId)));
+            }
+            ApiResponse r = rpc(DeleteBatchArgs.URL, new DeleteBatchArgs(entries));
+            if(r.code != SUCCESS_CODE){
+                Log.info("Batch delete failed; deleting the files one by one");
+                super.deleteFiles(batch);
+            }
+        }
+    }
+
     @Override
     public byte[] getFile(String fileId, String token, long version) throws
             UnexpectedErrorException, InvalidFileLocationException, InvalidTokenException {
@@ -118,6 +153,90 @@ public class DropboxFilesService extends BaseFilesService{
         return r.data();
     }
 
+    @Override
+    protected FileSlice readFile(String fileId, ByteRange range, String ifRange, boolean gzip)
+            throws UnexpectedErrorException, InvalidFileLocationException {
+        DownloadV1Args args = new DownloadV1Args(pathToFile(fileId));
+        // the range is served by dropbox, so only the requested bytes are transferred
+        DownloadResponse r = contentDownload(DownloadV1Args.URL, args, range == null ? null : range.toHeader());
+        if(r.code == RANGE_NOT_SATISFIABLE_CODE){
+            ApiResponse metadata = rpc(GetMetadataArgs.URL, new GetMetadataArgs(pathToFile(fileId)));
+            if(metadata.code == ENDPOINT_ERROR_CODE && metadata.isNotFound()){
+                throw new InvalidFileLocationException();
+            } else if(metadata.code != SUCCESS_CODE){
+                throw new UnexpectedErrorException();
+            }
+            JsonObject file = metadata.response().getAsJsonObject();
+            return FileSlice.unsatisfiable(file.get("size").getAsLong(), entityTag(file));
+        }
+        if(r.code == ENDPOINT_ERROR_CODE && r.isNotFound()){
+            throw new InvalidFileLocationException();
+        } else if(r.code != SUCCESS_CODE && r.code != PARTIAL_CONTENT_CODE){
+            throw new UnexpectedErrorException();
+        }
+        // the result header carries the file's metadata
+        JsonObject file = r.response().getAsJsonObject();
+        long size = file.get("size").getAsLong();
+        String tag = entityTag(file);
+        if(r.code == SUCCESS_CODE)
+            return FileSlice.inMemory(r.data(), 0, size, tag, false);
+        if(ByteRange.ifRange(range, ifRange, tag) == null) {
+            Log.info("File changed since the client's copy; reading it whole");
+            return readFile(fileId, null, null, gzip);
+        }
+        return FileSlice.inMemory(r.data(), range.resolve(size).first(), size, tag, true);
+    }
+
+    /**
+     * The content hash of a file, as of a revision
+     * @param tag the entity tag of the revision hashed
+     * @param hash the SHA-256 (in hex) of the contents
+     */
+    private record ContentHash(String tag, String hash){}
+
+    /**
+     * Hashes the contents of a file, which are only downloaded again once dropbox reports another
+     * revision of it, so comparisons with other servers cost a metadata request per file.
+     */
+    @Override
+    protected String contentHash(String fileId) throws InvalidFileLocationException, UnexpectedErrorException {
+        ContentHash known = contentHashes.get(fileId);
+        if(known != null) {
+            ApiResponse metadata = rpc(GetMetadataArgs.URL, new GetMetadataArgs(pathToFile(fileId)));
+            if(metadata.code == ENDPOINT_ERROR_CODE && metadata.isNotFound()){
+                contentHashes.remove(fileId, known);
+                throw new InvalidFileLocationException();
+            } else if(metadata.code != SUCCESS_CODE){
+                throw new UnexpectedErrorException();
+            }
+            if(entityTag(metadata.response().getAsJsonObject()).equals(known.tag()))
+                return known.hash();
+        }
+        FileSlice contents = readFile(fileId, null, null, false);
+        try {
+            // keyed by the revision downloaded, even if it changed since the metadata was read
+            String hash = MerkleTree.digest(contents);
+            contentHashes.put(fileId, new ContentHash(contents.tag(), hash));
+            return hash;
+        } catch (IOException e) {
+            throw new UnexpectedErrorException();
+        }
+    }
+
+    @Override
+    protected void invalidateCached(String fileId){
+        contentHashes.remove(fileId);
+    }
+
+    /**
+     * Builds the entity tag of a file from its revision
+     * @param metadata the file's metadata
+     * @return the (quoted) entity tag
+     */
+    private static String entityTag(JsonObject metadata){
+        return "\"" + metadata.get("rev").getAsString() + "\"";
+    }
+
     private void initDropbox(boolean cleanState){
         Log.info("Initializing Dropbox");
         if(cleanState){
@@ -140,8 +259,22 @@ public class DropboxFilesService extends BaseFilesService{
      * @return the response
      */
     private DownloadResponse contentDownload(String url, Object args){
+        return contentDownload(url, args, null);
+    }
+
+    /**
+     * Binding for dropbox api Content-download endpoints, downloading only a range of the file
+     *
+     * @param url the api url
+     * @param args the header args
+     * @param range the Range header's value (null for the whole file)
+     * @return the response
+     */
+    private DownloadResponse contentDownload(String url, Object args, String range){
         OAuthRequest request = new OAuthRequest(Verb.POST, url);
         request.addHeader(CONTENT_TYPE_HDR, OCTET_STREAM_CONTENT_TYPE);
+        if(range != null)
+            request.addHeader(RANGE_HDR, range);
 
         String json_args = json.toJson(args);
         request.addHeader(DROPBOX_API_ARG_HDR, json_args);
@@ -155,7 +288,7 @@ public class DropboxFilesService extends BaseFilesService{
             int code = r.getCode();
             String result;
             byte[] data;
-            if(code == SUCCESS_CODE) {
+            if(code == SUCCESS_CODE || code == PARTIAL_CONTENT_CODE) {
                 result = r.getHeader(DROPBOX_API_RESULT_HDR);
                 data = r.getStream().readAllBytes();
             } else{
@@ -0,0 +1,184 @@
+package tp1.common.services;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Format of the files stored by servers that compress them: a header with the codec and the
+ * size of the contents, followed by the contents encoded by the codec.
+ *
+ * The codec is picked per file: contents already compressed (recognized by their magic number)
+ * are stored as they are, and the others are only compressed if a sample of them shrinks enough.
+ * Gzip is used so the stored payload can be sent as is to clients accepting that encoding.
+ */
+class FileCodec {
+    // Size of the header, which the payload follows
+    static final int HEADER = 16;
+    private static final int MAGIC = 0x54503143; // "TP1C"
+
+    // Bytes sampled to pick the codec
+    private static final int PROBE = 64 * 1024;
+    // Smaller contents aren't worth compressing
+    private static final int MIN_COMPRESSED = 512;
+    // The sample must shrink at least to this fraction of its size for the file to be compressed
+    private static final double MAX_RATIO = 0.9;
+    private static final int BUFFER = 64 * 1024;
+
+    // Magic numbers of formats that are already compressed
+    private static final byte[][] COMPRESSED_FORMATS = {
+            {0x1f, (byte) 0x8b},                                // gzip
+            {0x50, 0x4b, 0x03, 0x04},                           // zip (and docx, jar, ...)
+            {(byte) 0x89, 0x50, 0x4e, 0x47},                    // png
+            {(byte) 0xff, (byte) 0xd8, (byte) 0xff},            // jpeg
+            {0x47, 0x49, 0x46, 0x38},                           // gif
+            {0x28, (byte) 0xb5, 0x2f, (byte) 0xfd},             // zstd
+            {(byte) 0xfd, 0x37, 0x7a, 0x58, 0x5a, 0x00},        // xz
+            {0x42, 0x5a, 0x68},                                 // bzip2
+            {0x37, 0x7a, (byte) 0xbc, (byte) 0xaf, 0x27, 0x1c}, // 7z
+            {0x52, 0x61, 0x72, 0x21},                           // rar
+            {0x1a, 0x45, (byte) 0xdf, (byte) 0xa3},             // matroska, webm
+            {0x4f, 0x67, 0x67, 0x53},                           // ogg
+            {0x49, 0x44, 0x33},                                 // mp3
+    };
+    // mp4 and quicktime have their magic number after the size of the first box
+    private static final byte[] FTYP = {0x66, 0x74, 0x79, 0x70};
+
+    /**
+     * How the contents of a file are encoded
+     */
+    enum Codec {
+        IDENTITY(null),
+        GZIP("gzip");
+
+        // name of the codec's HTTP content coding
+        final String encoding;
+
+        Codec(String encoding){
+            this.encoding = encoding;
+        }
+    }
+
+    /**
+     * The header of a stored file
+     * @param codec how the payload is encoded
+     * @param size size of the decoded contents
+     */
+    record Header(Codec codec, long size){}
+
+    private FileCodec(){}
+
+    /**
+     * Writes contents, picking their codec
+     * @param data the contents
+     * @param channel the (empty) file
+     * @return the size of the contents
+     * @throws IOException if the contents couldn't be read or written
+     */
+    static long write(InputStream data, FileChannel channel) throws IOException {
+        byte[] probe = data.readNBytes(PROBE);
+        Codec codec = choose(probe);
+        channel.position(HEADER);
+        OutputStream out = Channels.newOutputStream(channel);
+        long size = probe.length;
+        if(codec == Codec.GZIP) {
+            GZIPOutputStream gzip = new GZIPOutputStream(out, BUFFER);
+            gzip.write(probe);
+            size += data.transferTo(gzip);
+            gzip.finish();
+        } else {
+            out.write(probe);
+            size += data.transferTo(out);
+        }
+        // the size is only known once the contents are written
+        ByteBuffer header = ByteBuffer.allocate(HEADER).putInt(MAGIC).putInt(codec.ordinal()).putLong(size).flip();
+        while (header.hasRemaining()) {
+            channel.write(header, header.position());
+        }
+        return size;
+    }
+
+    /**
+     * Picks the codec of contents from their first bytes
+     * @param probe the first bytes
+     * @return the codec
+     */
+    static Codec choose(byte[] probe){
+        if(probe.length < MIN_COMPRESSED || isCompressed(probe))
+            return Codec.IDENTITY;
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        try {
+            deflater.setInput(probe);
+            deflater.finish();
+            byte[] sink = new byte[BUFFER];
+            long compressed = 0;
+            while (!deflater.finished()) {
+                compressed += deflater.deflate(sink);
+            }
+            return compressed <= probe.length * MAX_RATIO ? Codec.GZIP : Codec.IDENTITY;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static boolean isCompressed(byte[] probe){
+        for (byte[] magic : COMPRESSED_FORMATS) {
+            if(startsWith(probe, 0, magic))
+                return true;
+        }
+        return startsWith(probe, 4, FTYP);
+    }
+
+    private static boolean startsWith(byte[] data, int offset, byte[] prefix){
+        if(data.length < offset + prefix.length)
+            return false;
+        for (int i = 0; i < prefix.length; i++) {
+            if(data[offset + i] != prefix[i])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Reads the header of a stored file
+     * @param file the file
+     * @return the header
+     * @throws IOException if the file couldn't be read or has no valid header
+     */
+    static Header readHeader(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER);
+            while (header.hasRemaining()) {
+                if(channel.read(header, header.position()) < 0)
+                    throw new EOFException("Truncated header in " + file);
+            }
+            header.flip();
+            int codec = header.getInt(4);
+            if(header.getInt(0) != MAGIC || codec < 0 || codec >= Codec.values().length)
+                throw new IOException("Invalid header in " + file);
+            return new Header(Codec.values()[codec], header.getLong(8));
+        }
+    }
+
+    /**
+     * Decodes the contents of an opened stored file
+     * @param channel the file, closed with the returned stream (or if decoding fails)
+     * @param codec the file's codec
+     * @return the contents, to be closed by the caller
+     * @throws IOException if the file couldn't be read
+     */
+    static InputStream decode(FileChannel channel, Codec codec) throws IOException {
+        InputStream in = Channels.newInputStream(channel.position(HEADER));
+        try {
+            return codec == Codec.GZIP ? new GZIPInputStream(in, BUFFER) : new BufferedInputStream(in, BUFFER);
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+}
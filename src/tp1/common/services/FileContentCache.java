@@ -0,0 +1,197 @@
+package tp1.common.services;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Memory bounded cache of file contents, keyed by file id and version.
+ *
+ * Follows W-TinyLFU: new entries go to a small LRU admission window, and an entry leaving the
+ * window only enters the main LRU region if it was accessed more often than the entries it would
+ * evict. Access frequencies are estimated by a count-min sketch that is periodically halved, so
+ * one-off reads of large files can't flush the popular ones out of the cache.
+ */
+class FileContentCache {
+    // fraction of the capacity used by the admission window
+    private static final double WINDOW_FRACTION = 0.01;
+
+    // number of rows of the frequency sketch
+    private static final int SKETCH_DEPTH = 4;
+
+    // maximum value of a sketch counter
+    private static final int MAX_FREQUENCY = 15;
+
+    private static final int[] SEEDS = {0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F};
+
+    private record Entry(String key, long version, byte[] data){}
+
+    private final long windowCapacity;
+    private final long mainCapacity;
+    private final int maxEntrySize;
+
+    private final LinkedHashMap<String, Entry> window = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, Entry> main = new LinkedHashMap<>(16, 0.75f, true);
+    private long windowBytes = 0;
+    private long mainBytes = 0;
+
+    private final byte[][] sketch;
+    private final int sketchMask;
+    private final int resetThreshold;
+    private int increments = 0;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    /**
+     * @param capacity maximum number of bytes of file contents in the cache
+     * @param maxEntrySize files larger than this number of bytes are never cached
+     */
+    FileContentCache(long capacity, int maxEntrySize){
+        this.windowCapacity = Math.max((long) (capacity * WINDOW_FRACTION), maxEntrySize);
+        this.mainCapacity = Math.max(capacity - windowCapacity, 0);
+        this.maxEntrySize = maxEntrySize;
+        // sized for files averaging 16KB, within [1K, 1M] counters per row
+        int width = Integer.highestOneBit((int) Math.min(Math.max(capacity >> 14, 1 << 10), 1 << 20));
+        this.sketch = new byte[SKETCH_DEPTH][width];
+        this.sketchMask = width - 1;
+        this.resetThreshold = width * 10;
+    }
+
+    /**
+     * Gets the contents of a file
+     * @param key the file's id
+     * @param version the version of the contents that is expected
+     * @return the contents or null if they're not cached with that version
+     */
+    synchronized byte[] get(String key, long version){
+        recordAccess(key);
+        Entry entry = window.get(key);
+        if(entry == null)
+            entry = main.get(key);
+        if(entry == null || entry.version() != version){
+            if(entry != null)
+                invalidate(key);
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.data();
+    }
+
+    /**
+     * Offers the contents of a file to the cache
+     * @param key the file's id
+     * @param version the version of the contents
+     * @param data the contents
+     */
+    synchronized void put(String key, long version, byte[] data){
+        if(data.length > maxEntrySize)
+            return;
+        invalidate(key);
+        recordAccess(key);
+        window.put(key, new Entry(key, version, data));
+        windowBytes += data.length;
+        Iterator<Entry> eldest = window.values().iterator();
+        while(windowBytes > windowCapacity && eldest.hasNext()){
+            Entry candidate = eldest.next();
+            eldest.remove();
+            windowBytes -= candidate.data().length;
+            admit(candidate);
+        }
+    }
+
+    /**
+     * Removes a file from the cache
+     * @param key the file's id
+     */
+    synchronized void invalidate(String key){
+        Entry entry = window.remove(key);
+        if(entry != null)
+            windowBytes -= entry.data().length;
+        entry = main.remove(key);
+        if(entry != null)
+            mainBytes -= entry.data().length;
+    }
+
+    synchronized long hits(){
+        return hits;
+    }
+
+    synchronized long misses(){
+        return misses;
+    }
+
+    synchronized long evictions(){
+        return evictions;
+    }
+
+    synchronized double hitRate(){
+        long requests = hits + misses;
+        return requests == 0 ? 0 : (double) hits / requests;
+    }
+
+    /**
+     * Moves an entry evicted from the window to the main region, if it is accessed more
+     * frequently than every entry that would have to be evicted to fit it. The victims are only
+     * evicted once the candidate is known to be admitted.
+     * @param candidate the entry evicted from the window
+     */
+    private void admit(Entry candidate){
+        int frequency = frequency(candidate.key());
+        long needed = mainBytes + candidate.data().length - mainCapacity;
+        int victims = 0;
+        for (Iterator<Entry> eldest = main.values().iterator(); needed > 0; victims++) {
+            if(!eldest.hasNext()){
+                evictions++;
+                return;
+            }
+            Entry victim = eldest.next();
+            if(frequency(victim.key()) >= frequency){
+                evictions++;
+                return;
+            }
+            needed -= victim.data().length;
+        }
+        Iterator<Entry> eldest = main.values().iterator();
+        for (int i = 0; i < victims; i++) {
+            mainBytes -= eldest.next().data().length;
+            eldest.remove();
+            evictions++;
+        }
+        main.put(candidate.key(), candidate);
+        mainBytes += candidate.data().length;
+    }
+
+    private void recordAccess(String key){
+        int hash = key.hashCode();
+        for (int i = 0; i < SKETCH_DEPTH; i++) {
+            int index = index(hash, i);
+            if(sketch[i][index] < MAX_FREQUENCY)
+                sketch[i][index]++;
+        }
+        if(++increments >= resetThreshold){
+            // halve every counter so old popularity fades away
+            for(byte[] row : sketch){
+                for (int j = 0; j < row.length; j++) {
+                    row[j] >>= 1;
+                }
+            }
+            increments /= 2;
+        }
+    }
+
+    private int frequency(String key){
+        int hash = key.hashCode();
+        int min = MAX_FREQUENCY;
+        for (int i = 0; i < SKETCH_DEPTH; i++) {
+            min = Math.min(min, sketch[i][index(hash, i)]);
+        }
+        return min;
+    }
+
+    private int index(int hash, int row){
+        int h = (hash ^ SEEDS[row]) * SEEDS[(row + 1) % SKETCH_DEPTH];
+        return (h ^ (h >>> 16)) & sketchMask;
+    }
+}
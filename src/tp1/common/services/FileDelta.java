@@ -0,0 +1,370 @@
+package tp1.common.services;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * The differences between a file and a replica's older copy of it, computed rsync-style.
+ *
+ * The replica describes its copy by the signatures of its blocks: a weak rolling checksum and
+ * a strong hash of each one. The original slides a window over the file, rolling the weak
+ * checksum a byte at a time, and only hashes the windows whose checksum matches a block's.
+ * Matched windows are sent as references to the replica's blocks, everything else as literal
+ * bytes, so the replica rebuilds the file transferring little more than what changed.
+ */
+public class FileDelta {
+
+    // Blocks are about the square root of the file's size, between these sizes
+    private static final int MIN_BLOCK = 2 * 1024;
+    private static final int MAX_BLOCK = 64 * 1024;
+    // bytes of the SHA-256 kept as the strong hash of a block
+    private static final int STRONG_LENGTH = 16;
+    private static final int HASH_LENGTH = 32;
+    // the file is read through a buffer of (at least) this size
+    private static final int READ_BUFFER = 1024 * 1024;
+    // the delta is written and read through buffers of this size
+    private static final int STREAM_BUFFER = 64 * 1024;
+
+    // Operations of a delta
+    private static final int COPY = 'C';
+    private static final int LITERAL = 'L';
+    private static final int END = 'E';
+
+    private final Path file;
+    private final int blockSize;
+    private final byte[][] strong;
+    // blocks with each weak checksum, in order
+    private final Map<Integer, List<Integer>> blocks = new HashMap<>();
+
+    /**
+     * @param file the original file
+     * @param signatures the signatures of the replica's copy
+     * @throws IOException if the signatures are malformed
+     */
+    FileDelta(Path file, byte[] signatures) throws IOException {
+        this.file = file;
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(signatures));
+        blockSize = in.readInt();
+        int count = in.readInt();
+        if(blockSize < MIN_BLOCK || blockSize > MAX_BLOCK || count < 0
+                || signatures.length != 8 + (long) count * (4 + STRONG_LENGTH))
+            throw new IOException("Malformed signatures");
+        strong = new byte[count][STRONG_LENGTH];
+        for (int i = 0; i < count; i++) {
+            int weak = in.readInt();
+            in.readFully(strong[i]);
+            blocks.computeIfAbsent(weak, k -> new ArrayList<>(1)).add(i);
+        }
+    }
+
+    /**
+     * Computes the signatures of the (full) blocks of a file
+     * @param file the replica's copy
+     * @return the serialized signatures
+     * @throws IOException if the file couldn't be read
+     */
+    static byte[] signatures(Path file) throws IOException {
+        long size = Files.size(file);
+        int blockSize = (int) Math.min(MAX_BLOCK, Math.max(MIN_BLOCK, Long.highestOneBit((long) Math.sqrt(size))));
+        int count = (int) (size / blockSize);
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream(8 + count * (4 + STRONG_LENGTH));
+        DataOutputStream out = new DataOutputStream(encoded);
+        out.writeInt(blockSize);
+        out.writeInt(count);
+        MessageDigest digest = sha256();
+        byte[] block = new byte[blockSize];
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(file), READ_BUFFER)) {
+            for (int i = 0; i < count; i++) {
+                if(in.readNBytes(block, 0, blockSize) < blockSize)
+                    throw new EOFException("File truncated while computing its signatures");
+                out.writeInt(weak(block, 0, blockSize));
+                digest.update(block, 0, blockSize);
+                out.write(digest.digest(), 0, STRONG_LENGTH);
+            }
+        }
+        return encoded.toByteArray();
+    }
+
+    /**
+     * Writes the delta, ending with the SHA-256 of the whole file so the replica can verify it
+     * @param output where the delta is written
+     * @throws IOException if the file couldn't be read or the delta written
+     */
+    public void writeTo(OutputStream output) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(output, STREAM_BUFFER));
+        out.writeInt(blockSize);
+        MessageDigest whole = sha256();
+        MessageDigest digest = sha256();
+        int length = blockSize;
+        byte[] buffer = new byte[Math.max(4 * length, READ_BUFFER)];
+        int filled = 0;
+        int window = 0; // start of the window
+        int literal = 0; // start of the bytes not sent yet
+        boolean eof = false;
+        CopyRun run = new CopyRun(out);
+        int a = 0, b = 0;
+        boolean rolling = false;
+        try (InputStream in = Files.newInputStream(file)) {
+            for(;;) {
+                if(window + length > filled) {
+                    if(eof)
+                        break;
+                    // sends the literal bytes before the window, and moves the window to the start
+                    if(window > literal) {
+                        run.flush();
+                        writeLiteral(out, buffer, literal, window - literal);
+                    }
+                    System.arraycopy(buffer, window, buffer, 0, filled - window);
+                    filled -= window;
+                    window = literal = 0;
+                    int read = in.readNBytes(buffer, filled, buffer.length - filled);
+                    whole.update(buffer, filled, read);
+                    filled += read;
+                    eof = filled < buffer.length;
+                    continue;
+                }
+                if(!rolling) {
+                    int checksum = weak(buffer, window, length);
+                    a = checksum & 0xffff;
+                    b = checksum >>> 16;
+                    rolling = true;
+                }
+                int match = find((b << 16) | a, buffer, window, digest);
+                if(match >= 0) {
+                    if(window > literal) {
+                        run.flush();
+                        writeLiteral(out, buffer, literal, window - literal);
+                    }
+                    run.add(match);
+                    window += length;
+                    literal = window;
+                    rolling = false;
+                } else if(window + length < filled) {
+                    int removed = buffer[window] & 0xff;
+                    int added = buffer[window + length] & 0xff;
+                    a = (a - removed + added) & 0xffff;
+                    b = (b - length * removed + a) & 0xffff;
+                    window++;
+                } else {
+                    window++;
+                    rolling = false;
+                }
+            }
+        }
+        run.flush();
+        if(filled > literal)
+            writeLiteral(out, buffer, literal, filled - literal);
+        out.writeByte(END);
+        out.write(whole.digest());
+        out.flush();
+    }
+
+    /**
+     * Finds a block of the replica equal to a window of the file
+     * @param weak the window's weak checksum
+     * @param buffer the buffer with the window
+     * @param window start of the window
+     * @param digest computes the strong hashes
+     * @return the block's index or -1 if none matches
+     */
+    private int find(int weak, byte[] buffer, int window, MessageDigest digest){
+        List<Integer> candidates = blocks.get(weak);
+        if(candidates == null)
+            return -1;
+        digest.update(buffer, window, blockSize);
+        byte[] hash = digest.digest();
+        for (int block : candidates) {
+            if(Arrays.equals(hash, 0, STRONG_LENGTH, strong[block], 0, STRONG_LENGTH))
+                return block;
+        }
+        return -1;
+    }
+
+    private static void writeLiteral(DataOutputStream out, byte[] buffer, int offset, int length) throws IOException {
+        out.writeByte(LITERAL);
+        out.writeInt(length);
+        out.write(buffer, offset, length);
+    }
+
+    /**
+     * Consecutive matched blocks, sent as a single copy
+     */
+    private static class CopyRun {
+        private final DataOutputStream out;
+        private int first = -1;
+        private int count = 0;
+
+        CopyRun(DataOutputStream out){
+            this.out = out;
+        }
+
+        void add(int block) throws IOException {
+            if(count > 0 && first + count == block) {
+                count++;
+                return;
+            }
+            flush();
+            first = block;
+            count = 1;
+        }
+
+        void flush() throws IOException {
+            if(count == 0)
+                return;
+            out.writeByte(COPY);
+            out.writeInt(first);
+            out.writeInt(count);
+            count = 0;
+        }
+    }
+
+    /**
+     * Rebuilds a file from the replica's copy and a delta
+     * @param base the replica's copy (must not change while patching)
+     * @param delta the delta
+     * @return the contents of the original file, whose read fails at the end if they don't match it
+     * @throws IOException if the copy couldn't be opened or the delta is malformed
+     */
+    static Patched patch(Path base, InputStream delta) throws IOException {
+        FileChannel channel = FileChannel.open(base, StandardOpenOption.READ);
+        try {
+            return new Patched(channel, new DataInputStream(new BufferedInputStream(delta, STREAM_BUFFER)));
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * The contents of the original file, read from the replica's copy or the delta's literals
+     */
+    static class Patched extends InputStream {
+        private final FileChannel base;
+        private final DataInputStream delta;
+        private final int blockSize;
+        private final long baseSize;
+        private final MessageDigest digest = sha256();
+
+        private boolean literal;
+        private long position; // in the replica's copy, while copying
+        private long remaining; // bytes left of the current operation
+        private boolean done;
+        private long literalBytes;
+
+        private Patched(FileChannel base, DataInputStream delta) throws IOException {
+            this.base = base;
+            this.delta = delta;
+            this.blockSize = delta.readInt();
+            if(blockSize < MIN_BLOCK || blockSize > MAX_BLOCK)
+                throw new IOException("Malformed delta");
+            this.baseSize = base.size();
+        }
+
+        /**
+         * @return the bytes sent as literals, rather than copied from the replica's copy
+         */
+        long literalBytes(){
+            return literalBytes;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if(len == 0)
+                return 0;
+            while (remaining == 0) {
+                if(done)
+                    return -1;
+                next();
+            }
+            int n = (int) Math.min(len, remaining);
+            if(literal) {
+                delta.readFully(b, off, n);
+            } else {
+                ByteBuffer target = ByteBuffer.wrap(b, off, n);
+                while (target.hasRemaining()) {
+                    if(base.read(target, position + target.position() - off) < 0)
+                        throw new EOFException("Copied block beyond the end of the file");
+                }
+                position += n;
+            }
+            remaining -= n;
+            digest.update(b, off, n);
+            return n;
+        }
+
+        private void next() throws IOException {
+            int op = delta.read();
+            switch (op) {
+                case COPY -> {
+                    long first = delta.readInt();
+                    long count = delta.readInt();
+                    // only whole blocks of the replica's copy are copied
+                    if(first < 0 || count < 0 || (first + count) * blockSize > baseSize)
+                        throw new IOException("Malformed delta: copied blocks beyond the end of the file");
+                    literal = false;
+                    position = first * blockSize;
+                    remaining = count * blockSize;
+                }
+                case LITERAL -> {
+                    int length = delta.readInt();
+                    if(length < 0)
+                        throw new IOException("Malformed delta: negative literal length");
+                    literal = true;
+                    remaining = length;
+                    literalBytes += remaining;
+                }
+                case END -> {
+                    byte[] expected = delta.readNBytes(HASH_LENGTH);
+                    if(!MessageDigest.isEqual(expected, digest.digest()))
+                        throw new IOException("Patched file doesn't match the original");
+                    done = true;
+                }
+                case -1 -> throw new EOFException("Truncated delta");
+                default -> throw new IOException("Malformed delta");
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                base.close();
+            } finally {
+                delta.close();
+            }
+        }
+    }
+
+    /**
+     * Computes the weak checksum of a block (as rsync's, the sum of its bytes and the sum of
+     * those sums, modulo 2^16)
+     */
+    private static int weak(byte[] data, int offset, int length){
+        int a = 0, b = 0;
+        for (int i = 0; i < length; i++) {
+            a += data[offset + i] & 0xff;
+            b += (length - i) * (data[offset + i] & 0xff);
+        }
+        return ((b & 0xffff) << 16) | (a & 0xffff);
+    }
+
+    private static MessageDigest sha256(){
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
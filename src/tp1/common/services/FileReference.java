@@ -0,0 +1,175 @@
+package tp1.common.services;
+
+import tp1.api.FileInfo;
+
+import java.util.*;
+
+/**
+ * Contains the information and location of a certain file.
+ *
+ * Kept compact since the directory holds one per file: users are stored by their interned id and
+ * the FileInfo is only built when responding to a client.
+ */
+class FileReference {
+    private static final int[] NO_USERS = new int[0];
+
+    // file id on the server
+    final String fileId;
+
+    // interned id of the owner
+    final int owner;
+
+    final String filename;
+
+    // servers where it is stored, the original (whose URL is given to clients) first
+    FileServerMonitor[] servers;
+
+    // interned ids of the users the file is shared with, sorted (replaced, never modified)
+    private volatile int[] sharedWith = NO_USERS;
+
+    // the last replica where an operation was performed
+    int lastReplica = 0;
+
+    // size in bytes of the file
+    int size;
+
+    // version of the operation that wrote the current contents
+    volatile long contentVersion = -1;
+
+    // version of the last operation applied to the file, so a checkpoint that already reflects
+    // an operation isn't changed again when the log is replayed over it
+    long applied = -1;
+
+    FileReference(String fileId, int owner, String filename, FileServerMonitor[] servers, int size) {
+        this.fileId = fileId;
+        this.owner = owner;
+        this.filename = filename;
+        this.servers = servers;
+        this.size = size;
+    }
+
+    /**
+     * The file as it will be once rewritten with contents of another size, for the operations
+     * that follow the write before it's applied
+     * @param size the new size
+     * @return a copy of this file with that size
+     */
+    FileReference resized(int size){
+        FileReference resized = new FileReference(fileId, owner, filename, servers, size);
+        resized.sharedWith = sharedWith;
+        return resized;
+    }
+
+    /**
+     * Picks the replica next to lastReplica
+     *
+     * This is used to distribute packet load amongst the replicas and to move to the next
+     * replica when one fails.
+     * @return the next replica
+     */
+    int shitfReplica(){
+        lastReplica = (lastReplica + 1) % servers.length;
+        return lastReplica;
+    }
+
+    /**
+     * Picks the replica with the lowest expected latency (kept fresh by the directory's probes,
+     * so a recovered server gets back its share of the requests).
+     * @return the chosen replica
+     */
+    int fastestReplica(){
+        FileServerMonitor[] current = servers;
+        int best = 0;
+        for (int i = 1; i < current.length; i++) {
+            if(current[i].expectedLatency() < current[best].expectedLatency())
+                best = i;
+        }
+        return best;
+    }
+
+    /**
+     * Returns a Set with the URI of each replica
+     * @return the set of URIs
+     */
+    Set<String> URIs(){
+        Set<String> uris = new HashSet<>(servers.length);
+        for(FileServerMonitor monitor : servers){
+            uris.add(monitor.server.getURI());
+        }
+        return uris;
+    }
+
+    boolean isSharedWith(int user){
+        return Arrays.binarySearch(sharedWith, user) >= 0;
+    }
+
+    int[] sharedWith(){
+        return sharedWith;
+    }
+
+    /**
+     * Shares the file with a user. Only called by the thread applying the operations.
+     * @param user the user's interned id
+     * @return false if the file was already shared with the user
+     */
+    boolean share(int user){
+        int[] current = sharedWith;
+        int position = Arrays.binarySearch(current, user);
+        if(position >= 0)
+            return false;
+        position = -position - 1;
+        int[] updated = new int[current.length + 1];
+        System.arraycopy(current, 0, updated, 0, position);
+        updated[position] = user;
+        System.arraycopy(current, position, updated, position + 1, current.length - position);
+        sharedWith = updated;
+        return true;
+    }
+
+    /**
+     * Stops sharing the file with a user. Only called by the thread applying the operations.
+     * @param user the user's interned id
+     * @return false if the file wasn't shared with the user
+     */
+    boolean unshare(int user){
+        int[] current = sharedWith;
+        int position = Arrays.binarySearch(current, user);
+        if(position < 0)
+            return false;
+        if(current.length == 1) {
+            sharedWith = NO_USERS;
+            return true;
+        }
+        int[] updated = new int[current.length - 1];
+        System.arraycopy(current, 0, updated, 0, position);
+        System.arraycopy(current, position + 1, updated, position, updated.length - position);
+        sharedWith = updated;
+        return true;
+    }
+
+    /**
+     * Builds the FileInfo of the file, with the URL of its original replica
+     * @param users the interner of the user ids
+     * @return a new FileInfo
+     */
+    FileInfo toInfo(IdInterner users){
+        int[] shared = sharedWith;
+        Set<String> names = new HashSet<>(shared.length * 2);
+        for (int user : shared) {
+            names.add(users.name(user));
+        }
+        return new FileInfo(users.name(owner), filename, servers[0].server.getFileDirectUrl(fileId), names);
+    }
+
+    /**
+     * Orders files by owner and then by filename, so listings can be paginated
+     * @param users the interner of the user ids
+     * @return the comparator
+     */
+    static Comparator<FileReference> listingOrder(IdInterner users){
+        return (a, b) -> {
+            int byOwner = a.owner == b.owner ? 0 : users.name(a.owner).compareTo(users.name(b.owner));
+            return byOwner != 0 ? byOwner : a.filename.compareTo(b.filename);
+        };
+    }
+}
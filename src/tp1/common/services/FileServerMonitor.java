@@ -0,0 +1,90 @@
+package tp1.common.services;
+
+import tp1.client.ClientUtils;
+import tp1.common.clients.FilesServerClient;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Associates a file server to the respective amount of used storage
+ */
+class FileServerMonitor {
+    final FilesServerClient server;
+
+    // used storage in bytes, as reported by the operations log
+    final AtomicLong usedStorage = new AtomicLong();
+
+    // bytes of uploads currently placed on this server but not yet reported
+    final AtomicLong reservedStorage = new AtomicLong();
+
+    // weight of the latest sample in the response time average
+    private static final double EWMA_ALPHA = 0.2;
+
+    // bits of the exponentially weighted moving average of the response time, in milliseconds
+    private final AtomicLong responseTime = new AtomicLong(Double.doubleToLongBits(0));
+
+    // requests sent to this server that haven't been answered yet
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    // when the last request to this server ended (System.nanoTime), 0 if none has
+    private volatile long lastSample;
+
+    FileServerMonitor(FilesServerClient server){
+        this.server = server;
+    }
+
+    /**
+     * The load used to compare servers when placing files
+     * @return the used plus reserved storage in bytes
+     */
+    long load(){
+        return usedStorage.get() + reservedStorage.get();
+    }
+
+    /**
+     * Marks the start of a request to this server
+     * @return the start time to pass to end
+     */
+    long begin(){
+        inFlight.incrementAndGet();
+        return System.nanoTime();
+    }
+
+    /**
+     * Marks the end of a request to this server, updating its response time
+     * @param start the value returned by begin
+     * @param success false if the request timed out (counted as the full timeout)
+     */
+    void end(long start, boolean success){
+        inFlight.decrementAndGet();
+        lastSample = System.nanoTime();
+        double sample = success ? (System.nanoTime() - start) / 1e6 : ClientUtils.READ_TIMEOUT;
+        long current, updated;
+        do {
+            current = responseTime.get();
+            double average = Double.longBitsToDouble(current);
+            average = average == 0 ? sample : EWMA_ALPHA * sample + (1 - EWMA_ALPHA) * average;
+            updated = Double.doubleToLongBits(average);
+        } while (!responseTime.compareAndSet(current, updated));
+    }
+
+    /**
+     * Checks whether the response time was last measured too long ago to be trusted
+     * @param maxAge the age of a stale measure, in nanoseconds
+     * @return true if no request ended in the last maxAge nanoseconds
+     */
+    boolean isStale(long maxAge){
+        long last = lastSample;
+        return last == 0 || System.nanoTime() - last > maxAge;
+    }
+
+    /**
+     * Expected latency of a new request, given the response time and queued requests.
+     * Servers never measured have no expected latency, so they are tried first.
+     * @return the expected latency in milliseconds
+     */
+    double expectedLatency(){
+        return Double.longBitsToDouble(responseTime.get()) * (inFlight.get() + 1);
+    }
+}
@@ -0,0 +1,143 @@
+package tp1.common.services;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The contents of a file read for a client, or the range of them it requested.
+ *
+ * The contents are either in memory, left in local files, to be transferred from them
+ * straight to the response, or decoded from a local file as they're sent. Files are opened (or
+ * kept from being deleted) when the slice is read, so the contents sent are the ones found
+ * then even if the file is replaced meanwhile, and the slice must be closed once sent.
+ * @param data the bytes read (null if not in memory)
+ * @param segments the parts of files holding the bytes, in order (null if not left in files)
+ * @param stream the bytes, positioned at the first one (null if not decoded as sent)
+ * @param first offset of the first byte
+ * @param length number of bytes
+ * @param size the file's size
+ * @param tag the file's entity tag (null if unknown)
+ * @param partial whether only a range of the file is served
+ * @param encoding the content coding of the bytes (null if they aren't encoded)
+ * @param held released when the slice is closed, besides the channels and stream (may be null)
+ */
+public record FileSlice(byte[] data, List<Segment> segments, InputStream stream, long first, long length, long size,
+                        String tag, boolean partial, String encoding, Closeable held) implements Closeable {
+
+    /**
+     * Part of a local file
+     * @param file the file
+     * @param channel the file, opened when the slice was read (null if the file can't change until
+     *                the slice is closed, in which case it's opened when read)
+     * @param position offset of the first byte
+     * @param length number of bytes
+     */
+    public record Segment(Path file, FileChannel channel, long position, long length){
+        /**
+         * Opens the segment's file for reading, unless it's already open
+         * @return the channel, to be passed to done once read
+         * @throws IOException if the file couldn't be opened
+         */
+        public FileChannel open() throws IOException {
+            return channel != null ? channel : FileChannel.open(file, StandardOpenOption.READ);
+        }
+
+        /**
+         * Closes a channel returned by open, unless it's the slice's (closed with the slice)
+         * @param opened the channel
+         * @throws IOException if the channel couldn't be closed
+         */
+        public void done(FileChannel opened) throws IOException {
+            if(opened != channel)
+                opened.close();
+        }
+    }
+
+    static FileSlice inMemory(byte[] data, long first, long size, String tag, boolean partial){
+        return new FileSlice(data, null, null, first, data.length, size, tag, partial, null, null);
+    }
+
+    static FileSlice inFiles(List<Segment> segments, long first, long length, long size, String tag, boolean partial,
+                             Closeable held){
+        return new FileSlice(null, segments, null, first, length, size, tag, partial, null, held);
+    }
+
+    static FileSlice encoded(List<Segment> segments, long length, String tag, String encoding){
+        return new FileSlice(null, segments, null, 0, length, length, tag, false, encoding, null);
+    }
+
+    static FileSlice streamed(InputStream stream, long first, long length, long size, String tag, boolean partial){
+        return new FileSlice(null, null, stream, first, length, size, tag, partial, null, null);
+    }
+
+    static FileSlice whole(byte[] data, String tag){
+        return inMemory(data, 0, data.length, tag, false);
+    }
+
+    static FileSlice unsatisfiable(long size, String tag){
+        return new FileSlice(null, null, null, 0, 0, size, tag, true, null, null);
+    }
+
+    /**
+     * Closes the files opened for the slice and releases what it held
+     * @throws IOException if any of them failed to close (after closing the others)
+     */
+    @Override
+    public void close() throws IOException {
+        IOException failed = null;
+        List<Closeable> opened = new ArrayList<>();
+        if(stream != null)
+            opened.add(stream);
+        if(segments != null) {
+            for (Segment segment : segments) {
+                if(segment.channel() != null)
+                    opened.add(segment.channel());
+            }
+        }
+        if(held != null)
+            opened.add(held);
+        for (Closeable closeable : opened) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                failed = e;
+            }
+        }
+        if(failed != null)
+            throw failed;
+    }
+
+    /**
+     * Whether the requested range had any byte of the file
+     * @return false if the range was beyond the end of the file
+     */
+    public boolean satisfiable(){
+        return data != null || segments != null || stream != null;
+    }
+
+    /**
+     * Serves a range of contents already in memory
+     * @param data the whole contents of the file
+     * @param range the requested range (null for the whole file)
+     * @param ifRange the If-Range header's value (may be null)
+     * @param tag the file's entity tag (null if unknown)
+     * @return the slice
+     */
+    public static FileSlice of(byte[] data, ByteRange range, String ifRange, String tag){
+        range = ByteRange.ifRange(range, ifRange, tag);
+        if(range == null)
+            return whole(data, tag);
+        ByteRange resolved = range.resolve(data.length);
+        if(resolved == null)
+            return unsatisfiable(data.length, tag);
+        return inMemory(Arrays.copyOfRange(data, (int) resolved.first(), (int) resolved.last() + 1),
+                resolved.first(), data.length, tag, true);
+    }
+}
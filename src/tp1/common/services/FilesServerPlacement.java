@@ -0,0 +1,127 @@
+package tp1.common.services;
+
+import tp1.client.FilesClients;
+import tp1.common.clients.FilesServerClient;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Chooses the file servers where new files are placed.
+ *
+ * Uses power-of-two-choices: two random candidates are sampled and the one with the least
+ * load is picked. Placing a file reserves its size on the server until the caller releases it,
+ * so concurrent uploads spread over the servers without ever holding a lock during I/O.
+ */
+class FilesServerPlacement {
+    // Number of random samples tried before falling back to a full scan
+    private static final int MAX_SAMPLES = 4;
+
+    private final Map<String, FileServerMonitor> byUri = new ConcurrentHashMap<>();
+    private final List<FileServerMonitor> servers = new CopyOnWriteArrayList<>();
+
+    /**
+     * Number of known file servers
+     * @return the number of servers
+     */
+    int size(){
+        return servers.size();
+    }
+
+    /**
+     * The known file servers
+     * @return an unmodifiable view of the servers
+     */
+    Collection<FileServerMonitor> servers(){
+        return Collections.unmodifiableList(servers);
+    }
+
+    /**
+     * Returns the monitor of a file server, registering it if it's unknown
+     * @param uri the server's uri
+     * @return the server's monitor
+     */
+    FileServerMonitor getOrCreate(String uri){
+        FileServerMonitor monitor = byUri.get(uri);
+        if(monitor != null)
+            return monitor;
+        return byUri.computeIfAbsent(uri, k -> {
+            FilesServerClient proxy = null;
+            if(uri.endsWith("rest") || uri.endsWith("soap"))
+                proxy = FilesClients.get(uri);
+            FileServerMonitor created = new FileServerMonitor(proxy);
+            servers.add(created);
+            return created;
+        });
+    }
+
+    /**
+     * Picks the least loaded of two random servers and reserves size bytes on it.
+     * The reservation must be undone with release once the upload is reported or fails.
+     * @param size the size of the file to place
+     * @param exclude servers that can't be picked
+     * @return the picked server or null if every server is excluded
+     */
+    FileServerMonitor pick(int size, Collection<FileServerMonitor> exclude){
+        List<FileServerMonitor> snapshot = servers;
+        int n = snapshot.size();
+        FileServerMonitor picked = null;
+        if(n - exclude.size() >= 2) {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            FileServerMonitor first = null;
+            for (int i = 0; i < MAX_SAMPLES && picked == null; i++) {
+                FileServerMonitor candidate = snapshot.get(random.nextInt(n));
+                if (exclude.contains(candidate) || candidate == first)
+                    continue;
+                if (first == null)
+                    first = candidate;
+                else
+                    picked = candidate.load() < first.load() ? candidate : first;
+            }
+        }
+        if(picked == null)
+            picked = leastLoaded(snapshot, exclude);
+        if(picked != null)
+            picked.reservedStorage.addAndGet(size);
+        return picked;
+    }
+
+    /**
+     * Picks the servers that will replicate a file, reserving size bytes on each
+     * @param original the file server that already contains the file (first in the result)
+     * @param size the size of the file
+     * @return at most FilesService.NUMBER_OF_REPLICAS servers, starting with original
+     */
+    FileServerMonitor[] pickReplicas(FileServerMonitor original, int size){
+        List<FileServerMonitor> replicas = new ArrayList<>(FilesService.NUMBER_OF_REPLICAS);
+        replicas.add(original);
+        while(replicas.size() < FilesService.NUMBER_OF_REPLICAS){
+            FileServerMonitor picked = pick(size, replicas);
+            if(picked == null)
+                break;
+            replicas.add(picked);
+        }
+        return replicas.toArray(new FileServerMonitor[0]);
+    }
+
+    /**
+     * Undoes a reservation made by pick
+     * @param monitor the server the file was placed on
+     * @param size the reserved size
+     */
+    void release(FileServerMonitor monitor, int size){
+        monitor.reservedStorage.addAndGet(-size);
+    }
+
+    private static FileServerMonitor leastLoaded(List<FileServerMonitor> snapshot,
+                                                 Collection<FileServerMonitor> exclude){
+        FileServerMonitor best = null;
+        for(FileServerMonitor monitor : snapshot){
+            if(!exclude.contains(monitor) && (best == null || monitor.load() < best.load()))
+                best = monitor;
+        }
+        return best;
+    }
+}
@@ -1,9 +1,16 @@
 package tp1.common.services;
 
+import tp1.api.FileManifest;
+import tp1.common.exceptions.InvalidArgumentException;
 import tp1.common.exceptions.InvalidFileLocationException;
 import tp1.common.exceptions.InvalidTokenException;
 import tp1.common.exceptions.UnexpectedErrorException;
 
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
 public interface FilesService {
     public static final int NUMBER_OF_REPLICAS = 2;
 
@@ -11,8 +18,39 @@ public interface FilesService {
 
     void writeFile(String fileId, byte[] data, String token) throws UnexpectedErrorException, InvalidTokenException;
 
+    // Variant writing the contents as they are read, without holding them in memory
+    void writeFile(String fileId, InputStream data, String token) throws UnexpectedErrorException, InvalidTokenException;
+
     void deleteFile(String fileId, String token) throws InvalidFileLocationException, InvalidTokenException;
 
     byte[] getFile(String fileId, String token, long version) throws UnexpectedErrorException,
             InvalidFileLocationException, InvalidTokenException;
+
+    // Variant completed once the version is reached, instead of blocking the caller until then
+    CompletableFuture<byte[]> getFileAsync(String fileId, String token, long version) throws InvalidTokenException;
+
+    // Reads only the range requested by the client (range is null for the whole file), encoded with
+    // gzip if the client accepts it and the file is stored compressed, once every partition is at
+    // least at the version the client has seen of it
+    CompletableFuture<FileSlice> getFileRangeAsync(String fileId, String token, Map<Integer, Long> versions, ByteRange range,
+                                                   String ifRange, boolean gzip) throws InvalidTokenException;
+
+    // Chunks of a deduplicated file, so replicas fetch only the ones they lack (null if not deduplicated)
+    FileManifest getManifest(String fileId, String token) throws InvalidTokenException, InvalidFileLocationException,
+            UnexpectedErrorException;
+
+    byte[] getChunk(String chunk, String token) throws InvalidTokenException, InvalidFileLocationException,
+            UnexpectedErrorException;
+
+    // Differences between a file and a replica's copy, given its block signatures (null if not supported)
+    FileDelta getDelta(String fileId, byte[] signatures, String token) throws InvalidTokenException,
+            InvalidFileLocationException, UnexpectedErrorException;
+
+    // Hashes of nodes of the Merkle tree of the files this server is the source of for a replica
+    List<String> getMerkleNodes(String replica, int level, List<Integer> nodes, String token)
+            throws InvalidTokenException, InvalidArgumentException;
+
+    // Content hashes of the files in buckets of that tree, by file id
+    Map<String, String> getMerkleEntries(String replica, List<Integer> buckets, String token)
+            throws InvalidTokenException, InvalidArgumentException;
 }
@@ -0,0 +1,94 @@
+package tp1.common.services;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.Logger;
+
+/**
+ * Makes written files durable in groups: writers wait while a single thread syncs every file and
+ * directory queued since the previous group, each once, so concurrent writes share the cost of
+ * the syncs.
+ */
+class GroupSync {
+    private static final Logger Log = Logger.getLogger(GroupSync.class.getName());
+
+    /**
+     * A file or directory waiting to be synced
+     * @param path the file or directory
+     * @param synced completed once it's durable
+     */
+    private record PendingSync(Path path, CompletableFuture<Void> synced){}
+
+    private final BlockingQueue<PendingSync> pending = new LinkedBlockingQueue<>();
+
+    GroupSync(){
+        Thread syncer = new Thread(this::run, "group-sync");
+        syncer.setDaemon(true);
+        syncer.start();
+    }
+
+    /**
+     * Waits until files or directories are durable, along with the entries they hold
+     * @param paths the files or directories
+     * @throws IOException if a sync failed
+     */
+    void sync(Collection<Path> paths) throws IOException {
+        List<CompletableFuture<Void>> syncs = new ArrayList<>(paths.size());
+        for (Path path : paths) {
+            CompletableFuture<Void> synced = new CompletableFuture<>();
+            syncs.add(synced);
+            pending.add(new PendingSync(path, synced));
+        }
+        try {
+            CompletableFuture.allOf(syncs.toArray(CompletableFuture[]::new)).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException io ? io : new IOException(e.getCause());
+        }
+    }
+
+    private void run(){
+        List<PendingSync> group = new ArrayList<>();
+        for(;;){
+            try {
+                // the files written while the previous group was synced form the next one
+                group.add(pending.take());
+                pending.drainTo(group);
+            } catch (InterruptedException e) {
+                return;
+            }
+            Map<Path, List<PendingSync>> paths = new LinkedHashMap<>();
+            for (PendingSync sync : group) {
+                paths.computeIfAbsent(sync.path(), k -> new ArrayList<>()).add(sync);
+            }
+            for (Map.Entry<Path, List<PendingSync>> path : paths.entrySet()) {
+                try {
+                    force(path.getKey());
+                    path.getValue().forEach(sync -> sync.synced().complete(null));
+                } catch (IOException e) {
+                    path.getValue().forEach(sync -> sync.synced().completeExceptionally(e));
+                }
+            }
+            Log.fine("Synced a group of " + paths.size() + " files and directories");
+            group.clear();
+        }
+    }
+
+    /**
+     * Flushes a file or directory to the storage device
+     * @param path the file or directory
+     * @throws IOException if the flush failed
+     */
+    static void force(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+    }
+}
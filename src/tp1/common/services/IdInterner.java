@@ -0,0 +1,66 @@
+package tp1.common.services;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps strings repeated across many files (such as user ids) to small int ids, so each file
+ * stores an int instead of its own copy of the string
+ */
+class IdInterner {
+    // id of each interned string
+    private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+
+    // interned strings, indexed by id
+    private volatile String[] names = new String[64];
+
+    private int size = 0;
+
+    /**
+     * Returns the id of a string, assigning it one if it has none
+     * @param name the string
+     * @return the id
+     */
+    int intern(String name){
+        Integer id = ids.get(name);
+        if(id != null)
+            return id;
+        synchronized (this){
+            id = ids.get(name);
+            if(id != null)
+                return id;
+            if(size == names.length)
+                names = Arrays.copyOf(names, size * 2);
+            names[size] = name;
+            ids.put(name, size);
+            return size++;
+        }
+    }
+
+    /**
+     * Returns the id of a string, without assigning one
+     * @param name the string
+     * @return the id or -1 if the string wasn't interned
+     */
+    int idOf(String name){
+        return ids.getOrDefault(name, -1);
+    }
+
+    /**
+     * The number of strings interned, whose ids are 0 to size - 1
+     * @return the number of strings
+     */
+    synchronized int size(){
+        return size;
+    }
+
+    /**
+     * Returns the string with a given id
+     * @param id an id returned by intern
+     * @return the string
+     */
+    String name(int id){
+        return names[id];
+    }
+}
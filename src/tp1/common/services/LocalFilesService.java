@@ -1,5 +1,6 @@
 package tp1.common.services;
 
+import tp1.api.FileManifest;
 import tp1.client.rest.RestFilesClient;
 import tp1.client.soap.SoapFilesClient;
 import tp1.common.ServerUtils;
@@ -15,41 +16,407 @@ import tp1.kafka.sync.SyncPoint;
 import tp1.server.rest.RESTFilesServer;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.logging.Logger;
+import java.util.stream.Stream;
 
 /**
  * Implementation of server operations for Files services
  */
 public class LocalFilesService extends BaseFilesService {
-    // the path where files will be stored
-    private static final String STORAGE_PATH = "./%s";
+    // the default directory where files will be stored
+    public static final String DEFAULT_STORAGE_ROOT = "./files";
+
+    // directory, under the root, with the files still being written
+    private static final String TEMP_DIR = ".tmp";
+
+    // directory, under the root, with the chunks of deduplicated files
+    private static final String CHUNKS_DIR = "chunks";
+
+    // Number of locks serializing the replacement of manifests (picked by file id)
+    private static final int MANIFEST_LOCKS = 64;
+
+    /**
+     * When written files are flushed to the storage device
+     */
+    public enum SyncPolicy {
+        // left to the operating system, so acknowledged writes may be lost on a crash
+        NONE,
+        // each write is flushed before it's acknowledged
+        PER_FILE,
+        // as PER_FILE, but concurrent writes are flushed together
+        GROUP
+    }
+
+    /**
+     * How the contents of files are stored (a root must always be used with the same mode)
+     */
+    public enum StorageMode {
+        // each file as it was written
+        PLAIN,
+        // as content-defined chunks shared amongst files
+        DEDUPLICATED,
+        // each file compressed, unless its contents don't compress
+        COMPRESSED
+    }
+
     private static Logger Log = Logger.getLogger(LocalFilesService.class.getName());
     private static final List<String> TOPICS = Arrays.asList(KafkaUtils.DIR_FILES_TOPIC);
 
+    // Attempts to open a file that keeps being replaced between finding and opening it
+    private static final int OPEN_ATTEMPTS = 3;
+
+    // Reads up to this size are served from memory, since copying them costs less than
+    // opening the file again to transfer it to the response
+    private static final int MAX_IN_MEMORY_READ = 16 * 1024;
+
+    // Files larger than this are never cached
+    private static final int MAX_CACHED_FILE_SIZE = 1024 * 1024;
+    // Number of counters versioning the cached contents (picked by file id)
+    private static final int CACHE_GENERATIONS = 1024;
+    // Seconds between logs of the cache's statistics
+    private static final int CACHE_STATS_PERIOD = 60;
+
+    // Deletes in parallel the files of bulk deletes, so the filesystem can overlap their I/O
+    private static final int DELETE_THREADS = 8;
+    private final ExecutorService deleteExecutor = Executors.newFixedThreadPool(DELETE_THREADS);
+
+    private final Path root;
+    private final Path tempDir;
+    private final SyncPolicy syncPolicy;
+    private final GroupSync groupSync;
+
+    // stores the contents of the files when deduplicating them (null otherwise), in which case
+    // the file's path holds its manifest
+    private final ChunkStore chunks;
+    private final Object[] manifestLocks = Stream.generate(Object::new).limit(MANIFEST_LOCKS).toArray();
+    // whether files are stored with a FileCodec header
+    private final boolean compress;
+
+    // caches the contents of the most read files (null if disabled)
+    private final FileContentCache cache;
+    // bumped whenever a file changes, so contents read before the change are never served as current
+    private final AtomicLongArray generations = new AtomicLongArray(CACHE_GENERATIONS);
+    // content hash of the files compared with other servers, valid while their generation is the same
+    private final Map<String, ContentHash> contentHashes = new ConcurrentHashMap<>();
+    // last modification time (in microseconds) stamped on a written file, so no two writes have
+    // the same one (see entityTag)
+    private final AtomicLong lastWriteStamp = new AtomicLong();
+
     public LocalFilesService(){
+        this(DEFAULT_STORAGE_ROOT, SyncPolicy.NONE, StorageMode.PLAIN, 0);
+    }
+
+    /**
+     * @param root the directory where files will be stored
+     * @param syncPolicy when written files are flushed to the storage device
+     */
+    public LocalFilesService(String root, SyncPolicy syncPolicy){
+        this(root, syncPolicy, StorageMode.PLAIN, 0);
+    }
+
+    /**
+     * @param root the directory where files will be stored
+     * @param syncPolicy when written files are flushed to the storage device
+     * @param mode how the contents of files are stored
+     * @param cacheSize bytes of file contents cached in memory (0 disables the cache)
+     */
+    public LocalFilesService(String root, SyncPolicy syncPolicy, StorageMode mode, long cacheSize){
         super(Log);
+        this.root = Path.of(root);
+        this.tempDir = this.root.resolve(TEMP_DIR);
+        this.syncPolicy = syncPolicy;
+        this.groupSync = syncPolicy == SyncPolicy.GROUP ? new GroupSync() : null;
+        this.chunks = mode == StorageMode.DEDUPLICATED ?
+                new ChunkStore(this.root.resolve(CHUNKS_DIR), this::writeAtomically) : null;
+        this.compress = mode == StorageMode.COMPRESSED;
+        this.cache = cacheSize > 0 ? new FileContentCache(cacheSize, MAX_CACHED_FILE_SIZE) : null;
+        try {
+            Files.createDirectories(tempDir);
+            // files whose write was interrupted by a crash
+            try (DirectoryStream<Path> leftovers = Files.newDirectoryStream(tempDir)) {
+                for (Path leftover : leftovers) {
+                    Files.deleteIfExists(leftover);
+                }
+            }
+            if(chunks != null)
+                chunks.load(storedManifests());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        Log.info("Storing files in " + this.root.toAbsolutePath() + " (sync policy " + syncPolicy
+                + ", storage mode " + mode + ", " + (cacheSize >> 20) + " MiB cache)");
+        if(cache != null)
+            logCacheStats();
+        startReplication();
     }
 
     @Override
     protected void writeFile(String fileId, byte[] data) throws UnexpectedErrorException {
-        try{
-            FileOutputStream out = new FileOutputStream(pathTo(fileId));
-            out.write(data);
-            out.close();
+        store(fileId, new ByteArrayInputStream(data));
+    }
+
+    @Override
+    protected void writeFile(String fileId, InputStream data) throws UnexpectedErrorException {
+        store(fileId, data);
+    }
+
+    /**
+     * Writes a file, encoded if compressing, or its chunks and manifest if deduplicating
+     * @param fileId the file's id
+     * @param data the file's contents
+     * @throws UnexpectedErrorException if the write failed
+     */
+    private void store(String fileId, InputStream data) throws UnexpectedErrorException {
+        try {
+            if(compress) {
+                long written = writeAtomically(pathTo(fileId), channel -> FileCodec.write(data, channel));
+                Log.info("Wrote " + written + " bytes to " + fileId);
+            } else if(chunks == null) {
+                long written = writeAtomically(pathTo(fileId), data);
+                Log.info("Wrote " + written + " bytes to " + fileId);
+            } else {
+                FileManifest manifest = chunks.put(data);
+                installManifest(fileId, manifest);
+                Log.info("Wrote " + fileId + " as " + manifest.getChunks().size() + " chunks");
+            }
         } catch (IOException e) {
             Log.info(String.format("throw UnexpectedError: IO Exception (%s)", e.getMessage()));
             throw new UnexpectedErrorException();
+        } finally {
+            invalidateCached(fileId);
+        }
+    }
+
+    /**
+     * Writes to a temporary file, which then atomically replaces the target, so readers
+     * never see a partial write
+     * @param target the file to write
+     * @param data the contents, copied through a fixed size buffer
+     * @return the number of bytes written
+     * @throws IOException if the write failed
+     */
+    private long writeAtomically(Path target, InputStream data) throws IOException {
+        return writeAtomically(target, channel -> data.transferTo(Channels.newOutputStream(channel)));
+    }
+
+    /**
+     * Writes a file's contents to a channel
+     */
+    private interface ContentsWriter {
+        long write(FileChannel channel) throws IOException;
+    }
+
+    /**
+     * Writes to a temporary file, which then atomically replaces the target
+     * @param target the file to write
+     * @param writer writes the contents to the temporary file
+     * @return the number of bytes of contents written
+     * @throws IOException if the write failed
+     */
+    private long writeAtomically(Path target, ContentsWriter writer) throws IOException {
+        Path temp = null;
+        try {
+            List<Path> directories = createParents(target);
+            temp = Files.createTempFile(tempDir, target.getFileName().toString(), null);
+            long written;
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                written = writer.write(channel);
+                if(syncPolicy == SyncPolicy.PER_FILE)
+                    channel.force(true);
+            }
+            Files.setLastModifiedTime(temp, nextWriteStamp());
+            // the contents must be durable before the rename makes them the file's
+            if(syncPolicy == SyncPolicy.GROUP)
+                groupSync.sync(List.of(temp));
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            temp = null;
+            if(syncPolicy == SyncPolicy.PER_FILE) {
+                for (Path directory : directories) {
+                    GroupSync.force(directory);
+                }
+            } else if(syncPolicy == SyncPolicy.GROUP) {
+                groupSync.sync(directories);
+            }
+            return written;
+        } finally {
+            if(temp != null) {
+                try {
+                    Files.deleteIfExists(temp);
+                } catch (IOException ignored) {}
+            }
+        }
+    }
+
+    /**
+     * Creates the missing directories of a file
+     * @param target the file
+     * @return the directories whose entries change when the file and its directories are created,
+     * from the file's own
+     * @throws IOException if a directory couldn't be created
+     */
+    private List<Path> createParents(Path target) throws IOException {
+        List<Path> directories = new ArrayList<>();
+        Path directory = target.getParent();
+        directories.add(directory);
+        while (!Files.isDirectory(directory) && directory.getParent() != null) {
+            directory = directory.getParent();
+            directories.add(directory);
+        }
+        if(directories.size() > 1)
+            Files.createDirectories(target.getParent());
+        return directories;
+    }
+
+    /**
+     * The modification time of a write: the current time, unless a previous write already used it
+     * @return the time, later than every time returned before
+     */
+    private FileTime nextWriteStamp(){
+        long now = TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis());
+        return FileTime.from(lastWriteStamp.updateAndGet(last -> Math.max(last + 1, now)), TimeUnit.MICROSECONDS);
+    }
+
+    /**
+     * Replaces the manifest of a file, releasing the chunks of the previous one
+     * @param fileId the file's id
+     * @param manifest the new manifest, whose chunks are already referenced
+     * @throws IOException if the manifest couldn't be written (its chunks are released)
+     */
+    private void installManifest(String fileId, FileManifest manifest) throws IOException {
+        Path target = pathTo(fileId);
+        synchronized (manifestLock(fileId)) {
+            FileManifest previous = readManifest(target);
+            try {
+                writeAtomically(target, new ByteArrayInputStream(ChunkStore.encode(manifest)));
+            } catch (IOException e) {
+                chunks.release(manifest.getChunks());
+                throw e;
+            }
+            if(previous != null)
+                chunks.release(previous.getChunks());
         }
     }
 
+    /**
+     * Reads the manifest of a deduplicated file
+     * @param path the file's path
+     * @return the manifest or null if there's no such file
+     * @throws IOException if the manifest couldn't be read
+     */
+    private static FileManifest readManifest(Path path) throws IOException {
+        try {
+            return ChunkStore.decode(Files.readAllBytes(path));
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Reads the manifest of every deduplicated file, which are the files two levels below the root
+     * @return the manifests
+     * @throws IOException if the files couldn't be listed or read
+     */
+    private List<FileManifest> storedManifests() throws IOException {
+        List<FileManifest> manifests = new ArrayList<>();
+        try (Stream<Path> stored = Files.walk(root, 3)) {
+            for (Path path : (Iterable<Path>) stored::iterator) {
+                if(root.relativize(path).getNameCount() == 3 && Files.isRegularFile(path))
+                    manifests.add(ChunkStore.decode(Files.readAllBytes(path)));
+            }
+        }
+        return manifests;
+    }
+
+    private Object manifestLock(String fileId){
+        return manifestLocks[Math.floorMod(fileId.hashCode(), MANIFEST_LOCKS)];
+    }
+
     @Override
     protected void deleteFile(String fileId) throws InvalidFileLocationException {
-        File file = new File(pathTo(fileId));
-        if(!file.delete()){
-            Log.info("throw InvalidFileLocation: file not found");
-            throw new InvalidFileLocationException();
+        try {
+            if(remove(fileId))
+                return;
+        } catch (IOException e) {
+            Log.info(String.format("Failed to delete %s (%s)", fileId, e.getMessage()));
         }
+        Log.info("throw InvalidFileLocation: file not found");
+        throw new InvalidFileLocationException();
+    }
+
+    /**
+     * Deletes a file, releasing its chunks if deduplicating
+     * @param fileId the file's id
+     * @return false if there was no such file
+     * @throws IOException if the file couldn't be deleted
+     */
+    private boolean remove(String fileId) throws IOException {
+        try {
+            return removeStored(fileId);
+        } finally {
+            invalidateCached(fileId);
+        }
+    }
+
+    private boolean removeStored(String fileId) throws IOException {
+        Path path = pathTo(fileId);
+        if(chunks == null)
+            return Files.deleteIfExists(path);
+        synchronized (manifestLock(fileId)) {
+            FileManifest manifest = readManifest(path);
+            if(manifest == null)
+                return false;
+            Files.deleteIfExists(path);
+            chunks.release(manifest.getChunks());
+            return true;
+        }
+    }
+
+    @Override
+    protected void deleteFiles(List<String> fileIds) {
+        if(fileIds.isEmpty())
+            return;
+        // each task deletes a contiguous slice of the files
+        int slice = (fileIds.size() + DELETE_THREADS - 1) / DELETE_THREADS;
+        List<Future<?>> tasks = new ArrayList<>(DELETE_THREADS);
+        for (int start = 0; start < fileIds.size(); start += slice) {
+            List<String> deleting = fileIds.subList(start, Math.min(start + slice, fileIds.size()));
+            tasks.add(deleteExecutor.submit(() -> {
+                for (String fileId : deleting) {
+                    try {
+                        remove(fileId);
+                    } catch (IOException ignored) {}
+                }
+            }));
+        }
+        for (Future<?> task : tasks) {
+            try {
+                task.get();
+            } catch (Exception e) {
+                Log.severe("Bulk delete failed: " + e.getMessage());
+            }
+        }
+        Log.info("Deleted " + fileIds.size() + " files");
     }
 
     @Override
@@ -58,28 +425,572 @@ public class LocalFilesService extends BaseFilesService {
         Log.info("getFile : " + fileId + "\n\t version: " + version + "\n token: " + token);
         validateToken(token, fileId);
         syncPoint.waitForVersion(version);
-        byte[] data = null;
+        operationsApplied(fileId).join();
+        try {
+            if(cache != null) {
+                byte[] cached = cache.get(fileId, generation(fileId));
+                if(cached != null)
+                    return cached;
+            }
+            return readStable(fileId, (stored, generation) -> cachedContents(fileId, generation, stored));
+        } catch (NoSuchFileException e) {
+            Log.info("throw InvalidFileLocation: file not found");
+            throw new InvalidFileLocationException();
+        } catch (IOException e) {
+            Log.info(String.format("throw UnexpectedError: IO Exception (%s)", e.getMessage()));
+            throw new UnexpectedErrorException();
+        }
+    }
+
+    @Override
+    protected FileSlice readFile(String fileId, ByteRange range, String ifRange, boolean gzip)
+            throws UnexpectedErrorException, InvalidFileLocationException {
         try {
-            FileInputStream in = new FileInputStream(pathTo(fileId));
-            data = in.readAllBytes();
-            in.close();
-        } catch (FileNotFoundException e) {
+            return readStable(fileId, (stored, generation) -> readStored(fileId, generation, stored,
+                    ByteRange.ifRange(range, ifRange, stored.tag()), gzip));
+        } catch (NoSuchFileException e) {
             Log.info("throw InvalidFileLocation: file not found");
             throw new InvalidFileLocationException();
         } catch (IOException e) {
             Log.info(String.format("throw UnexpectedError: IO Exception (%s)", e.getMessage()));
             throw new UnexpectedErrorException();
         }
-        return data;
     }
 
     /**
-     * Builds the path to the file given its id
+     * Reads a file found by stat
+     */
+    private interface StoredReader<T> {
+        /**
+         * @param stored the file
+         * @param generation the file's generation, taken before the file was found
+         * @return what was read, or null if the file changed since it was found
+         */
+        T read(StoredFile stored, long generation) throws IOException;
+    }
+
+    /**
+     * Finds and reads a file, finding it again while it changes before it's opened
+     * @param fileId the file's id
+     * @param reader reads the file found
+     * @return what was read
+     * @throws NoSuchFileException if there's no such file
+     * @throws IOException if the read failed, or the file kept changing
+     */
+    private <T> T readStable(String fileId, StoredReader<T> reader) throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            long generation = generation(fileId);
+            T read = reader.read(stat(fileId), generation);
+            if(read != null)
+                return read;
+            if(attempt == OPEN_ATTEMPTS)
+                throw new IOException(fileId + " kept changing while it was opened");
+        }
+    }
+
+    /**
+     * Reads a file found by stat, or the range of it requested by a client. Contents left in
+     * files are opened before returning, so they're sent as they were found.
+     * @param fileId the file's id
+     * @param generation the file's generation, taken before the file was found
+     * @param stored the file
+     * @param range the requested range, if the client's copy matches (null for the whole file)
+     * @param gzip whether the client accepts gzip encoded contents
+     * @return the contents read, or null if the file changed since it was found
+     * @throws IOException if the read failed
+     */
+    private FileSlice readStored(String fileId, long generation, StoredFile stored, ByteRange range, boolean gzip)
+            throws IOException {
+        long size = stored.size();
+        if(stored.codec() == FileCodec.Codec.GZIP && gzip && range == null) { // sent as stored, without decompressing it
+            FileChannel channel = open(stored);
+            if(channel == null)
+                return null;
+            long payload = stored.storedSize() - FileCodec.HEADER;
+            return FileSlice.encoded(List.of(new FileSlice.Segment(stored.path(), channel, FileCodec.HEADER, payload)),
+                    payload, encodedTag(stored.tag()), stored.codec().encoding);
+        }
+        if(cache != null && size <= MAX_CACHED_FILE_SIZE) { // served from memory, whole or sliced
+            byte[] cached = cachedContents(fileId, generation, stored);
+            return cached == null ? null : FileSlice.of(cached, range, null, stored.tag());
+        }
+        ByteRange resolved = range == null ? new ByteRange(0, size - 1) : range.resolve(size);
+        if(resolved == null)
+            return FileSlice.unsatisfiable(size, stored.tag());
+        long length = Math.max(0, resolved.length());
+        FileSlice opened = open(stored, resolved.first(), length, range != null);
+        // transferred from the files (or decompressed) as it's sent
+        if(opened == null || length > MAX_IN_MEMORY_READ)
+            return opened;
+        try (opened) {
+            return FileSlice.inMemory(read(opened), resolved.first(), size, stored.tag(), range != null);
+        }
+    }
+
+    /**
+     * Reads the whole contents of a file found by stat
+     * @param stored the file
+     * @return the contents, or null if the file changed since it was found
+     * @throws IOException if the read failed
+     */
+    private byte[] readContents(StoredFile stored) throws IOException {
+        FileSlice whole = open(stored, 0, stored.size(), false);
+        if(whole == null)
+            return null;
+        try (whole) {
+            return read(whole);
+        }
+    }
+
+    /**
+     * Reads the whole contents of a file found by stat from the cache, or else from the file,
+     * offering them to the cache
+     * @param fileId the file's id
+     * @param generation the file's generation, taken before the file was found
+     * @param stored the file
+     * @return the contents, or null if the file changed since it was found
+     * @throws IOException if the read failed
+     */
+    private byte[] cachedContents(String fileId, long generation, StoredFile stored) throws IOException {
+        if(cache == null)
+            return readContents(stored);
+        byte[] contents = cache.get(fileId, generation);
+        if(contents != null)
+            return contents;
+        contents = readContents(stored);
+        if(contents != null)
+            cache.put(fileId, generation, contents);
+        return contents;
+    }
+
+    /**
+     * Opens a range of the contents of a file found by stat, so it's read as it was found
+     * @param stored the file
+     * @param first offset of the range's first byte
+     * @param length the range's size
+     * @param partial whether only a range of the file is read
+     * @return the range, to be closed once read, or null if the file changed since it was found
+     * @throws IOException if the file couldn't be opened
+     */
+    private FileSlice open(StoredFile stored, long first, long length, boolean partial) throws IOException {
+        long size = stored.size();
+        if(stored.manifest() != null) {
+            // chunks never change, so it's enough that they aren't deleted meanwhile
+            Closeable retained = retain(stored.manifest());
+            return retained == null ? null : FileSlice.inFiles(segments(stored, null, first, length),
+                    first, length, size, stored.tag(), partial, retained);
+        }
+        FileChannel channel = open(stored);
+        if(channel == null)
+            return null;
+        try {
+            if(stored.codec() == FileCodec.Codec.GZIP) {
+                InputStream decoded = FileCodec.decode(channel, stored.codec());
+                decoded.skipNBytes(first);
+                return FileSlice.streamed(decoded, first, length, size, stored.tag(), partial);
+            }
+            return FileSlice.inFiles(segments(stored, channel, first, length), first, length, size, stored.tag(),
+                    partial, null);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens a file found by stat, which isn't deduplicated
+     * @param stored the file
+     * @return the open file, or null if it was replaced or deleted since it was found
+     * @throws IOException if the file couldn't be opened
+     */
+    private FileChannel open(StoredFile stored) throws IOException {
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(stored.path(), StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        try {
+            // every write replaces the file with one of another tag (see entityTag)
+            BasicFileAttributes attributes = Files.readAttributes(stored.path(), BasicFileAttributes.class);
+            if(entityTag(attributes).equals(stored.tag()))
+                return channel;
+        } catch (NoSuchFileException e) {
+            // deleted since it was opened
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        channel.close();
+        return null;
+    }
+
+    /**
+     * Keeps the chunks of a manifest from being deleted until the returned handle is closed
+     * @param manifest the manifest
+     * @return the handle, or null if a chunk was already deleted (in which case none is kept)
+     * @throws IOException if a chunk was being written and the write failed
+     */
+    private Closeable retain(FileManifest manifest) throws IOException {
+        List<String> retained = new ArrayList<>(manifest.getChunks().size());
+        try {
+            for (String chunk : manifest.getChunks()) {
+                if(!chunks.retain(chunk)) {
+                    chunks.release(retained);
+                    return null;
+                }
+                retained.add(chunk);
+            }
+        } catch (IOException | RuntimeException e) {
+            chunks.release(retained);
+            throw e;
+        }
+        AtomicBoolean released = new AtomicBoolean(false);
+        return () -> {
+            if(released.compareAndSet(false, true))
+                chunks.release(retained);
+        };
+    }
+
+    private long generation(String fileId){
+        return generations.get(Math.floorMod(fileId.hashCode(), CACHE_GENERATIONS));
+    }
+
+    @Override
+    protected void invalidateCached(String fileId){
+        // contents read before this are stale, even if they're only offered to the cache later
+        generations.incrementAndGet(Math.floorMod(fileId.hashCode(), CACHE_GENERATIONS));
+        contentHashes.remove(fileId);
+        if(cache != null)
+            cache.invalidate(fileId);
+    }
+
+    /**
+     * The hash of a file's contents
+     * @param generation the file's generation, taken before the file was read
+     * @param hash the SHA-256 (in hex) of the contents
+     */
+    private record ContentHash(long generation, String hash){}
+
+    /**
+     * Hashes the contents of a file, which are only read again once they change. The contents
+     * are read straight from the file, so comparisons with other servers don't fill the cache.
+     */
+    @Override
+    protected String contentHash(String fileId) throws InvalidFileLocationException, UnexpectedErrorException {
+        long generation = generation(fileId);
+        ContentHash known = contentHashes.get(fileId);
+        if(known != null && known.generation() == generation)
+            return known.hash();
+        try {
+            String hash = readStable(fileId, (stored, found) -> {
+                FileSlice contents = open(stored, 0, stored.size(), false);
+                return contents == null ? null : MerkleTree.digest(contents);
+            });
+            contentHashes.put(fileId, new ContentHash(generation, hash));
+            return hash;
+        } catch (NoSuchFileException e) {
+            throw new InvalidFileLocationException();
+        } catch (IOException e) {
+            Log.info(String.format("throw UnexpectedError: IO Exception (%s)", e.getMessage()));
+            throw new UnexpectedErrorException();
+        }
+    }
+
+    /**
+     * Statistics of the read cache
+     * @param hits reads served from the cache
+     * @param misses reads of files not cached
+     * @param evictions files evicted, or not admitted, to make room for more frequently read ones
+     * @param hitRate fraction of the reads served from the cache
+     */
+    public record CacheStats(long hits, long misses, long evictions, double hitRate){}
+
+    /**
+     * Statistics of the read cache
+     * @return the statistics or null if the cache is disabled
+     */
+    public CacheStats cacheStats(){
+        if(cache == null)
+            return null;
+        return new CacheStats(cache.hits(), cache.misses(), cache.evictions(), cache.hitRate());
+    }
+
+    private void logCacheStats(){
+        ScheduledExecutorService logger = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "cache-stats");
+            thread.setDaemon(true);
+            return thread;
+        });
+        logger.scheduleAtFixedRate(() -> Log.info("Read cache: " + cacheStats()),
+                CACHE_STATS_PERIOD, CACHE_STATS_PERIOD, TimeUnit.SECONDS);
+    }
+
+    /**
+     * A stored file
+     * @param path the file's path (holding its manifest if deduplicated)
+     * @param size the size of the file's contents
+     * @param tag the file's entity tag
+     * @param manifest the file's chunks (null if not deduplicated)
+     * @param codec how the file's contents are encoded (null if not compressing)
+     * @param storedSize the size of the file's path
+     */
+    private record StoredFile(Path path, long size, String tag, FileManifest manifest, FileCodec.Codec codec,
+                              long storedSize){}
+
+    /**
+     * Finds a stored file
+     * @param fileId the file's id
+     * @return the file
+     * @throws NoSuchFileException if there's no such file
+     * @throws IOException if the file couldn't be read
+     */
+    private StoredFile stat(String fileId) throws IOException {
+        Path path = pathTo(fileId);
+        if(chunks == null) {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            String tag = entityTag(attributes);
+            if(!compress)
+                return new StoredFile(path, attributes.size(), tag, null, null, attributes.size());
+            FileCodec.Header header = FileCodec.readHeader(path);
+            return new StoredFile(path, header.size(), tag, null, header.codec(), attributes.size());
+        }
+        byte[] encoded = Files.readAllBytes(path);
+        FileManifest manifest = ChunkStore.decode(encoded);
+        // identical contents have the same manifest, and so the same tag
+        String tag = "\"" + ChunkStore.hash(encoded, 0, encoded.length).substring(0, 32) + "\"";
+        return new StoredFile(path, ChunkStore.size(manifest), tag, manifest, null, encoded.length);
+    }
+
+    /**
+     * Finds where a range of a file's contents is stored
+     * @param stored the file
+     * @param channel the file, opened (null if deduplicated, its chunks are opened when read)
+     * @param first offset of the range's first byte
+     * @param length the range's size
+     * @return the parts of the files holding the range, in order
+     */
+    private List<FileSlice.Segment> segments(StoredFile stored, FileChannel channel, long first, long length){
+        if(stored.manifest() == null) {
+            long offset = stored.codec() == null ? 0 : FileCodec.HEADER;
+            return List.of(new FileSlice.Segment(stored.path(), channel, offset + first, length));
+        }
+        List<FileSlice.Segment> segments = new ArrayList<>();
+        List<String> hashes = stored.manifest().getChunks();
+        List<Integer> lengths = stored.manifest().getLengths();
+        long end = first + length;
+        long chunkStart = 0;
+        for (int i = 0; i < hashes.size() && chunkStart < end; i++) {
+            long chunkEnd = chunkStart + lengths.get(i);
+            if(chunkEnd > first) {
+                long from = Math.max(first, chunkStart);
+                long to = Math.min(end, chunkEnd);
+                segments.add(new FileSlice.Segment(chunks.pathTo(hashes.get(i)), null, from - chunkStart, to - from));
+            }
+            chunkStart = chunkEnd;
+        }
+        return segments;
+    }
+
+    /**
+     * Reads the contents of an opened slice
+     * @param slice the slice, left in files or decoded as read
+     * @return the bytes read (fewer than the slice's length if a file was truncated meanwhile)
+     * @throws IOException if the read failed
+     */
+    private static byte[] read(FileSlice slice) throws IOException {
+        if(slice.stream() != null)
+            return slice.stream().readNBytes((int) slice.length());
+        return read(slice.segments(), slice.length());
+    }
+
+    /**
+     * Reads parts of files, with positional reads
+     * @param segments the parts to read, in order
+     * @param length their total size
+     * @return the bytes read (fewer than length if a file was truncated meanwhile)
+     * @throws IOException if the read failed
+     */
+    private static byte[] read(List<FileSlice.Segment> segments, long length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) length);
+        for (FileSlice.Segment segment : segments) {
+            FileChannel channel = segment.open();
+            try {
+                int start = buffer.position();
+                buffer.limit(start + (int) segment.length());
+                while (buffer.hasRemaining()) {
+                    if(channel.read(buffer, segment.position() + buffer.position() - start) < 0)
+                        break;
+                }
+                buffer.limit(buffer.capacity());
+            } finally {
+                segment.done(channel);
+            }
+        }
+        return buffer.position() < buffer.capacity() ? Arrays.copyOf(buffer.array(), buffer.position()) : buffer.array();
+    }
+
+    @Override
+    public FileManifest getManifest(String fileId, String token)
+            throws InvalidTokenException, InvalidFileLocationException, UnexpectedErrorException {
+        Log.info("getManifest : " + fileId);
+        validateToken(token, fileId, true);
+        if(chunks == null)
+            return null;
+        try {
+            FileManifest manifest = readManifest(pathTo(fileId));
+            if(manifest == null)
+                throw new InvalidFileLocationException();
+            return manifest;
+        } catch (IOException e) {
+            Log.info(String.format("throw UnexpectedError: IO Exception (%s)", e.getMessage()));
+            throw new UnexpectedErrorException();
+        }
+    }
+
+    @Override
+    public byte[] getChunk(String chunk, String token)
+            throws InvalidTokenException, InvalidFileLocationException, UnexpectedErrorException {
+        validateToken(token, chunk, true);
+        if(chunks == null || !ChunkStore.isHash(chunk))
+            throw new InvalidFileLocationException();
+        try {
+            return chunks.read(chunk);
+        } catch (NoSuchFileException e) {
+            throw new InvalidFileLocationException();
+        } catch (IOException e) {
+            Log.info(String.format("throw UnexpectedError: IO Exception (%s)", e.getMessage()));
+            throw new UnexpectedErrorException();
+        }
+    }
+
+    @Override
+    public FileDelta getDelta(String fileId, byte[] signatures, String token)
+            throws InvalidTokenException, InvalidFileLocationException, UnexpectedErrorException {
+        Log.info("getDelta : " + fileId);
+        validateToken(token, fileId, true);
+        if(chunks != null || compress) // replicas fetch the chunks they lack, or the whole file, instead
+            return null;
+        Path path = pathTo(fileId);
+        if(!Files.isRegularFile(path)) {
+            Log.info("throw InvalidFileLocation: file not found");
+            throw new InvalidFileLocationException();
+        }
+        try {
+            return new FileDelta(path, signatures);
+        } catch (IOException e) {
+            Log.info(String.format("throw UnexpectedError: IO Exception (%s)", e.getMessage()));
+            throw new UnexpectedErrorException();
+        }
+    }
+
+    @Override
+    protected void copyFrom(FilesServerClient source, String fileId)
+            throws RequestTimeoutException, InvalidFileLocationException, UnexpectedErrorException {
+        if(chunks == null) {
+            if(!patchFrom(source, fileId))
+                super.copyFrom(source, fileId);
+            return;
+        }
+        FileManifest manifest = source.getManifest(fileId);
+        if(manifest == null) { // the source doesn't deduplicate
+            super.copyFrom(source, fileId);
+            return;
+        }
+        // only the chunks not stored yet are transferred
+        List<String> retained = new ArrayList<>(manifest.getChunks().size());
+        int fetched = 0;
+        try {
+            for (String chunk : manifest.getChunks()) {
+                if(!chunks.retain(chunk)) {
+                    chunks.put(chunk, source.getChunk(chunk));
+                    fetched++;
+                }
+                retained.add(chunk);
+            }
+        } catch (IOException e) {
+            chunks.release(retained);
+            Log.info(String.format("throw UnexpectedError: IO Exception (%s)", e.getMessage()));
+            throw new UnexpectedErrorException();
+        } catch (RequestTimeoutException | InvalidFileLocationException e) {
+            chunks.release(retained);
+            throw e;
+        }
+        try {
+            installManifest(fileId, manifest);
+        } catch (IOException e) {
+            Log.info(String.format("throw UnexpectedError: IO Exception (%s)", e.getMessage()));
+            throw new UnexpectedErrorException();
+        } finally {
+            invalidateCached(fileId);
+        }
+        Log.info("Replicated " + fileId + " fetching " + fetched + " of " + manifest.getChunks().size() + " chunks");
+    }
+
+    /**
+     * Rebuilds the local copy of a file from its differences with the source's, so only the
+     * changed blocks are transferred. The rebuilt file replaces the copy atomically.
+     * @param source the server storing the file
+     * @param fileId the file's id
+     * @return false if there's no local copy, or the differences couldn't be applied
+     * @throws RequestTimeoutException if the source didn't reply
+     * @throws InvalidFileLocationException if the source doesn't store the file
+     */
+    private boolean patchFrom(FilesServerClient source, String fileId)
+            throws RequestTimeoutException, InvalidFileLocationException {
+        Path local = pathTo(fileId);
+        if(compress || !Files.isRegularFile(local)) // compressed files aren't patched
+            return false;
+        try {
+            InputStream delta = source.getDelta(fileId, FileDelta.signatures(local));
+            if(delta == null)
+                return false;
+            try (FileDelta.Patched patched = FileDelta.patch(local, delta)) {
+                long written = writeAtomically(local, patched);
+                invalidateCached(fileId);
+                Log.info("Patched " + fileId + " receiving " + patched.literalBytes() + " of " + written + " bytes");
+            }
+            return true;
+        } catch (IOException e) {
+            Log.info(String.format("Failed to patch %s, copying it whole (%s)", fileId, e.getMessage()));
+            return false;
+        }
+    }
+
+    /**
+     * Builds the entity tag of the gzip encoded representation of a file, which must differ
+     * from the decoded one's
+     * @param tag the file's (quoted) entity tag
+     * @return the (quoted) entity tag
+     */
+    private static String encodedTag(String tag) {
+        return tag.substring(0, tag.length() - 1) + "-gzip\"";
+    }
+
+    /**
+     * Builds the entity tag of a file, which changes whenever the file is written: each write
+     * replaces the file with a new one (a new file key), stamped with a modification time no
+     * other write has (see nextWriteStamp)
+     * @param attributes the file's attributes
+     * @return the (quoted) entity tag
+     */
+    private static String entityTag(BasicFileAttributes attributes) {
+        long stamp = attributes.lastModifiedTime().to(TimeUnit.MICROSECONDS);
+        return "\"" + Integer.toHexString(Objects.hashCode(attributes.fileKey())) + "-"
+                + Long.toHexString(stamp) + "-" + Long.toHexString(attributes.size()) + "\"";
+    }
+
+    /**
+     * Builds the path to the file given its id. Files are spread over two levels of 256
+     * directories, picked by the hash of the id, so no directory grows too large to search.
      *
      * @param fileId the file's id
      * @return the file's path
      */
-    static String pathTo(String fileId) {
-        return String.format(LocalFilesService.STORAGE_PATH, fileId);
+    Path pathTo(String fileId) {
+        int hash = fileId.hashCode();
+        return root.resolve(String.format("%02x", (hash >>> 8) & 0xff))
+                .resolve(String.format("%02x", hash & 0xff))
+                .resolve(fileId);
     }
 }
@@ -0,0 +1,203 @@
+package tp1.common.services;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Summary of the contents of a set of files, compared by two servers to find the files they
+ * store differently without exchanging the whole list.
+ *
+ * Files are spread over a fixed number of buckets by their id, each bucket hashing the ids and
+ * content hashes of its files, and each node above hashing its children, up to the root. Servers
+ * compare the roots, then the children of the nodes that differ, down to the buckets, so the
+ * summaries exchanged grow with the number of differences rather than with the number of files.
+ */
+class MerkleTree {
+    static final int FANOUT = 16;
+    // levels below the root, the last one being the buckets
+    static final int DEPTH = 2;
+    static final int BUCKETS = 256; // FANOUT^DEPTH
+
+    private static final int BUFFER = 64 * 1024;
+
+    // content hash of each file, by bucket
+    private final List<SortedMap<String, String>> buckets = new ArrayList<>(BUCKETS);
+    // hashes of the nodes of each level, from the root
+    private final byte[][][] levels = new byte[DEPTH + 1][][];
+
+    /**
+     * @param digests the content hash of each file
+     */
+    MerkleTree(Map<String, String> digests){
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets.add(new TreeMap<>());
+        }
+        digests.forEach((fileId, digest) -> buckets.get(bucket(fileId)).put(fileId, digest));
+
+        MessageDigest sha = sha256();
+        byte[][] leaves = new byte[BUCKETS][];
+        for (int i = 0; i < BUCKETS; i++) {
+            for (Map.Entry<String, String> entry : buckets.get(i).entrySet()) {
+                sha.update((entry.getKey() + ":" + entry.getValue() + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+            leaves[i] = sha.digest();
+        }
+        levels[DEPTH] = leaves;
+        for (int level = DEPTH - 1; level >= 0; level--) {
+            byte[][] children = levels[level + 1];
+            byte[][] nodes = new byte[children.length / FANOUT][];
+            for (int i = 0; i < nodes.length; i++) {
+                for (int child = i * FANOUT; child < (i + 1) * FANOUT; child++) {
+                    sha.update(children[child]);
+                }
+                nodes[i] = sha.digest();
+            }
+            levels[level] = nodes;
+        }
+    }
+
+    /**
+     * The bucket of a file, which both servers must agree on
+     * @param fileId the file's id
+     * @return the bucket's index
+     */
+    static int bucket(String fileId){
+        int hash = fileId.hashCode();
+        hash ^= hash >>> 16;
+        hash *= 0x45d9f3b;
+        hash ^= hash >>> 16;
+        return Math.floorMod(hash, BUCKETS);
+    }
+
+    /**
+     * Checks that the nodes exist in a level of the tree
+     * @param level the level (0 for the root)
+     * @param nodes the nodes' indexes in the level
+     * @return false if the level or any of the nodes doesn't exist
+     */
+    static boolean exists(int level, List<Integer> nodes){
+        if(level < 0 || level > DEPTH)
+            return false;
+        int size = (int) Math.pow(FANOUT, level);
+        for (int node : nodes) {
+            if(node < 0 || node >= size)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * The children of nodes, in the level below theirs
+     * @param nodes the nodes' indexes
+     * @return the children's indexes
+     */
+    static List<Integer> children(List<Integer> nodes){
+        List<Integer> children = new ArrayList<>(nodes.size() * FANOUT);
+        for (int node : nodes) {
+            for (int child = node * FANOUT; child < (node + 1) * FANOUT; child++) {
+                children.add(child);
+            }
+        }
+        return children;
+    }
+
+    /**
+     * The hashes (in hex) of nodes of a level
+     * @param level the level (0 for the root)
+     * @param nodes the nodes' indexes in the level
+     * @return the hashes, in the order of the nodes
+     */
+    List<String> hashes(int level, List<Integer> nodes){
+        List<String> hashes = new ArrayList<>(nodes.size());
+        for (int node : nodes) {
+            hashes.add(HexFormat.of().formatHex(levels[level][node]));
+        }
+        return hashes;
+    }
+
+    /**
+     * The nodes of a level whose hashes differ from another server's
+     * @param level the level (0 for the root)
+     * @param nodes the nodes' indexes in the level
+     * @param others the other server's hashes of the nodes
+     * @return the indexes of the nodes that differ
+     */
+    List<Integer> differing(int level, List<Integer> nodes, List<String> others){
+        List<String> hashes = hashes(level, nodes);
+        List<Integer> differing = new ArrayList<>();
+        for (int i = 0; i < nodes.size(); i++) {
+            if(i >= others.size() || !hashes.get(i).equals(others.get(i)))
+                differing.add(nodes.get(i));
+        }
+        return differing;
+    }
+
+    /**
+     * The files of buckets
+     * @param indexes the buckets' indexes
+     * @return the content hash of each file in the buckets
+     */
+    Map<String, String> entries(List<Integer> indexes){
+        Map<String, String> entries = new HashMap<>();
+        for (int bucket : indexes) {
+            entries.putAll(buckets.get(bucket));
+        }
+        return entries;
+    }
+
+    /**
+     * Hashes the whole contents of a file
+     * @param contents the contents, as read for a client (closed once hashed)
+     * @return the SHA-256 (in hex) of the contents
+     * @throws IOException if the contents couldn't be read
+     */
+    static String digest(FileSlice contents) throws IOException {
+        MessageDigest sha = sha256();
+        try (contents) {
+            if(contents.data() != null) {
+                sha.update(contents.data());
+            } else if(contents.stream() != null) {
+                InputStream in = contents.stream();
+                byte[] buffer = new byte[BUFFER];
+                int read;
+                while ((read = in.read(buffer)) >= 0) {
+                    sha.update(buffer, 0, read);
+                }
+            } else if(contents.segments() != null) {
+                ByteBuffer buffer = ByteBuffer.allocate(BUFFER);
+                for (FileSlice.Segment segment : contents.segments()) {
+                    FileChannel channel = segment.open();
+                    try {
+                        long position = segment.position();
+                        long end = position + segment.length();
+                        while (position < end) {
+                            buffer.clear().limit((int) Math.min(BUFFER, end - position));
+                            int read = channel.read(buffer, position);
+                            if(read < 0)
+                                throw new IOException("File truncated while hashing it: " + segment.file());
+                            position += read;
+                            sha.update(buffer.flip());
+                        }
+                    } finally {
+                        segment.done(channel);
+                    }
+                }
+            }
+        }
+        return HexFormat.of().formatHex(sha.digest());
+    }
+
+    private static MessageDigest sha256(){
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -1,11 +1,13 @@
 package tp1.kafka;
 
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 
 import org.apache.kafka.clients.producer.KafkaProducer;
 import org.apache.kafka.clients.producer.ProducerConfig;
 import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.errors.InterruptException;
 import org.apache.kafka.common.serialization.StringSerializer;
 import tp1.kafka.operations.Operation;
 import tp1.kafka.operations.OperationUtils;
@@ -13,6 +15,14 @@ import tp1.kafka.operations.OperationUtils;
 public class KafkaPublisher {
 
 	static public KafkaPublisher createPublisher(String brokers) {
+		return createPublisher(brokers, null);
+	}
+
+	/**
+	 * Creates a publisher sending every record to the same partition, so all of them are ordered
+	 * @param partition the partition, or null to partition records by their keys
+	 */
+	static public KafkaPublisher createPublisher(String brokers, Integer partition) {
 		Properties props = new Properties();
 
 		// Localização dos servidores kafka (lista de máquinas + porto)
@@ -24,44 +34,136 @@ public class KafkaPublisher {
 		// Classe para serializar os valores dos eventos (string)
 		props.put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, StringSerializer.class.getName());
 
-		return new KafkaPublisher(new KafkaProducer<String, String>(props));
+		// Records are batched until the group commit flushes them
+		props.put(ProducerConfig.LINGER_MS_CONFIG, LINGER_MS);
+
+		return new KafkaPublisher(new KafkaProducer<String, String>(props), partition);
 	}
 	
+	// Time a record may wait in the producer before being sent without an explicit flush
+	private static final String LINGER_MS = "50";
+
 	private final KafkaProducer<String, String> producer;
+	private final Integer partition;
+	private final Thread committer;
+
+	// Number of records sent since the committer last started a flush
+	private int unflushed = 0;
 
-	private KafkaPublisher( KafkaProducer<String, String> producer) {
+	private KafkaPublisher( KafkaProducer<String, String> producer, Integer partition) {
 		this.producer = producer;
+		this.partition = partition;
+		this.committer = new Thread(this::commitLoop);
+		committer.setDaemon(true);
+		committer.start();
 	}
 
 	public void close() {
+		committer.interrupt();
+		try {
+			committer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
 		this.producer.close();
 	}
 
+	/**
+	 * Publishes a record without waiting for the broker.
+	 * Records published concurrently are sent to the broker in a single flush (group commit).
+	 * @return a future completed with the record's version (see KafkaUtils.position)
+	 */
+	public CompletableFuture<Long> publishAsync(String topic, String key, String value) {
+		return send(new ProducerRecord<>(topic, key, value));
+	}
+
+	public CompletableFuture<Long> publishAsync(String topic, String value) {
+		return send(new ProducerRecord<>(topic, value));
+	}
+
+	public CompletableFuture<Long> publishAsync(String topic, String key, Operation op) {
+		return publishAsync(topic, key, OperationUtils.serialize(op));
+	}
+
+	/**
+	 * Publishes an operation keyed by its user, so all operations on a user's files share a partition
+	 */
+	public CompletableFuture<Long> publishAsync(String topic, Operation op) {
+		return publishAsync(topic, op.userId(), op);
+	}
+
 	public long publish(String topic, String key, String value) {
-		try {
-			long offset = producer.send(new ProducerRecord<>(topic, key, value)).get().offset();
-			return offset;
-		} catch (ExecutionException | InterruptedException x) {
-			x.printStackTrace();
-		}
-		return -1;
+		return await(publishAsync(topic, key, value));
 	}
 	
 	public long publish(String topic, String value) {
+		return await(publishAsync(topic, value));
+	}
+
+	public long publish(String topic, String key, Operation op){
+		return publish(topic, key, OperationUtils.serialize(op));
+	}
+	public long publish(String topic, Operation op){
+		return await(publishAsync(topic, op));
+	}
+
+	/**
+	 * Waits for a published record
+	 * @param future the future returned by publishAsync
+	 * @return the record's version or -1 if it failed
+	 */
+	public static long await(CompletableFuture<Long> future) {
 		try {
-			long offset = producer.send(new ProducerRecord<>(topic, value)).get().offset();
-			return offset;
-		} catch (ExecutionException | InterruptedException x) {
+			return future.get();
+		} catch (ExecutionException x) {
 			x.printStackTrace();
+		} catch (InterruptedException x) {
+			Thread.currentThread().interrupt();
 		}
 		return -1;
 	}
 
-	public long publish(String topic, String key, Operation op){
-		return publish(topic, key, OperationUtils.serialize(op));
+	private CompletableFuture<Long> send(ProducerRecord<String, String> record) {
+		if (partition != null)
+			record = new ProducerRecord<>(record.topic(), partition, record.key(), record.value());
+		CompletableFuture<Long> result = new CompletableFuture<>();
+		producer.send(record, (metadata, x) -> {
+			if (x != null)
+				result.completeExceptionally(x);
+			else
+				result.complete(KafkaUtils.position(metadata.partition(), metadata.offset()));
+		});
+		requestFlush();
+		return result;
 	}
-	public long publish(String topic, Operation op){
-		return publish(topic, OperationUtils.serialize(op));
+
+	private synchronized void requestFlush() {
+		unflushed++;
+		this.notifyAll();
+	}
+
+	/**
+	 * Flushes the producer whenever there are new records. Records sent while a flush is in
+	 * progress are grouped and sent together by the next one. Stops once interrupted by close.
+	 */
+	private void commitLoop() {
+		for (;;) {
+			synchronized (this) {
+				while (unflushed == 0) {
+					try {
+						this.wait();
+					} catch (InterruptedException e) {
+						return; // closing, the producer flushes the remaining records itself
+					}
+				}
+				unflushed = 0;
+			}
+			try {
+				producer.flush();
+			} catch (InterruptException e) { // closing while flushing
+				return;
+			}
+		}
 	}
 
 	
@@ -1,12 +1,16 @@
 package tp1.kafka;
 
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.logging.Logger;
 
 import org.apache.kafka.clients.consumer.ConsumerConfig;
 import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.common.TopicPartition;
 import org.apache.kafka.common.serialization.StringDeserializer;
 import org.apache.kafka.clients.consumer.ConsumerRecord;
 import tp1.kafka.operations.OperationProcessor;
@@ -15,7 +19,24 @@ import tp1.kafka.operations.OperationUtils;
 public class KafkaSubscriber {
 	private Logger Log = Logger.getLogger(KafkaSubscriber.class.getName());
 	static public KafkaSubscriber createSubscriber(String brokers, List<String> topics, String mode) {
+		return new KafkaSubscriber(createConsumer(brokers, mode), topics);
+	}
+
+	/**
+	 * Creates a subscriber that consumes only some partitions of a topic
+	 * @param brokers the kafka brokers
+	 * @param topic the topic to consume
+	 * @param partitions the partitions to consume
+	 * @param startOffsets offset of the first record to consume of each partition
+	 *                     (partitions without one are consumed from the beginning)
+	 * @return the subscriber
+	 */
+	static public KafkaSubscriber createSubscriber(String brokers, String topic, Collection<Integer> partitions,
+												  Map<Integer, Long> startOffsets) {
+		return new KafkaSubscriber(createConsumer(brokers, KafkaUtils.FROM_BEGINNING), topic, partitions, startOffsets);
+	}
 
+	static private KafkaConsumer<String, String> createConsumer(String brokers, String mode) {
 		Properties props = new Properties();
 
 		// Localização dos servidores kafka (lista de máquinas + porto)
@@ -34,7 +55,7 @@ public class KafkaSubscriber {
 		props.put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, StringDeserializer.class.getName());
 
 		// Cria um consumidor (assinante/subscriber)
-		return new KafkaSubscriber(new KafkaConsumer<String, String>(props), topics);
+		return new KafkaConsumer<String, String>(props);
 	}
 
 	private static final long POLL_TIMEOUT = 1L;
@@ -46,6 +67,23 @@ public class KafkaSubscriber {
 		this.consumer.subscribe(topics);
 	}
 
+	public KafkaSubscriber(KafkaConsumer<String, String> consumer, String topic, Collection<Integer> partitions,
+						   Map<Integer, Long> startOffsets) {
+		this.consumer = consumer;
+		List<TopicPartition> assigned = new ArrayList<>(partitions.size());
+		for (int partition : partitions) {
+			assigned.add(new TopicPartition(topic, partition));
+		}
+		this.consumer.assign(assigned);
+		for (TopicPartition partition : assigned) {
+			Long offset = startOffsets.get(partition.partition());
+			if (offset != null)
+				this.consumer.seek(partition, offset);
+			else
+				this.consumer.seekToBeginning(List.of(partition));
+		}
+	}
+
 	public void startWithOp(boolean block, OperationProcessor processor){
 		start(block, opToRecordProcessor(processor));
 	}
@@ -71,7 +109,8 @@ public class KafkaSubscriber {
 	 * @return the record processor
 	 */
 	private RecordProcessor opToRecordProcessor(OperationProcessor processor){
-		return (record) -> processor.onReceive(OperationUtils.deserialize(record.value()), record.offset());
+		return (record) -> processor.onReceive(OperationUtils.deserialize(record.value()),
+				KafkaUtils.position(record.partition(), record.offset()));
 	}
 
 	/**
@@ -80,7 +119,7 @@ public class KafkaSubscriber {
 	 */
 	public void consumeOnce(RecordProcessor processor) {
 		consumer.poll(Duration.ofSeconds(POLL_TIMEOUT)).forEach(r -> {
-			Log.info("Received: version = "  + r.offset() + ", value = " + r.value());
+			Log.info("Received: partition = " + r.partition() + ", offset = "  + r.offset() + ", value = " + r.value());
 			processor.onReceive(r);
 		});
 	}
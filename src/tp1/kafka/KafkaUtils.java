@@ -1,19 +1,64 @@
 package tp1.kafka;
 
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.concurrent.ExecutionException;
 
 import org.apache.kafka.clients.admin.AdminClient;
 import org.apache.kafka.clients.admin.AdminClientConfig;
+import org.apache.kafka.clients.admin.ListOffsetsResult;
+import org.apache.kafka.clients.admin.NewPartitions;
 import org.apache.kafka.clients.admin.NewTopic;
+import org.apache.kafka.clients.admin.OffsetSpec;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.utils.Utils;
 
 public class KafkaUtils {
 	public static final String FROM_BEGINNING = "earliest";
 	public static final String KAFKA_BROKERS = "kafka:9092";
 	public static final String DIR_FILES_TOPIC = "DirFiles";
 
+	// Number of partitions of DIR_FILES_TOPIC (operations are partitioned by the file owner's id)
+	public static final int DIR_FILES_PARTITIONS = 12;
+
+	// Upper bound on the partitions of a topic, used to encode a partition and offset as one version
+	public static final int MAX_PARTITIONS = 64;
+
+	/**
+	 * Encodes the position of a record as a single version number.
+	 * Versions of the same partition are ordered as their offsets.
+	 * @param partition the record's partition
+	 * @param offset the record's offset
+	 * @return the version
+	 */
+	public static long position(int partition, long offset) {
+		return offset * MAX_PARTITIONS + partition;
+	}
+
+	public static int partitionOf(long position) {
+		return (int) (position % MAX_PARTITIONS);
+	}
+
+	public static long offsetOf(long position) {
+		return position / MAX_PARTITIONS;
+	}
+
+	/**
+	 * Partition of a record with a given key, as chosen by the producer's default partitioner
+	 * @param key the record's key
+	 * @param numPartitions the number of partitions of the topic
+	 * @return the partition
+	 */
+	public static int partitionFor(String key, int numPartitions) {
+		return Utils.toPositive(Utils.murmur2(key.getBytes(StandardCharsets.UTF_8))) % numPartitions;
+	}
+
 	public static void createTopics(List<String> topics) {
 		topics.forEach(topic -> createTopic(topic));
 	}
@@ -36,6 +81,73 @@ public class KafkaUtils {
 		}
 	}
 
+	/**
+	 * Creates a topic, or checks that the existing one has the expected number of partitions, for
+	 * processes that map keys to partitions themselves. An existing topic with fewer partitions is
+	 * only grown while no record was ever written to it, since growing it moves keys to other
+	 * partitions, apart from their earlier records.
+	 * @throws IllegalStateException if the topic has another number of partitions, or couldn't be checked
+	 */
+	public static void createTopicWithPartitions(String topic, int numPartitions, int replicationFactor) {
+		createTopic(topic, numPartitions, replicationFactor);
+		try (AdminClient client = create()) {
+			int existing = client.describeTopics(List.of(topic)).all().get().get(topic).partitions().size();
+			if (existing == numPartitions)
+				return;
+			List<Integer> partitions = new ArrayList<>();
+			for (int partition = 0; partition < existing; partition++) {
+				partitions.add(partition);
+			}
+			Map<Integer, Long> end = endOffsets(topic, partitions);
+			if (existing > numPartitions || end == null || end.values().stream().anyMatch(offset -> offset > 0))
+				throw new IllegalStateException(String.format("Topic %s has %d partitions instead of %d and can't be "
+						+ "repartitioned without reordering its records; recreate it", topic, existing, numPartitions));
+			client.createPartitions(Map.of(topic, NewPartitions.increaseTo(numPartitions))).all().get();
+			System.err.printf("Topic: %s grown from %d to %d partitions\n", topic, existing, numPartitions);
+		} catch (ExecutionException x) {
+			throw new IllegalStateException("Couldn't check the partitions of topic " + topic, x.getCause());
+		} catch (InterruptedException x) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted checking the partitions of topic " + topic);
+		}
+	}
+
+	/**
+	 * Offsets of the first record of partitions of a topic
+	 * @return the offsets, by partition, or null if they couldn't be listed
+	 */
+	public static Map<Integer, Long> beginningOffsets(String topic, Collection<Integer> partitions) {
+		return listOffsets(topic, partitions, OffsetSpec.earliest());
+	}
+
+	/**
+	 * Offsets the next records of partitions of a topic will have
+	 * @return the offsets, by partition, or null if they couldn't be listed
+	 */
+	public static Map<Integer, Long> endOffsets(String topic, Collection<Integer> partitions) {
+		return listOffsets(topic, partitions, OffsetSpec.latest());
+	}
+
+	private static Map<Integer, Long> listOffsets(String topic, Collection<Integer> partitions, OffsetSpec spec) {
+		Map<TopicPartition, OffsetSpec> request = new HashMap<>();
+		for (int partition : partitions) {
+			request.put(new TopicPartition(topic, partition), spec);
+		}
+		try (AdminClient client = create()) {
+			Map<Integer, Long> offsets = new HashMap<>();
+			for (Map.Entry<TopicPartition, ListOffsetsResult.ListOffsetsResultInfo> listed :
+					client.listOffsets(request).all().get().entrySet()) {
+				offsets.put(listed.getKey().partition(), listed.getValue().offset());
+			}
+			return offsets;
+		} catch (ExecutionException x) {
+			return null;
+		} catch (InterruptedException x) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+	}
+
 	static private AdminClient create() {
 		Properties props = new Properties();
 		props.put(AdminClientConfig.BOOTSTRAP_SERVERS_CONFIG, KAFKA_BROKERS);
@@ -14,6 +14,8 @@ public final class Create implements FileOperation, Operation {
     private String original;
     private Set<String> replicas;
 
+    private Set<String> pushed;
+
     private FileInfo fileInfo;
 
     private int size;
@@ -30,6 +32,20 @@ public final class Create implements FileOperation, Operation {
             // The set of servers that should replicate this file. Must contain original
             Set<String> replicas,
             FileInfo fileInfo
+    ) {
+        this(userId, filename, fileId, size, original, replicas, fileInfo, Set.of());
+    }
+
+    public Create(
+            String userId,
+            String filename,
+            String fileId,
+            int size,
+            String original,
+            Set<String> replicas,
+            FileInfo fileInfo,
+            // The replicas the file was pushed to by the directory (they don't need to fetch it)
+            Set<String> pushed
     ) {
         this.userId = userId;
         this.filename = filename;
@@ -38,6 +54,7 @@ public final class Create implements FileOperation, Operation {
         this.original = original;
         this.replicas = replicas;
         this.fileInfo = fileInfo;
+        this.pushed = pushed;
     }
 
     @Override
@@ -67,6 +84,10 @@ public final class Create implements FileOperation, Operation {
         return replicas;
     }
 
+    public Set<String> pushed() {
+        return pushed == null ? Set.of() : pushed;
+    }
+
     public FileInfo fileInfo(){
         return fileInfo;
     }
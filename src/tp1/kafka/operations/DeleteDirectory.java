@@ -0,0 +1,44 @@
+package tp1.kafka.operations;
+
+import java.util.List;
+import java.util.Map;
+
+public final class DeleteDirectory implements FileOperation, Operation {
+    public static final String NAME = "DeleteDirectory";
+    private String userId;
+    private Map<String, List<String>> fileIds;
+
+    public DeleteDirectory(
+            // The user whose files are deleted
+            String userId,
+            // The ids of the files to delete, grouped by the URI of the servers storing them
+            Map<String, List<String>> fileIds
+    ) {
+        this.userId = userId;
+        this.fileIds = fileIds;
+    }
+
+    @Override
+    public String opName() {
+        return NAME;
+    }
+
+    @Override
+    public String filename() {
+        return null;
+    }
+
+    @Override
+    public String userId() {
+        return userId;
+    }
+
+    @Override
+    public int sizeDifference() {
+        return 0;
+    }
+
+    public Map<String, List<String>> fileIds() {
+        return fileIds;
+    }
+}
@@ -1,6 +1,7 @@
 package tp1.kafka.operations;
 
 import java.util.Objects;
+import java.util.Set;
 
 public final class Edit implements FileOperation {
     public static final String NAME = "Edit";
@@ -10,6 +11,7 @@ public final class Edit implements FileOperation {
     private String userId;
     private String fileId;
     private String original;
+    private Set<String> pushed;
 
     public Edit(
             String userId,
@@ -19,12 +21,25 @@ public final class Edit implements FileOperation {
             int sizeDifference,
             // A server already containing the updated version of the file
             String original
+    ) {
+        this(userId, filename, fileId, sizeDifference, original, Set.of());
+    }
+
+    public Edit(
+            String userId,
+            String filename,
+            String fileId,
+            int sizeDifference,
+            String original,
+            // The replicas the new version was pushed to by the directory (they don't need to fetch it)
+            Set<String> pushed
     ) {
         this.userId = userId;
         this.filename = filename;
         this.fileId = fileId;
         this.sizeDifference = sizeDifference;
         this.original = original;
+        this.pushed = pushed;
     }
 
     @Override
@@ -55,4 +70,8 @@ public final class Edit implements FileOperation {
         return original;
     }
 
+    public Set<String> pushed() {
+        return pushed == null ? Set.of() : pushed;
+    }
+
 }
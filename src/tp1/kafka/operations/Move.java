@@ -22,6 +22,8 @@ public final class Move implements FileOperation {
             // The set of servers that should replicate this file. Must contain original
             Set<String> replicas
     ) {
+        this.userId = userId;
+        this.filename = filename;
         this.fileId = fileId;
         this.original = original;
         this.replicas = replicas;
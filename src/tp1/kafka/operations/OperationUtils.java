@@ -24,6 +24,7 @@ public final class OperationUtils {
         return switch (element.get(TYPE_FIELD).getAsString()){
             case Create.NAME -> json.fromJson(element.getAsJsonObject(OBJ_FIELD), Create.class);
             case Delete.NAME -> json.fromJson(element.getAsJsonObject(OBJ_FIELD), Delete.class);
+            case DeleteDirectory.NAME -> json.fromJson(element.getAsJsonObject(OBJ_FIELD), DeleteDirectory.class);
             case Edit.NAME -> json.fromJson(element.getAsJsonObject(OBJ_FIELD), Edit.class);
             case Move.NAME -> json.fromJson(element.getAsJsonObject(OBJ_FIELD), Move.class);
             case Share.NAME -> json.fromJson(element.getAsJsonObject(OBJ_FIELD), Share.class);
@@ -1,10 +1,25 @@
 package tp1.kafka.sync;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import tp1.kafka.KafkaUtils;
 
 public class SyncPoint<T> {
 	public static final int DEFAULT_PERIOD = 100;
+
+	// Threads running the continuations of version futures, so they never run on the consumer thread
+	private static final int COMPLETION_THREADS = 4;
 	private static SyncPoint<?> instance;
 
 	@SuppressWarnings("unchecked")
@@ -15,10 +30,23 @@ public class SyncPoint<T> {
 	}
 
 	private long version = -1L;
+	// last version of each partition (versions encode a partition and an offset, see KafkaUtils.position)
+	private Map<Integer, Long> versions;
 	private Map<Long, T> results;
+	// futures of the versions not reached yet, by partition and version
+	private Map<Integer, NavigableMap<Long, CompletableFuture<Long>>> waiting;
+	// partitions consumed by this process, or null if it consumes all of them
+	private Set<Integer> partitions;
+	private final ExecutorService completions = Executors.newFixedThreadPool(COMPLETION_THREADS, r -> {
+		Thread thread = new Thread(r, "version-completions");
+		thread.setDaemon(true);
+		return thread;
+	});
 
 	public SyncPoint() {
+		versions = new HashMap<>();
 		results = new HashMap<>();
+		waiting = new HashMap<>();
 	}
 
 
@@ -29,15 +57,37 @@ public class SyncPoint<T> {
 		return version;
 	}
 
+	/**
+	 * Current version of each partition
+	 */
+	public synchronized Map<Integer, Long> getVersions(){
+		return new HashMap<>(versions);
+	}
+
+	/**
+	 * Sets the partitions consumed by this process. The versions of other partitions are never
+	 * reached here, so they are never waited for.
+	 */
+	public synchronized void setPartitions(Collection<Integer> partitions) {
+		this.partitions = new HashSet<>(partitions);
+	}
+
+	private boolean consumes(int partition) {
+		return partitions == null || partitions.contains(partition);
+	}
+
 	public synchronized void waitForVersion(long n){
 		waitForVersion(n, DEFAULT_PERIOD);
 	}
 
 	/**
-	 * Waits for version to be at least equals to n
+	 * Waits for the version of n's partition to be at least equals to n
 	 */
 	public synchronized void waitForVersion(long n, int waitPeriod) {
-		while (version < n) {
+		if (n < 0 || !consumes(KafkaUtils.partitionOf(n)))
+			return;
+		int partition = KafkaUtils.partitionOf(n);
+		while (versions.getOrDefault(partition, -1L) < n) {
 			try {
 				this.wait(waitPeriod);
 			} catch (InterruptedException e) {
@@ -45,6 +95,77 @@ public class SyncPoint<T> {
 		}
 	}
 
+	/**
+	 * Returns a future completed once the version of n's partition is at least equals to n,
+	 * so callers can wait for a version without holding a thread
+	 * @param n the version
+	 * @return the future, completed with the version reached
+	 */
+	public synchronized CompletableFuture<Long> versionFuture(long n) {
+		int partition = KafkaUtils.partitionOf(Math.max(n, 0));
+		if (n < 0 || !consumes(partition) || versions.getOrDefault(partition, -1L) >= n)
+			return CompletableFuture.completedFuture(n);
+		return waiting.computeIfAbsent(partition, k -> new TreeMap<>())
+				.computeIfAbsent(n, k -> new CompletableFuture<>()).copy();
+	}
+
+	/**
+	 * Returns a future completed once every partition consumed here is at least at its version
+	 * in a client's versions
+	 * @param seen the version of each partition, as parsed by parseVersions
+	 */
+	public CompletableFuture<Void> versionsFuture(Map<Integer, Long> seen) {
+		return CompletableFuture.allOf(seen.values().stream().map(this::versionFuture)
+				.toArray(CompletableFuture<?>[]::new));
+	}
+
+	/**
+	 * The versions to send to a client: the newest of each partition between those the client
+	 * has seen and those applied here, so reads anywhere later see at least as much
+	 * @param seen the versions the client has seen
+	 * @return the versions, formatted as by formatVersions
+	 */
+	public synchronized String versionsSeen(Map<Integer, Long> seen) {
+		Map<Integer, Long> merged = new HashMap<>(seen);
+		versions.forEach((partition, n) -> merged.merge(partition, n, Math::max));
+		return formatVersions(merged);
+	}
+
+	/**
+	 * Parses the version header: the version (see KafkaUtils.position) of each partition the
+	 * client has seen, separated by commas. A single version is the version of its partition.
+	 * @param header the header (may be null)
+	 * @return the version of each partition, without negative versions
+	 * @throws NumberFormatException if the header is malformed
+	 */
+	public static Map<Integer, Long> parseVersions(String header) {
+		Map<Integer, Long> parsed = new HashMap<>();
+		if (header == null || header.isBlank())
+			return parsed;
+		for (String version : header.split(",")) {
+			long n = Long.parseLong(version.trim());
+			if (n >= 0)
+				parsed.merge(KafkaUtils.partitionOf(n), n, Math::max);
+		}
+		return parsed;
+	}
+
+	/**
+	 * Formats versions as the version header
+	 * @return the header, -1 if there are no versions
+	 */
+	public static String formatVersions(Map<Integer, Long> versions) {
+		if (versions.isEmpty())
+			return "-1";
+		StringBuilder header = new StringBuilder();
+		for (long n : new TreeMap<>(versions).values()) {
+			if (header.length() > 0)
+				header.append(',');
+			header.append(n);
+		}
+		return header.toString();
+	}
+
 	/**
 	 * Assuming that results are added sequentially, returns null if the result is
 	 * not available.
@@ -59,16 +180,29 @@ public class SyncPoint<T> {
 	 */
 	public synchronized void setResult(long n, T result) {
 		results.put(n, result);
-		version = n;
-		this.notifyAll();
+		setVersion(n);
 	}
 	
 	/**
 	 * Updates the version
 	 */
-	public synchronized void setVersion(long n) {
-		version = n;
-		this.notifyAll();
+	public void setVersion(long n) {
+		List<CompletableFuture<Long>> reached = new ArrayList<>();
+		synchronized (this) {
+			version = n;
+			int partition = KafkaUtils.partitionOf(n);
+			versions.put(partition, n);
+			this.notifyAll();
+			NavigableMap<Long, CompletableFuture<Long>> partitionWaiting = waiting.get(partition);
+			if (partitionWaiting != null) {
+				NavigableMap<Long, CompletableFuture<Long>> done = partitionWaiting.headMap(n, true);
+				reached.addAll(done.values());
+				done.clear();
+			}
+		}
+		for (CompletableFuture<Long> future : reached) {
+			future.completeAsync(() -> n, completions);
+		}
 	}
 
 	public synchronized String toString() {
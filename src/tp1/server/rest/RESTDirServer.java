@@ -1,5 +1,7 @@
 package tp1.server.rest;
 
+import tp1.common.services.BasicDirectoryService;
+import tp1.common.services.BasicDirectoryService.ReplicationMode;
 import tp1.common.services.DirectoryService;
 import tp1.common.services.FilesService;
 import tp1.common.services.UsersService;
@@ -21,8 +23,15 @@ public class RESTDirServer {
         Log.setLevel(Level.FINEST);
         ServerUtils.expect(Log, args, "secret");
         TokenManager.setSecret(args[0]);
+        // optional: how written files reach their replicas (PULL, PUSH_ACK_FIRST or PUSH_ACK_ALL)
+        ReplicationMode replicationMode = args.length > 1 ?
+                ReplicationMode.valueOf(args[1].toUpperCase()) : ReplicationMode.PULL;
+        // optional: the shard owned by this server and the number of shards (users are partitioned
+        // amongst the shards, and requests for users of other shards are redirected to their owner)
+        int shardIndex = args.length > 3 ? Integer.parseInt(args[2]) : 0;
+        int shardCount = args.length > 3 ? Integer.parseInt(args[3]) : 1;
         RestUtils.startServer(DirectoryService.NAME,
-                RestDirResource::new, new String[]{UsersService.NAME, FilesService.NAME}, PORT, Log,
+                () -> new RestDirResource(new BasicDirectoryService(replicationMode, shardIndex, shardCount)), new String[]{UsersService.NAME, FilesService.NAME}, PORT, Log,
                 List.of(new VersionHeaderFilter()));
     }
 }
@@ -1,26 +1,44 @@
 package tp1.server.rest;
 
 import jakarta.ws.rs.WebApplicationException;
+import jakarta.ws.rs.container.AsyncResponse;
+import jakarta.ws.rs.core.HttpHeaders;
 import jakarta.ws.rs.core.Response;
-import org.glassfish.jersey.jdkhttp.JdkHttpServerFactory;
+import jakarta.ws.rs.core.StreamingOutput;
+import org.glassfish.grizzly.ssl.SSLEngineConfigurator;
+import org.glassfish.jersey.grizzly2.httpserver.GrizzlyHttpServerFactory;
 import org.glassfish.jersey.server.ResourceConfig;
+import tp1.client.ClientUtils;
 import tp1.client.InsecureHostnameVerifier;
 import tp1.common.ServerUtils;
 import tp1.common.WebRunnable;
 import tp1.common.WebSupplier;
 import tp1.common.exceptions.*;
+import tp1.common.services.FileSlice;
+import tp1.kafka.sync.SyncPoint;
 import tp1.server.MulticastServiceDiscovery;
 
 import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLContext;
 import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.net.InetAddress;
 import java.net.URI;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Supplier;
 import java.util.logging.Logger;
 
@@ -30,6 +48,12 @@ import java.util.logging.Logger;
 public final class RestUtils {
     // URI format for rest servers
     private static final String SERVER_URI_FMT = "https://%s:%s/rest";
+    private static final String CONTENT_RANGE_HEADER = "Content-Range";
+    private static final String ACCEPT_RANGES_HEADER = "Accept-Ranges";
+    // Buffer used to send contents decoded as they're sent
+    private static final int STREAM_BUFFER = 64 * 1024;
+    // Milliseconds a suspended request may wait for its result, as long as clients wait for an answer
+    private static final long ASYNC_TIMEOUT = ClientUtils.READ_TIMEOUT;
     private RestUtils() {}
 
     /**
@@ -52,40 +76,236 @@ public final class RestUtils {
     public static <T> T handleExceptions(WebSupplier<T> call, Logger Log){
         try{
             return call.invoke();
-        } catch (RequestTimeoutException e) {
-            Log.info("throwing BAD REQUEST: timed out");
+        } catch (WebApplicationException e){
+            throw e;
+        } catch (RuntimeException e) {
+            Log.severe("Exception thrown while processing request: " + e.getMessage());
+            e.printStackTrace();
+            throw e;
+        } catch (Exception e) {
+            throw toWebException(e, Log);
+        }
+    }
+
+    /**
+     * Resumes an asynchronous request once the result of the operation is available, mapping
+     * service operation exceptions as handleExceptions does. Requests still waiting after
+     * ASYNC_TIMEOUT are answered as timed out.
+     * @param response the suspended response
+     * @param result the result of the operation (null results are answered with 204)
+     * @param Log the resource's logger
+     */
+    public static <T> void resume(AsyncResponse response, CompletionStage<T> result, Logger Log){
+        // answered as a timed out request, as clients stop waiting for it anyway
+        response.setTimeoutHandler(timedOut -> timedOut.resume(toWebException(new RequestTimeoutException(), Log)));
+        response.setTimeout(ASYNC_TIMEOUT, TimeUnit.MILLISECONDS);
+        result.whenComplete((value, error) -> {
+            if(error == null){
+                if(!response.resume(value == null ? Response.noContent().build() : value))
+                    discard(value); // already answered, as timed out
+                return;
+            }
+            Throwable cause = error instanceof CompletionException && error.getCause() != null ?
+                    error.getCause() : error;
+            if(cause instanceof WebApplicationException){
+                response.resume(cause);
+            } else if(cause instanceof RuntimeException || cause instanceof Error){
+                Log.severe("Exception thrown while processing request: " + cause.getMessage());
+                cause.printStackTrace();
+                response.resume(cause);
+            } else {
+                response.resume(toWebException(cause, Log));
+            }
+        });
+    }
+
+    /**
+     * Closes the files held by a result that won't be sent
+     * @param value the result
+     */
+    private static void discard(Object value){
+        if(value instanceof Response r && r.getEntity() instanceof Closeable entity) {
+            try {
+                entity.close();
+            } catch (IOException ignored) {}
+        }
+    }
+
+    /**
+     * Builds the response with the contents of a file: 200 with the whole file, 206 with the
+     * range requested by the client or 416 if the range is beyond the end of the file
+     * @param slice the contents read
+     * @return the response
+     */
+    public static Response fileResponse(FileSlice slice){
+        if(!slice.satisfiable()) {
+            return Response.status(Response.Status.REQUESTED_RANGE_NOT_SATISFIABLE)
+                    .header(CONTENT_RANGE_HEADER, "bytes */" + slice.size())
+                    .header(ACCEPT_RANGES_HEADER, "bytes").build();
+        }
+        Object entity = slice.data() != null ? slice.data() : new SliceOutput(slice);
+        Response.ResponseBuilder builder;
+        if(slice.partial()) {
+            long last = slice.first() + slice.length() - 1;
+            builder = Response.status(Response.Status.PARTIAL_CONTENT).entity(entity)
+                    .header(CONTENT_RANGE_HEADER, "bytes " + slice.first() + "-" + last + "/" + slice.size());
+        } else {
+            builder = Response.ok(entity);
+        }
+        if(slice.data() == null)
+            builder.header(HttpHeaders.CONTENT_LENGTH, slice.length());
+        if(slice.encoding() != null)
+            builder.header(HttpHeaders.CONTENT_ENCODING, slice.encoding());
+        builder.header(ACCEPT_RANGES_HEADER, "bytes");
+        builder.header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        if(slice.tag() != null)
+            builder.header(HttpHeaders.ETAG, slice.tag());
+        return builder.build();
+    }
+
+    /**
+     * Sends contents left in files, closing them once sent. Responses that are never sent are
+     * closed by resume.
+     */
+    private record SliceOutput(FileSlice slice) implements StreamingOutput, Closeable {
+        @Override
+        public void write(OutputStream out) throws IOException {
+            try (slice) {
+                if(slice.segments() != null)
+                    transferFrom(slice.segments(), out);
+                else
+                    copyFrom(slice.stream(), slice.length(), out);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            slice.close();
+        }
+    }
+
+    /**
+     * Streams parts of files to the response with FileChannel.transferTo, so the contents are
+     * never copied into the heap
+     * @param segments the parts of files to send, in order
+     * @param out the response's stream
+     */
+    private static void transferFrom(List<FileSlice.Segment> segments, OutputStream out) throws IOException {
+        WritableByteChannel target = Channels.newChannel(out);
+        for (FileSlice.Segment segment : segments) {
+            FileChannel channel = segment.open();
+            try {
+                long position = segment.position();
+                long end = position + segment.length();
+                while (position < end) {
+                    long sent = channel.transferTo(position, end - position, target);
+                    if(sent <= 0) // the file was truncated meanwhile
+                        break;
+                    position += sent;
+                }
+            } finally {
+                segment.done(channel);
+            }
+        }
+    }
+
+    /**
+     * Streams contents decoded as they're sent to the response, through a fixed size buffer
+     * @param in the contents
+     * @param length number of bytes to send
+     * @param out the response's stream
+     */
+    private static void copyFrom(InputStream in, long length, OutputStream out) throws IOException {
+        byte[] buffer = new byte[STREAM_BUFFER];
+        long remaining = length;
+        while (remaining > 0) {
+            int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if(read < 0) // the file was truncated meanwhile
+                break;
+            out.write(buffer, 0, read);
+            remaining -= read;
+        }
+    }
+
+    /**
+     * Parses the version header of a request
+     * @param header the header (may be null)
+     * @return the version of each partition the client has seen
+     * @throws WebApplicationException BAD_REQUEST if the header is malformed
+     */
+    public static Map<Integer, Long> versions(String header){
+        try {
+            return SyncPoint.parseVersions(header);
+        } catch (NumberFormatException e) {
             throw new WebApplicationException(Response.Status.BAD_REQUEST);
-        } catch (IncorrectPasswordException e) {
+        }
+    }
+
+    /**
+     * Checks whether a client accepts gzip encoded contents
+     * @param acceptEncoding the Accept-Encoding header (may be null)
+     * @return true if gzip is accepted with a non-zero quality
+     */
+    public static boolean acceptsGzip(String acceptEncoding){
+        if(acceptEncoding == null)
+            return false;
+        for (String coding : acceptEncoding.split(",")) {
+            String[] params = coding.split(";");
+            String name = params[0].trim();
+            if(!name.equalsIgnoreCase("gzip") && !name.equalsIgnoreCase("x-gzip"))
+                continue;
+            for (int i = 1; i < params.length; i++) {
+                String param = params[i].trim();
+                if(param.startsWith("q=")) {
+                    try {
+                        return Double.parseDouble(param.substring(2)) > 0;
+                    } catch (NumberFormatException e) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Transforms a service operation exception into a Rest response
+     * @param e the exception
+     * @param Log the resource's logger
+     * @return the exception with the corresponding response
+     */
+    private static WebApplicationException toWebException(Throwable e, Logger Log){
+        if(e instanceof RequestTimeoutException) {
+            Log.info("throwing BAD REQUEST: timed out");
+            return new WebApplicationException(Response.Status.BAD_REQUEST);
+        } else if(e instanceof IncorrectPasswordException) {
             Log.info("throwing FORBIDDEN: incorrect password");
-            throw new WebApplicationException(Response.Status.FORBIDDEN);
-        } catch (NoAccessException e) {
+            return new WebApplicationException(Response.Status.FORBIDDEN);
+        } else if(e instanceof NoAccessException) {
             Log.info("throwing FORBIDDEN: no access");
-            throw new WebApplicationException(Response.Status.FORBIDDEN);
-        } catch (InvalidUserIdException e) {
+            return new WebApplicationException(Response.Status.FORBIDDEN);
+        } else if(e instanceof InvalidUserIdException) {
             Log.info("throwing NOT FOUND: invalid user id");
-            throw new WebApplicationException(Response.Status.NOT_FOUND);
-        } catch (UnexpectedErrorException e) {
+            return new WebApplicationException(Response.Status.NOT_FOUND);
+        } else if(e instanceof UnexpectedErrorException) {
             Log.severe("throwing BAD REQUEST: unexpected error");
-            throw new WebApplicationException(Response.Status.BAD_REQUEST);
-        } catch (InvalidFileLocationException e) {
+            return new WebApplicationException(Response.Status.BAD_REQUEST);
+        } else if(e instanceof InvalidFileLocationException) {
             Log.info("throwing NOT FOUND: invalid filename");
-            throw new WebApplicationException(Response.Status.NOT_FOUND);
-        } catch (InvalidArgumentException e) {
+            return new WebApplicationException(Response.Status.NOT_FOUND);
+        } else if(e instanceof InvalidArgumentException) {
             Log.info("throwing BAD REQUEST: invalid argument");
-            throw new WebApplicationException(Response.Status.BAD_REQUEST);
-        } catch (ConflicitingUsersException e) {
+            return new WebApplicationException(Response.Status.BAD_REQUEST);
+        } else if(e instanceof ConflicitingUsersException) {
             Log.info("throwing CONFLICT: conflicting users");
-            throw new WebApplicationException(Response.Status.CONFLICT);
-        } catch (InvalidTokenException e){
+            return new WebApplicationException(Response.Status.CONFLICT);
+        } else if(e instanceof InvalidTokenException){
             Log.info("throwing FORBIDDEN: invalid token");
-            throw new WebApplicationException(Response.Status.FORBIDDEN);
-        } catch (WebApplicationException e){
-            throw e;
-        } catch (Exception e) {
-            Log.severe("Exception thrown while processing request: " + e.getMessage());
-            e.printStackTrace();
-            throw e;
+            return new WebApplicationException(Response.Status.FORBIDDEN);
         }
+        Log.severe("Exception thrown while processing request: " + e.getMessage());
+        return new WebApplicationException(e, Response.Status.INTERNAL_SERVER_ERROR);
     }
 
     public static <T> void startServer(String serviceName, Supplier<Object> resourceSupplier,
@@ -120,7 +340,10 @@ public final class RestUtils {
                 config.register(filter);
             }
 
-            JdkHttpServerFactory.createHttpServer(URI.create(serverURI), config, SSLContext.getDefault());
+            // the Grizzly container supports suspended (asynchronous) responses, so requests waiting
+            // for a version don't hold one of its worker threads
+            GrizzlyHttpServerFactory.createHttpServer(URI.create(serverURI), config, true,
+                    new SSLEngineConfigurator(SSLContext.getDefault(), false, false, false));
 
             Log.info(String.format("%s Server ready @ %s\n", serviceName, serverURI));
         } catch (Exception e) {
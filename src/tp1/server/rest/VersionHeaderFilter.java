@@ -8,6 +8,7 @@ import tp1.common.services.DirectoryService;
 import tp1.kafka.sync.SyncPoint;
 
 import java.io.IOException;
+import java.util.Map;
 
 @Provider
 public class VersionHeaderFilter implements ContainerResponseFilter {
@@ -18,6 +19,13 @@ public class VersionHeaderFilter implements ContainerResponseFilter {
     @Override
     public void filter(ContainerRequestContext containerRequestContext,
                        ContainerResponseContext containerResponseContext) {
-        containerResponseContext.getHeaders().add(DirectoryService.VERSION_HEADER, syncPoint.getVersion());
+        // versions are per partition, so the client keeps the newest it has seen of each one
+        Map<Integer, Long> seen;
+        try {
+            seen = SyncPoint.parseVersions(containerRequestContext.getHeaderString(DirectoryService.VERSION_HEADER));
+        } catch (NumberFormatException e) {
+            seen = Map.of();
+        }
+        containerResponseContext.getHeaders().add(DirectoryService.VERSION_HEADER, syncPoint.versionsSeen(seen));
     }
 }
@@ -1,14 +1,26 @@
 package tp1.server.rest.resources;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import jakarta.inject.Singleton;
 import jakarta.ws.rs.WebApplicationException;
+import jakarta.ws.rs.container.AsyncResponse;
+import jakarta.ws.rs.core.Context;
 import jakarta.ws.rs.core.Response;
+import jakarta.ws.rs.core.StreamingOutput;
+import jakarta.ws.rs.core.UriInfo;
+import tp1.api.BatchOperation;
+import tp1.api.BatchResult;
 import tp1.api.FileInfo;
+import tp1.api.FilePage;
 import tp1.api.service.rest.RestDirectory;
 import tp1.common.services.BasicDirectoryService;
+import tp1.common.services.ByteRange;
 import tp1.common.services.DirectoryService;
+import tp1.common.services.FileSlice;
 
-import java.net.http.HttpResponse;
+import java.io.InputStream;
+import java.net.URI;
 import java.util.*;
 import java.util.logging.Logger;
 
@@ -22,6 +34,13 @@ public class RestDirResource implements RestDirectory {
     private static final Logger Log = Logger.getLogger(RestDirResource.class.getName());
     private DirectoryService base;
 
+    // Number of files written to the stream between flushes
+    private static final int STREAM_FLUSH_INTERVAL = 256;
+    private static final ObjectMapper json = new ObjectMapper();
+
+    @Context
+    private UriInfo uriInfo;
+
     public RestDirResource(){
         base = new BasicDirectoryService();
     }
@@ -31,41 +50,113 @@ public class RestDirResource implements RestDirectory {
     }
 
     @Override
-    public FileInfo writeFile(String filename, byte[] data, String userId, String password) {
-        return handleExceptions(()->base.writeFile(filename, data, userId, password), Log);
+    public void writeFile(String filename, InputStream data, long length, String userId, String password,
+                          AsyncResponse response) {
+        redirectToShardOwner(userId);
+        resume(response, handleExceptions(()->base.writeFileAsync(filename, data, length, userId, password), Log), Log);
     }
 
     @Override
-    public void deleteFile(String filename, String userId, String password) {
-        handleExceptions(()->base.deleteFile(filename, userId, password), Log);
-        throw new WebApplicationException(Response.Status.NO_CONTENT);
+    public void batch(String userId, String password, List<BatchOperation> operations, AsyncResponse response) {
+        if(operations == null)
+            throw new WebApplicationException(Response.Status.BAD_REQUEST);
+        redirectToShardOwner(userId);
+        resume(response, handleExceptions(()->base.batchAsync(userId, password, operations), Log), Log);
     }
 
     @Override
-    public void shareFile(String filename, String userId, String userIdShare, String password) {
-        handleExceptions(()->base.shareFile(filename, userId, userIdShare, password), Log);
-        throw new WebApplicationException(Response.Status.NO_CONTENT);
+    public void deleteFile(String filename, String userId, String password, AsyncResponse response) {
+        redirectToShardOwner(userId);
+        resume(response, handleExceptions(()->base.deleteFileAsync(filename, userId, password), Log), Log);
     }
 
     @Override
-    public void unshareFile(String filename, String userId, String userIdShare, String password) {
-        handleExceptions(()->base.unshareFile(filename, userId, userIdShare, password), Log);
-        throw new WebApplicationException(Response.Status.NO_CONTENT);
+    public void shareFile(String filename, String userId, String userIdShare, String password, AsyncResponse response) {
+        redirectToShardOwner(userId);
+        resume(response, handleExceptions(()->base.shareFileAsync(filename, userId, userIdShare, password), Log), Log);
+    }
+
+    @Override
+    public void unshareFile(String filename, String userId, String userIdShare, String password, AsyncResponse response) {
+        redirectToShardOwner(userId);
+        resume(response, handleExceptions(()->base.unshareFileAsync(filename, userId, userIdShare, password), Log), Log);
     }
 
     @Override
-    public byte[] getFile(String filename, String userId, String accUserId, String password, long version) {
-        return handleExceptions(()->base.getFile(filename, userId, accUserId, password, true, version), Log);
+    public void getFile(String filename, String userId, String accUserId, String password, String version,
+                        String range, String ifRange, AsyncResponse response) {
+        redirectToShardOwner(userId);
+        // when redirected, the files server serves the range
+        ByteRange requested = ByteRange.parse(range);
+        Map<Integer, Long> versions = versions(version);
+        resume(response, handleExceptions(()->base.getFileAsync(filename, userId, accUserId, password, true, versions), Log)
+                .thenApply(data -> data == null ? null :
+                        fileResponse(FileSlice.of(data, requested, ifRange, null))), Log);
     }
 
     @Override
     public List<FileInfo> lsFile(String userId, String password) {
+        redirectToShardOwner(userId);
         return handleExceptions(()->base.lsFile(userId, password), Log);
     }
 
+    @Override
+    public FilePage lsFilePage(String userId, String password, String cursor, int limit) {
+        redirectToShardOwner(userId);
+        return handleExceptions(()->base.lsFile(userId, password, cursor, limit), Log);
+    }
+
+    @Override
+    public StreamingOutput lsFileStream(String userId, String password) {
+        redirectToShardOwner(userId);
+        // credentials are validated before streaming starts so errors still map to a status code
+        Iterator<FileInfo> files = handleExceptions(()->base.lsFileIterator(userId, password), Log);
+        return (out) -> {
+            try (JsonGenerator generator = json.getFactory().createGenerator(out)) {
+                generator.writeStartArray();
+                int written = 0;
+                while (files.hasNext()) {
+                    json.writeValue(generator, files.next());
+                    if (++written % STREAM_FLUSH_INTERVAL == 0) {
+                        generator.flush();
+                    }
+                }
+                generator.writeEndArray();
+            }
+        };
+    }
+
     @Override
     public void deleteDirectory(String userId, String password, String token) {
+        redirectToShardOwner(userId);
         handleExceptions(() -> base.deleteDirectory(userId, password, token), Log);
         throw new WebApplicationException(Response.Status.NO_CONTENT);
     }
+
+    @Override
+    public FilePage lsLocalFiles(String userId, String token, String cursor, int limit) {
+        return handleExceptions(()->base.lsLocalFiles(userId, token, cursor, limit), Log);
+    }
+
+    @Override
+    public void invalidateUser(String userId, String token) {
+        redirectToShardOwner(userId);
+        handleExceptions(() -> base.invalidateUser(userId, token), Log);
+        throw new WebApplicationException(Response.Status.NO_CONTENT);
+    }
+
+    /**
+     * Redirects the request to the directory owning the user's shard, if it's not this one
+     * @param userId the user whose files are accessed
+     */
+    private void redirectToShardOwner(String userId) {
+        String owner = handleExceptions(()->base.shardOwner(userId), Log);
+        if(owner == null)
+            return;
+        URI target = URI.create(owner);
+        URI location = uriInfo.getRequestUriBuilder()
+                .scheme(target.getScheme()).host(target.getHost()).port(target.getPort()).build();
+        Log.info("Redirecting to the owner of " + userId + "'s shard: " + location);
+        throw new WebApplicationException(Response.temporaryRedirect(location).build());
+    }
 }
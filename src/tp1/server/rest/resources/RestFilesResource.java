@@ -2,12 +2,20 @@ package tp1.server.rest.resources;
 
 import jakarta.inject.Singleton;
 import jakarta.ws.rs.WebApplicationException;
+import jakarta.ws.rs.container.AsyncResponse;
 import jakarta.ws.rs.core.Response.Status;
+import jakarta.ws.rs.core.StreamingOutput;
+import tp1.api.FileManifest;
 import tp1.api.service.rest.RestFiles;
+import tp1.common.services.ByteRange;
 import tp1.common.services.DropboxFilesService;
+import tp1.common.services.FileDelta;
 import tp1.common.services.LocalFilesService;
 import tp1.common.services.FilesService;
 
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
 import java.util.logging.Logger;
 import static tp1.server.rest.RestUtils.*;
 
@@ -27,7 +35,7 @@ public class RestFilesResource implements RestFiles {
     }
 
     @Override
-    public void writeFile(String fileId, byte[] data, String token) {
+    public void writeFile(String fileId, InputStream data, String token) {
         handleExceptions(()->base.writeFile(fileId, data, token), Log);
         throw new WebApplicationException(Status.NO_CONTENT);
     }
@@ -39,8 +47,42 @@ public class RestFilesResource implements RestFiles {
     }
 
     @Override
-    public byte[] getFile(String fileId, String token, long version) {
-        return handleExceptions(()->base.getFile(fileId, token, version), Log);
+    public void getFile(String fileId, String token, String version, String range, String ifRange,
+                        String acceptEncoding, AsyncResponse response) {
+        Map<Integer, Long> versions = versions(version);
+        resume(response, handleExceptions(()->base.getFileRangeAsync(fileId, token, versions,
+                ByteRange.parse(range), ifRange, acceptsGzip(acceptEncoding)), Log).thenApply(slice -> fileResponse(slice)), Log);
+    }
+
+    @Override
+    public FileManifest getManifest(String fileId, String token) {
+        return handleExceptions(()->base.getManifest(fileId, token), Log);
+    }
+
+    @Override
+    public byte[] getChunk(String chunk, String token) {
+        return handleExceptions(()->base.getChunk(chunk, token), Log);
+    }
+
+    @Override
+    public StreamingOutput getDelta(String fileId, byte[] signatures, String token) {
+        FileDelta delta = handleExceptions(()->base.getDelta(fileId, signatures, token), Log);
+        return delta == null ? null : delta::writeTo;
+    }
+
+    @Override
+    public List<String> getMerkleNodes(String replica, int level, List<Integer> nodes, String token) {
+        return handleExceptions(()->base.getMerkleNodes(replica, level, nodes, token), Log);
+    }
+
+    @Override
+    public Map<String, String> getMerkleEntries(String replica, List<Integer> buckets, String token) {
+        return handleExceptions(()->base.getMerkleEntries(replica, buckets, token), Log);
+    }
+
+    @Override
+    public void ping() {
+        // answered here, so probes never reach the storage
     }
 
 }
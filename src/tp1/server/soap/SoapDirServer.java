@@ -1,5 +1,7 @@
 package tp1.server.soap;
 
+import tp1.common.services.BasicDirectoryService;
+import tp1.common.services.BasicDirectoryService.ReplicationMode;
 import tp1.common.services.DirectoryService;
 import tp1.common.services.FilesService;
 import tp1.common.services.UsersService;
@@ -19,7 +21,10 @@ public class SoapDirServer {
         Log.setLevel(Level.INFO);
         ServerUtils.expect(Log, args, "secret");
         TokenManager.setSecret(args[0]);
-        SoapUtils.startServer(SoapDirResource::new,
+        // optional: how written files reach their replicas (PULL, PUSH_ACK_FIRST or PUSH_ACK_ALL)
+        ReplicationMode replicationMode = args.length > 1 ?
+                ReplicationMode.valueOf(args[1].toUpperCase()) : ReplicationMode.PULL;
+        SoapUtils.startServer(() -> new SoapDirResource(new BasicDirectoryService(replicationMode)),
                 DirectoryService.NAME, new String[]{UsersService.NAME, FilesService.NAME}, PORT, Log);
     }
 }
@@ -1,6 +1,9 @@
 package tp1.server.soap;
 
 import tp1.common.services.FilesService;
+import tp1.common.services.LocalFilesService;
+import tp1.common.services.LocalFilesService.StorageMode;
+import tp1.common.services.LocalFilesService.SyncPolicy;
 import tp1.server.ServerUtils;
 import tp1.server.soap.resources.SoapFilesResource;
 import tp1.tokens.TokenManager;
@@ -17,7 +20,13 @@ public class SoapFilesServer {
         Log.setLevel(Level.INFO);
         ServerUtils.expect(Log, args, "secret");
         TokenManager.setSecret(args[0]);
-        SoapUtils.startServer(SoapFilesResource::new,
+        // optional: the directory where files are stored and when they're flushed (NONE, PER_FILE or GROUP),
+        // how files are stored (PLAIN, DEDUPLICATED or COMPRESSED) and MiB of contents cached in memory
+        String root = args.length > 1 ? args[1] : LocalFilesService.DEFAULT_STORAGE_ROOT;
+        SyncPolicy syncPolicy = args.length > 2 ? SyncPolicy.valueOf(args[2].toUpperCase()) : SyncPolicy.NONE;
+        StorageMode mode = args.length > 3 ? StorageMode.valueOf(args[3].toUpperCase()) : StorageMode.PLAIN;
+        long cacheSize = args.length > 4 ? Long.parseLong(args[4]) << 20 : 0;
+        SoapUtils.startServer(() -> new SoapFilesResource(new LocalFilesService(root, syncPolicy, mode, cacheSize)),
                 FilesService.NAME, null, PORT, Log);
 
     }
@@ -2,6 +2,7 @@ package tp1.server.soap.resources;
 
 import jakarta.jws.WebService;
 import tp1.api.FileInfo;
+import tp1.api.FilePage;
 import tp1.api.service.soap.DirectoryException;
 import tp1.api.service.soap.SoapDirectory;
 import tp1.common.WebRunnable;
@@ -12,6 +13,7 @@ import tp1.common.services.DirectoryService;
 import tp1.server.soap.SoapUtils;
 
 import java.util.List;
+import java.util.Map;
 import java.util.logging.Logger;
 
 /**
@@ -20,10 +22,18 @@ import java.util.logging.Logger;
 @WebService(serviceName= SoapDirectory.NAME, targetNamespace=SoapDirectory.NAMESPACE, endpointInterface=SoapDirectory.INTERFACE)
 public class SoapDirResource implements SoapDirectory {
 
-    private DirectoryService service = new BasicDirectoryService();
+    private DirectoryService service;
 
     private static Logger Log = Logger.getLogger(SoapDirResource.class.getName());
 
+    public SoapDirResource(){
+        service = new BasicDirectoryService();
+    }
+
+    public SoapDirResource(DirectoryService service){
+        this.service = service;
+    }
+
     @Override
     public FileInfo writeFile(String filename, byte[] data, String userId, String password) throws DirectoryException {
         return handleExceptions(() -> service.writeFile(filename, data, userId, password));
@@ -39,6 +49,11 @@ public class SoapDirResource implements SoapDirectory {
         handleExceptions(() -> service.deleteDirectory(userId, password, token));
     }
 
+    @Override
+    public void invalidateUser(String userId, String token) throws DirectoryException {
+        handleExceptions(() -> service.invalidateUser(userId, token));
+    }
+
     @Override
     public void shareFile(String filename, String userId, String userIdShare, String password) throws DirectoryException {
         handleExceptions(() -> service.shareFile(filename, userId, userIdShare, password));
@@ -51,7 +66,7 @@ public class SoapDirResource implements SoapDirectory {
 
     @Override
     public byte[] getFile(String filename, String userId, String accUserId, String password) throws DirectoryException {
-        return handleExceptions(() -> service.getFile(filename, userId, accUserId, password, false, -1L));
+        return handleExceptions(() -> service.getFile(filename, userId, accUserId, password, false, Map.of()));
     }
 
     @Override
@@ -59,6 +74,16 @@ public class SoapDirResource implements SoapDirectory {
         return handleExceptions(() -> service.lsFile(userId, password));
     }
 
+    @Override
+    public FilePage lsFilePage(String userId, String password, String cursor, int limit) throws DirectoryException {
+        return handleExceptions(() -> service.lsFile(userId, password, cursor, limit));
+    }
+
+    @Override
+    public FilePage lsLocalFiles(String userId, String token, String cursor, int limit) throws DirectoryException {
+        return handleExceptions(() -> service.lsLocalFiles(userId, token, cursor, limit));
+    }
+
     private static void handleExceptions(WebRunnable call) throws DirectoryException {
         handleExceptions(()->{
             call.invoke();